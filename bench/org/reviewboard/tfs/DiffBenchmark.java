@@ -0,0 +1,288 @@
+package org.reviewboard.tfs;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.tfs.core.clients.versioncontrol.VersionControlConstants;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ChangeType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingSet;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks for the diff pipeline.
+ *
+ * These run TFSDiffer against synthetic shelved changes, whose contents are
+ * "downloaded" from memory by SyntheticDiffer. Run them with "ant bench".
+ * Throughput is reported for whole pending sets, and latency (as sampled
+ * percentiles) for individual files. The gc profiler, which "ant bench"
+ * enables by default, reports the allocation rate.
+ *
+ * Each workload profile represents a different kind of change:
+ *
+ *     many-small   Lots of small files with a few edited lines each.
+ *     huge         A few very large files with scattered edits.
+ *     binary       Binary files, which are never diffed line by line.
+ *     rename       Mostly renames, some of which also edit the file.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    /*
+     * The code page TFS uses for UTF-8 files.
+     */
+    private static final int ENCODING_UTF8 = 65001;
+
+    private static final String[] WORDS = {
+        "change", "file", "review", "server", "item", "version", "diff",
+        "shelveset", "workspace", "collection", "pending", "branch",
+    };
+
+    /**
+     * A set of synthetic changes for one workload profile.
+     */
+    @State(Scope.Benchmark)
+    public static class Workload {
+        @Param({"many-small", "huge", "binary", "rename"})
+        public String profile;
+
+        PendingSet[] sets;
+        PendingChange[] changes;
+        int nextChange = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            final Random random = new Random(42);
+            final List<PendingChange> result = new ArrayList<PendingChange>();
+
+            if (profile.equals("many-small")) {
+                for (int i = 0; i < 1000; i++) {
+                    final List<String> lines = createLines(random, 40);
+                    result.add(createEdit(random, "$/Project/src/small" + i + ".c",
+                                          null, lines, 2));
+                }
+            } else if (profile.equals("huge")) {
+                for (int i = 0; i < 4; i++) {
+                    final List<String> lines = createLines(random, 250000);
+                    result.add(createEdit(random, "$/Project/data/huge" + i + ".txt",
+                                          null, lines, 500));
+                }
+            } else if (profile.equals("binary")) {
+                for (int i = 0; i < 200; i++) {
+                    final byte[] oldContents = new byte[256 * 1024];
+                    final byte[] newContents = new byte[256 * 1024];
+                    random.nextBytes(oldContents);
+                    random.nextBytes(newContents);
+
+                    result.add(new SyntheticPendingChange(
+                        "$/Project/assets/image" + i + ".png", null,
+                        ChangeType.EDIT, VersionControlConstants.ENCODING_BINARY,
+                        oldContents, newContents));
+                }
+            } else if (profile.equals("rename")) {
+                for (int i = 0; i < 500; i++) {
+                    final List<String> lines = createLines(random, 100);
+                    final String oldPath = "$/Project/old/module" + i + ".java";
+                    final String newPath = "$/Project/new/module" + i + ".java";
+
+                    if (i % 10 < 7) {
+                        final byte[] contents = joinLines(lines);
+
+                        result.add(new SyntheticPendingChange(
+                            newPath, oldPath, ChangeType.RENAME, ENCODING_UTF8,
+                            contents, contents));
+                    } else {
+                        result.add(createEdit(random, newPath, oldPath, lines, 20));
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown profile " + profile);
+            }
+
+            changes = result.toArray(new PendingChange[result.size()]);
+            sets = new PendingSet[]{ new SyntheticPendingSet(changes) };
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            SyntheticPendingChange.clearDownloads();
+        }
+
+        /**
+         * Create a change which edits a text file.
+         *
+         * @param  random     The source of randomness.
+         * @param  serverItem The server path of the file.
+         * @param  sourceItem The path the file was renamed from, if any.
+         * @param  lines      The lines of the base version.
+         * @param  editEvery  The average number of lines between edits.
+         * @return            The change.
+         */
+        private PendingChange createEdit(final Random random,
+                                         final String serverItem,
+                                         final String sourceItem,
+                                         final List<String> lines,
+                                         final int editEvery) {
+            final List<String> newLines = new ArrayList<String>();
+
+            for (String line : lines) {
+                final int action = random.nextInt(editEvery * 3);
+
+                if (action == 0) {
+                    /* Replace the line. */
+                    newLines.add(createLine(random));
+                } else if (action == 1) {
+                    /* Insert a line. */
+                    newLines.add(line);
+                    newLines.add(createLine(random));
+                } else if (action != 2) {
+                    /* Keep the line (action 2 deletes it). */
+                    newLines.add(line);
+                }
+            }
+
+            final ChangeType changeType =
+                sourceItem != null
+                    ? ChangeType.combine(new ChangeType[]{ ChangeType.RENAME, ChangeType.EDIT })
+                    : ChangeType.EDIT;
+
+            return new SyntheticPendingChange(serverItem, sourceItem, changeType,
+                                              ENCODING_UTF8, joinLines(lines),
+                                              joinLines(newLines));
+        }
+    }
+
+    /**
+     * Options for diffing whole pending sets.
+     */
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+        @Param({"1", "4"})
+        public int downloadThreads;
+
+        @Param({"1", "4"})
+        public int jobs;
+
+        TFSDiffer.DiffOptions options;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            options = new TFSDiffer.DiffOptions();
+            options.downloadThreads = downloadThreads;
+            options.jobs = jobs;
+        }
+    }
+
+    /**
+     * Diff all the changes in a workload.
+     *
+     * @param  workload The workload to diff.
+     * @param  pipeline The options to diff with.
+     * @return          The result of the diff.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public TFSDiffer.DiffResult diffPendingSets(final Workload workload,
+                                                final Pipeline pipeline) {
+        final TFSDiffer.DiffResult result = SyntheticDiffer.getInstance().diffPendingSets(
+            workload.sets, null, pipeline.options, NullOutputStream.NULL_OUTPUT_STREAM);
+
+        if (!result.success) {
+            throw new IllegalStateException(result.err);
+        }
+
+        return result;
+    }
+
+    /**
+     * Diff a single file from a workload.
+     *
+     * Each invocation diffs the next file in the workload, so the sampled
+     * latencies cover every file.
+     *
+     * @param workload The workload to diff.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void diffPendingChange(final Workload workload) throws Exception {
+        final PendingChange change = workload.changes[workload.nextChange];
+        final OutputStream out = NullOutputStream.NULL_OUTPUT_STREAM;
+
+        workload.nextChange = (workload.nextChange + 1) % workload.changes.length;
+
+        SyntheticDiffer.getInstance().diffPendingChange(change, null, new TFSDiffer.DiffOptions(), out);
+    }
+
+    /**
+     * Create lines of random text.
+     *
+     * @param  random The source of randomness.
+     * @param  count  The number of lines.
+     * @return        The lines, each with a trailing newline.
+     */
+    private static List<String> createLines(final Random random, final int count) {
+        final List<String> lines = new ArrayList<String>(count);
+
+        for (int i = 0; i < count; i++) {
+            lines.add(createLine(random));
+        }
+
+        return lines;
+    }
+
+    /**
+     * Create a line of random text.
+     *
+     * @param  random The source of randomness.
+     * @return        The line, with a trailing newline.
+     */
+    private static String createLine(final Random random) {
+        final StringBuilder line = new StringBuilder();
+        final int words = 2 + random.nextInt(8);
+
+        for (int i = 0; i < words; i++) {
+            line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+
+        return line.append(random.nextInt(1000)).append('\n').toString();
+    }
+
+    /**
+     * Join lines into file contents.
+     *
+     * @param  lines The lines to join.
+     * @return       The file contents.
+     */
+    private static byte[] joinLines(final List<String> lines) {
+        final StringBuilder contents = new StringBuilder();
+
+        for (String line : lines) {
+            contents.append(line);
+        }
+
+        return contents.toString().getBytes(utf8);
+    }
+}
@@ -0,0 +1,40 @@
+package org.reviewboard.tfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
+
+
+/**
+ * A TFSDiffer which serves the downloads of SyntheticPendingChanges from
+ * memory.
+ *
+ * The version control client passed to the differ is ignored, and may be
+ * null.
+ */
+public class SyntheticDiffer extends TFSDiffer {
+    private static final SyntheticDiffer instance = new SyntheticDiffer();
+
+    /**
+     * Returns the SyntheticDiffer instance.
+     *
+     * @return The differ instance.
+     */
+    public static SyntheticDiffer getInstance() {
+        return instance;
+    }
+
+    protected void downloadFile(final VersionControlClient versionControl,
+                                final String downloadURL,
+                                final OutputStream out)
+                                throws IOException {
+        final byte[] contents = SyntheticPendingChange.getDownloadContents(downloadURL);
+
+        if (contents == null) {
+            throw new IOException("Unknown download URL " + downloadURL);
+        }
+
+        out.write(contents);
+    }
+}
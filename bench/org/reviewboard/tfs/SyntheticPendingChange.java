@@ -0,0 +1,155 @@
+package org.reviewboard.tfs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ChangeType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
+import ms.tfs.versioncontrol.clientservices._03._PendingChange;
+
+
+/**
+ * A shelved PendingChange with contents held in memory.
+ *
+ * The download URLs of the change refer to its contents in memory, and are
+ * served by SyntheticDiffer, so the differ can be benchmarked without a TFS
+ * server.
+ */
+public class SyntheticPendingChange extends PendingChange {
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static final Map<String, byte[]> downloads = new ConcurrentHashMap<String, byte[]>();
+
+    private final int id = nextId.getAndIncrement();
+    private final String serverItem;
+    private final String sourceServerItem;
+    private final ChangeType changeType;
+    private final int encoding;
+    private final byte[] oldContents;
+    private final byte[] newContents;
+
+    /**
+     * Create the change.
+     *
+     * @param serverItem       The server path of the file.
+     * @param sourceServerItem The server path the file was renamed from, or
+     *                         null if it wasn't renamed.
+     * @param changeType       The type of the change.
+     * @param encoding         The TFS encoding of the file.
+     * @param oldContents      The base contents, or null for an add.
+     * @param newContents      The shelved contents, or null for a delete.
+     */
+    public SyntheticPendingChange(final String serverItem,
+                                  final String sourceServerItem,
+                                  final ChangeType changeType,
+                                  final int encoding,
+                                  final byte[] oldContents,
+                                  final byte[] newContents) {
+        super(new _PendingChange());
+
+        this.serverItem = serverItem;
+        this.sourceServerItem = sourceServerItem;
+        this.changeType = changeType;
+        this.encoding = encoding;
+        this.oldContents = oldContents;
+        this.newContents = newContents;
+
+        if (oldContents != null) {
+            downloads.put(getDownloadURL(), oldContents);
+        }
+
+        if (newContents != null) {
+            downloads.put(getShelvedDownloadURL(), newContents);
+        }
+    }
+
+    /**
+     * Return the contents for a download URL.
+     *
+     * @param  downloadURL The download URL of a synthetic change.
+     * @return             The contents, or null if the URL is unknown.
+     */
+    public static byte[] getDownloadContents(final String downloadURL) {
+        return downloads.get(downloadURL);
+    }
+
+    /**
+     * Forget the contents of every synthetic change.
+     */
+    public static void clearDownloads() {
+        downloads.clear();
+    }
+
+    public String getServerItem() {
+        return serverItem;
+    }
+
+    public String getSourceServerItem() {
+        return sourceServerItem != null ? sourceServerItem : serverItem;
+    }
+
+    public String getLocalItem() {
+        return null;
+    }
+
+    public ChangeType getChangeType() {
+        return changeType;
+    }
+
+    public ItemType getItemType() {
+        return ItemType.FILE;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public int getVersion() {
+        return isAdd() ? 0 : 1;
+    }
+
+    public int getSourceVersionFrom() {
+        return getVersion();
+    }
+
+    public byte[] getHashValue() {
+        return null;
+    }
+
+    public boolean isAdd() {
+        return changeType.contains(ChangeType.ADD);
+    }
+
+    public boolean isBranch() {
+        return changeType.contains(ChangeType.BRANCH);
+    }
+
+    public boolean isDelete() {
+        return changeType.contains(ChangeType.DELETE);
+    }
+
+    public boolean isEdit() {
+        return changeType.contains(ChangeType.EDIT);
+    }
+
+    public boolean isRename() {
+        return changeType.contains(ChangeType.RENAME);
+    }
+
+    public boolean isUndelete() {
+        return changeType.contains(ChangeType.UNDELETE);
+    }
+
+    public boolean isInShelveset() {
+        return true;
+    }
+
+    public String getDownloadURL() {
+        return "synthetic:" + id + ".old";
+    }
+
+    public String getShelvedDownloadURL() {
+        return "synthetic:" + id + ".new";
+    }
+}
@@ -0,0 +1,27 @@
+package org.reviewboard.tfs;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingSet;
+import ms.tfs.versioncontrol.clientservices._03._PendingSet;
+
+
+/**
+ * A PendingSet holding a fixed list of changes.
+ */
+public class SyntheticPendingSet extends PendingSet {
+    private final PendingChange[] changes;
+
+    public SyntheticPendingSet(final PendingChange[] changes) {
+        super(new _PendingSet());
+
+        this.changes = changes;
+    }
+
+    public PendingChange[] getPendingChanges() {
+        return changes;
+    }
+
+    public PendingChange[] getCandidatePendingChanges() {
+        return null;
+    }
+}
@@ -0,0 +1,348 @@
+package org.reviewboard.tfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Generated version control contents for FakeTFSServer.
+ *
+ * Everything is derived from the configuration and a fixed seed, so the
+ * same configuration always produces the same repository. File contents
+ * are generated on demand rather than stored.
+ *
+ * The repository has a single project containing a number of files. The
+ * first changeset adds every file, and each later changeset edits a few of
+ * them. Each shelveset (and the pending changes in the workspace) edits
+ * some files and adds a few new ones.
+ */
+public class FakeRepository {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    public static final String PROJECT = "$/Project";
+
+    /**
+     * Parameters controlling the size of the repository.
+     */
+    public static class Config {
+        public int files = 200;
+        public int linesPerFile = 200;
+        public int changesets = 100;
+        public int filesPerChangeset = 5;
+        public int shelvesets = 5;
+        public int filesPerShelveset = 50;
+        public int binaryEvery = 20;
+        public String owner = "rb-tfs";
+        public String workspace = "rb-tfs-loadtest";
+    }
+
+    /**
+     * A file at a version.
+     */
+    public static class FileVersion {
+        public int itemId;
+        public String serverItem;
+        public int changeset;
+        public boolean binary;
+        public long length;
+        public byte[] hash;
+
+        /* The ID used in download URLs. */
+        public long fileId;
+    }
+
+    /**
+     * A pending change in a shelveset or the workspace.
+     */
+    public static class Change {
+        public FileVersion base;
+        public FileVersion pending;
+        public boolean isAdd;
+    }
+
+    public final Config config;
+
+    /*
+     * The changesets that modified each item, in increasing order.
+     */
+    private final List<List<Integer>> itemHistory = new ArrayList<List<Integer>>();
+
+    /*
+     * The items modified by each changeset.
+     */
+    private final List<List<Integer>> changesetItems = new ArrayList<List<Integer>>();
+
+    public FakeRepository(final Config config) {
+        this.config = config;
+
+        final Random random = new Random(1);
+
+        for (int item = 0; item < config.files; item++) {
+            final List<Integer> history = new ArrayList<Integer>();
+            history.add(1);
+            itemHistory.add(history);
+        }
+
+        final List<Integer> allItems = new ArrayList<Integer>();
+
+        for (int item = 0; item < config.files; item++) {
+            allItems.add(item);
+        }
+
+        changesetItems.add(new ArrayList<Integer>());
+        changesetItems.add(allItems);
+
+        for (int changeset = 2; changeset <= config.changesets; changeset++) {
+            final List<Integer> items = new ArrayList<Integer>();
+
+            for (int i = 0; i < config.filesPerChangeset; i++) {
+                final int item = random.nextInt(config.files);
+
+                if (!items.contains(item)) {
+                    items.add(item);
+                    itemHistory.get(item).add(changeset);
+                }
+            }
+
+            changesetItems.add(items);
+        }
+    }
+
+    /**
+     * Return the latest changeset.
+     *
+     * @return The latest changeset ID.
+     */
+    public int getLatestChangeset() {
+        return config.changesets;
+    }
+
+    /**
+     * Return the items modified by a changeset.
+     *
+     * @param  changeset The changeset ID.
+     * @return           The modified files, at that changeset.
+     */
+    public List<FileVersion> getChangesetFiles(final int changeset) {
+        final List<FileVersion> result = new ArrayList<FileVersion>();
+
+        for (int item : changesetItems.get(changeset)) {
+            result.add(getFile(item, changeset));
+        }
+
+        return result;
+    }
+
+    /**
+     * Return every file at a changeset.
+     *
+     * @param  changeset The changeset ID.
+     * @return           The files.
+     */
+    public List<FileVersion> getFiles(final int changeset) {
+        final List<FileVersion> result = new ArrayList<FileVersion>();
+
+        for (int item = 0; item < config.files; item++) {
+            final FileVersion file = getFileAt(item, changeset);
+
+            if (file != null) {
+                result.add(file);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return a file as of a changeset.
+     *
+     * @param  item      The item index.
+     * @param  changeset The changeset ID.
+     * @return           The file, or null if it didn't exist yet.
+     */
+    public FileVersion getFileAt(final int item, final int changeset) {
+        if (item < 0 || item >= config.files) {
+            return null;
+        }
+
+        int latest = 0;
+
+        for (int modified : itemHistory.get(item)) {
+            if (modified <= changeset) {
+                latest = modified;
+            }
+        }
+
+        return latest > 0 ? getFile(item, latest) : null;
+    }
+
+    /**
+     * Return the pending changes in a shelveset.
+     *
+     * Index -1 is used for the pending changes in the workspace.
+     *
+     * @param  shelveset The shelveset index.
+     * @return           The changes.
+     */
+    public List<Change> getShelvedChanges(final int shelveset) {
+        final Random random = new Random(1000 + shelveset);
+        final List<Change> result = new ArrayList<Change>();
+        final List<Integer> items = new ArrayList<Integer>();
+        final int edits = Math.min(config.filesPerShelveset, config.files);
+
+        while (items.size() < edits * 9 / 10) {
+            final int item = random.nextInt(config.files);
+
+            if (!items.contains(item)) {
+                items.add(item);
+            }
+        }
+
+        for (int item : items) {
+            final Change change = new Change();
+            change.base = getFileAt(item, config.changesets);
+            change.pending = getPendingFile(shelveset, item, change.base.serverItem);
+            result.add(change);
+        }
+
+        for (int i = items.size(); i < edits; i++) {
+            final Change change = new Change();
+            change.pending = getPendingFile(shelveset, config.files + i,
+                                            PROJECT + "/new/added" + i + ".txt");
+            change.isAdd = true;
+            result.add(change);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the name of a shelveset.
+     *
+     * @param  shelveset The shelveset index.
+     * @return           The name.
+     */
+    public String getShelvesetName(final int shelveset) {
+        return "shelveset-" + shelveset;
+    }
+
+    /**
+     * Return the index of a shelveset.
+     *
+     * @param  name The name of the shelveset.
+     * @return      The index, or -2 if there's no such shelveset.
+     */
+    public int getShelvesetIndex(final String name) {
+        for (int i = 0; i < config.shelvesets; i++) {
+            if (getShelvesetName(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        return -2;
+    }
+
+    /**
+     * Generate the contents for a download.
+     *
+     * @param  fileId The ID from the download URL.
+     * @return        The contents.
+     */
+    public byte[] getContents(final long fileId) {
+        final int item = (int)(fileId >> 32);
+        final int version = (int)fileId;
+        final boolean binary = isBinary(item);
+        final Random random = new Random(fileId);
+
+        if (binary) {
+            final byte[] contents = new byte[config.linesPerFile * 40];
+            random.nextBytes(contents);
+            return contents;
+        }
+
+        final StringBuilder contents = new StringBuilder();
+
+        for (int line = 0; line < config.linesPerFile; line++) {
+            /*
+             * Most lines are the same in every version of the file, so the
+             * diffs stay small.
+             */
+            final Random lineRandom = random.nextInt(20) == 0 ? random : new Random(item * 100003L + line);
+            contents.append("line ").append(line).append(' ')
+                    .append(Long.toHexString(lineRandom.nextLong())).append('\n');
+        }
+
+        return contents.toString().getBytes(utf8);
+    }
+
+    /**
+     * Write the workspace's pending changes to a working directory.
+     *
+     * @param workdir The local directory mapped to the project.
+     */
+    public void writeWorkingCopy(final File workdir) throws IOException {
+        for (Change change : getShelvedChanges(-1)) {
+            final File file = getLocalFile(workdir, change.pending.serverItem);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), getContents(change.pending.fileId));
+        }
+    }
+
+    /**
+     * Return the local path for a server item.
+     *
+     * @param  workdir    The local directory mapped to the project.
+     * @param  serverItem The server path.
+     * @return            The local path.
+     */
+    public static File getLocalFile(final File workdir, final String serverItem) {
+        return new File(workdir, serverItem.substring(PROJECT.length() + 1));
+    }
+
+    private FileVersion getFile(final int item, final int changeset) {
+        final FileVersion file = new FileVersion();
+        file.itemId = item + 1;
+        file.serverItem = PROJECT + "/src/dir" + (item % 10) + "/file" + item +
+                          (isBinary(item) ? ".bin" : ".txt");
+        file.changeset = changeset;
+        file.binary = isBinary(item);
+        file.fileId = ((long)item << 32) | changeset;
+        setContentInfo(file);
+        return file;
+    }
+
+    private FileVersion getPendingFile(final int shelveset, final int item,
+                                       final String serverItem) {
+        final FileVersion file = new FileVersion();
+        file.itemId = item + 1;
+        file.serverItem = serverItem;
+        file.binary = isBinary(item);
+
+        /* Shelved versions use version numbers above any changeset. */
+        file.fileId = ((long)item << 32) | (0x40000000 + shelveset + 1);
+        setContentInfo(file);
+        return file;
+    }
+
+    private boolean isBinary(final int item) {
+        return config.binaryEvery > 0 && item % config.binaryEvery == config.binaryEvery - 1;
+    }
+
+    private void setContentInfo(final FileVersion file) {
+        final byte[] contents = getContents(file.fileId);
+        file.length = contents.length;
+
+        try {
+            file.hash = MessageDigest.getInstance("MD5").digest(contents);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
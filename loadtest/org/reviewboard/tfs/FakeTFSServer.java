@@ -0,0 +1,751 @@
+package org.reviewboard.tfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+
+/**
+ * A local stand-in for a TFS server, for load testing rb-tfs.
+ *
+ * This implements the subset of the TFS SOAP services that rb-tfs uses:
+ * the location service (so the SDK can find the other services), the
+ * version control queries for shelvesets, pending sets, history, items
+ * and workspaces, and file downloads. The contents come from a generated
+ * FakeRepository.
+ *
+ * Every response can be delayed by a fixed latency, and sent no faster
+ * than a given bandwidth. The number of requests (per operation) and the
+ * bytes transferred are counted, so that a load test can report them.
+ *
+ * The server doesn't check credentials.
+ */
+public class FakeTFSServer {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    public static final String COLLECTION_PATH = "/tfs/DefaultCollection";
+
+    private static final String LOCATION_NS = "http://microsoft.com/webservices/";
+    private static final String REPOSITORY_NS =
+        "http://schemas.microsoft.com/TeamFoundation/2005/06/VersionControl/ClientServices/03";
+
+    /*
+     * The GUIDs identifying the collection. The instance ID is also the
+     * repository GUID recorded in the local workspace cache.
+     */
+    public static final String INSTANCE_ID = "5c6b7a3e-0d6f-4c3a-9a51-6e0b3f1d2a01";
+    private static final String CATALOG_RESOURCE_ID = "5c6b7a3e-0d6f-4c3a-9a51-6e0b3f1d2a02";
+    private static final String USER_ID = "5c6b7a3e-0d6f-4c3a-9a51-6e0b3f1d2a03";
+
+    /*
+     * The services advertised by the location service, as service type,
+     * identifier, and path relative to the collection. The identifiers must
+     * match the ones the SDK looks the services up by.
+     */
+    private static final String[][] SERVICES = {
+        { "LocationService", "bf9cf1d0-24ac-4d35-aeca-6cd18c69c1fe",
+          "/Services/v3.0/LocationService.asmx" },
+        { "ISCCProvider", "b2b178f5-bef9-460d-a5cf-35bcc0281cc4",
+          "/VersionControl/v1.0/repository.asmx" },
+        { "Download", "0d6a8f83-bb8e-4b4d-8b0e-0e3e2c7a3b9a",
+          "/VersionControl/v1.0/item.asmx" },
+        { "Upload", "1c04c122-7ad1-4f02-87ea-8c2da9cc5b34",
+          "/VersionControl/v1.0/upload.asmx" },
+    };
+
+    private final FakeRepository repository;
+    private final HttpServer server;
+    private final int latencyMs;
+    private final long bytesPerSecond;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final Map<String, AtomicLong> operations = new ConcurrentHashMap<String, AtomicLong>();
+
+    /*
+     * Operations which were requested but aren't implemented. These aren't
+     * reset with the counters.
+     */
+    private final Set<String> unsupported =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Create the server.
+     *
+     * @param repository     The contents to serve.
+     * @param port           The port to listen on, or 0 for any free port.
+     * @param latencyMs      The delay before each response.
+     * @param bytesPerSecond The maximum rate to send responses at, or 0 for
+     *                       no limit.
+     */
+    public FakeTFSServer(final FakeRepository repository, final int port,
+                         final int latencyMs, final long bytesPerSecond)
+                         throws IOException {
+        this.repository = repository;
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Returns the URL of the collection.
+     *
+     * @return The collection URL.
+     */
+    public String getCollectionURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + COLLECTION_PATH;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of requests made for each operation.
+     *
+     * @return Request counts, keyed by operation name.
+     */
+    public Map<String, Long> getOperationCounts() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, AtomicLong> entry : operations.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the operations which were requested but aren't implemented.
+     *
+     * @return The operation names.
+     */
+    public Set<String> getUnsupportedOperations() {
+        return new TreeSet<String>(unsupported);
+    }
+
+    /**
+     * Reset all counters.
+     */
+    public void resetCounters() {
+        requests.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        operations.clear();
+    }
+
+    /**
+     * Handle an HTTP request.
+     *
+     * @param exchange The request.
+     */
+    private void handleRequest(final HttpExchange exchange) throws IOException {
+        final byte[] body = readFully(exchange.getRequestBody());
+        final String path = exchange.getRequestURI().getPath();
+
+        requests.incrementAndGet();
+        bytesReceived.addAndGet(body.length);
+
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (path.endsWith("/item.asmx")) {
+            countOperation("Download");
+            handleDownload(exchange);
+            return;
+        }
+
+        final Element operation;
+
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+
+            final Document document = factory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(body));
+            final Element soapBody = getChild(document.getDocumentElement(), "Body");
+
+            operation = soapBody != null ? getFirstChild(soapBody) : null;
+        } catch (final Exception e) {
+            sendResponse(exchange, 400, "text/plain", ("Invalid request: " + e.getMessage()).getBytes(utf8));
+            return;
+        }
+
+        if (operation == null) {
+            sendResponse(exchange, 400, "text/plain", "Missing SOAP body".getBytes(utf8));
+            return;
+        }
+
+        final String name = operation.getLocalName();
+        final StringBuilder result = new StringBuilder();
+        final String namespace;
+        String resultAttributes = "";
+        String outParameters = "";
+
+        countOperation(name);
+
+        if (name.equals("Connect") || name.equals("QueryServices")) {
+            namespace = LOCATION_NS;
+            resultAttributes = " InstanceId=\"" + INSTANCE_ID + "\" CatalogResourceId=\"" +
+                               CATALOG_RESOURCE_ID + "\" ServerCapabilities=\"2\"";
+            writeLocationData(result);
+        } else {
+            namespace = REPOSITORY_NS;
+
+            if (name.equals("QueryShelvesets")) {
+                writeShelvesets(result, getText(operation, "shelvesetName"));
+            } else if (name.equals("QueryShelvedChanges")) {
+                writePendingSets(result, repository.getShelvesetIndex(getText(operation, "shelvesetName")));
+                outParameters = "<failures/>";
+            } else if (name.equals("QueryPendingSets")) {
+                writePendingSets(result, -1);
+                outParameters = "<failures/>";
+            } else if (name.equals("QueryHistory")) {
+                writeHistory(result, operation);
+            } else if (name.equals("QueryItems")) {
+                writeItemSets(result, operation);
+            } else if (name.equals("QueryItemsById")) {
+                writeItemsById(result, operation);
+            } else if (name.equals("QueryWorkspace")) {
+                resultAttributes = getWorkspaceAttributes();
+                writeWorkspaceFolders(result);
+            } else if (name.equals("QueryWorkspaces")) {
+                result.append("<Workspace").append(getWorkspaceAttributes()).append(">");
+                writeWorkspaceFolders(result);
+                result.append("</Workspace>");
+            } else {
+                unsupported.add(name);
+                sendFault(exchange, "Operation " + name + " is not supported by the fake server");
+                return;
+            }
+        }
+
+        final String response =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+            "xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"><soap:Body>" +
+            "<" + name + "Response xmlns=\"" + namespace + "\">" +
+            "<" + name + "Result" + resultAttributes + ">" + result + "</" + name + "Result>" + outParameters +
+            "</" + name + "Response></soap:Body></soap:Envelope>";
+
+        sendResponse(exchange, 200, "text/xml; charset=utf-8", response.getBytes(utf8));
+    }
+
+    /**
+     * Serve a file download.
+     *
+     * The download URLs handed out by this server have a "fid" parameter
+     * identifying the contents.
+     *
+     * @param exchange The request.
+     */
+    private void handleDownload(final HttpExchange exchange) throws IOException {
+        final String query = exchange.getRequestURI().getQuery();
+        long fileId = -1;
+
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("fid=")) {
+                    fileId = Long.parseLong(param.substring(4));
+                }
+            }
+        }
+
+        if (fileId == -1) {
+            sendResponse(exchange, 404, "text/plain", "Unknown file".getBytes(utf8));
+        } else {
+            sendResponse(exchange, 200, "application/octet-stream",
+                         repository.getContents(fileId));
+        }
+    }
+
+    /**
+     * Write the location service data advertising the services.
+     *
+     * @param out The buffer to write to.
+     */
+    private void writeLocationData(final StringBuilder out) {
+        final String baseURL = getCollectionURL();
+        final String user = escape(repository.config.owner);
+
+        final StringBuilder identity = new StringBuilder();
+
+        identity.append("<AuthenticatedUser DisplayName=\"").append(user)
+           .append("\" IsActive=\"true\" IsContainer=\"false\" TeamFoundationId=\"")
+           .append(USER_ID).append("\" UniqueName=\"").append(user)
+           .append("\" UniqueUserId=\"0\"><Descriptor IdentityType=\"")
+           .append("System.Security.Principal.WindowsIdentity\" Identifier=\"S-1-5-21-0-0-0-1000\"/>")
+           .append("<Attributes><KeyValueOfStringString><Key>Account</Key><Value>").append(user)
+           .append("</Value></KeyValueOfStringString></Attributes><MemberOf/><Members/></AuthenticatedUser>");
+
+        out.append(identity);
+        out.append(identity.toString().replace("AuthenticatedUser", "AuthorizedUser"));
+        out.append("<LocationServiceData LastChangeId=\"1\" ClientCacheFresh=\"false\" ")
+           .append("DefaultAccessMappingMoniker=\"PublicAccessMapping\" ")
+           .append("AccessPointsDoNotIncludeWebAppRelativeDirectory=\"false\">")
+           .append("<AccessMappings><AccessMapping DisplayName=\"Public Access Mapping\" ")
+           .append("Moniker=\"PublicAccessMapping\" AccessPoint=\"").append(escape(baseURL))
+           .append("\"/></AccessMappings><ServiceDefinitions>");
+
+        for (String[] service : SERVICES) {
+            out.append("<ServiceDefinition serviceType=\"").append(service[0])
+               .append("\" identifier=\"").append(service[1])
+               .append("\" displayName=\"").append(service[0])
+               .append("\" relativeToSetting=\"0\" relativePath=\"").append(service[2])
+               .append("\" toolId=\"vstfs\"><LocationMappings><LocationMapping ")
+               .append("accessMappingMoniker=\"PublicAccessMapping\" location=\"")
+               .append(escape(baseURL + service[2]))
+               .append("\"/></LocationMappings></ServiceDefinition>");
+        }
+
+        out.append("</ServiceDefinitions></LocationServiceData>");
+    }
+
+    /**
+     * Write the shelvesets owned by the user.
+     *
+     * @param out  The buffer to write to.
+     * @param name The name to look up, or null for all shelvesets.
+     */
+    private void writeShelvesets(final StringBuilder out, final String name) {
+        for (int i = 0; i < repository.config.shelvesets; i++) {
+            final String shelvesetName = repository.getShelvesetName(i);
+
+            if (name == null || name.isEmpty() || name.equalsIgnoreCase(shelvesetName)) {
+                out.append("<Shelveset date=\"").append(formatDate(i)).append("\" name=\"")
+                   .append(escape(shelvesetName)).append("\" owner=\"")
+                   .append(escape(repository.config.owner)).append("\" ownerdisp=\"")
+                   .append(escape(repository.config.owner)).append("\"><Comment>Generated shelveset ")
+                   .append(i).append("</Comment></Shelveset>");
+            }
+        }
+    }
+
+    /**
+     * Write the pending set for a shelveset or the workspace.
+     *
+     * @param out       The buffer to write to.
+     * @param shelveset The shelveset index, -1 for the workspace, or -2 for
+     *                  an unknown shelveset.
+     */
+    private void writePendingSets(final StringBuilder out, final int shelveset) {
+        if (shelveset == -2) {
+            return;
+        }
+
+        final boolean isWorkspace = shelveset == -1;
+        final String owner = escape(repository.config.owner);
+
+        out.append("<PendingSet computer=\"").append(escape(getComputerName()))
+           .append("\" owner=\"").append(owner).append("\" ownerdisp=\"").append(owner)
+           .append("\" name=\"")
+           .append(escape(isWorkspace ? repository.config.workspace : repository.getShelvesetName(shelveset)))
+           .append("\" type=\"").append(isWorkspace ? "Workspace" : "Shelveset")
+           .append("\"><PendingChanges>");
+
+        int changeId = 1;
+
+        for (FakeRepository.Change change : repository.getShelvedChanges(shelveset)) {
+            final FakeRepository.FileVersion pending = change.pending;
+            final FakeRepository.FileVersion base = change.base;
+
+            out.append("<PendingChange chg=\"").append(change.isAdd ? "Add Edit Encoding" : "Edit")
+               .append("\" date=\"").append(formatDate(0))
+               .append("\" type=\"File\" enc=\"").append(pending.binary ? -1 : 65001)
+               .append("\" itemid=\"").append(pending.itemId)
+               .append("\" ver=\"").append(base != null ? base.changeset : 0)
+               .append("\" pcid=\"").append(changeId++)
+               .append("\" item=\"").append(escape(pending.serverItem)).append("\"");
+
+            if (base != null) {
+                out.append(" srcitem=\"").append(escape(base.serverItem))
+                   .append("\" svrfm=\"").append(base.changeset)
+                   .append("\" hash=\"").append(encodeHash(base.hash))
+                   .append("\" durl=\"fid=").append(base.fileId).append("\"");
+            }
+
+            if (isWorkspace) {
+                out.append(" local=\"").append(escape(pending.serverItem)).append("\"");
+            } else {
+                out.append(" uhash=\"").append(encodeHash(pending.hash))
+                   .append("\" len=\"").append(pending.length)
+                   .append("\" shelvedurl=\"fid=").append(pending.fileId).append("\"");
+            }
+
+            out.append("/>");
+        }
+
+        out.append("</PendingChanges></PendingSet>");
+    }
+
+    /**
+     * Write the changeset history for a query.
+     *
+     * @param out       The buffer to write to.
+     * @param operation The QueryHistory request.
+     */
+    private void writeHistory(final StringBuilder out, final Element operation) {
+        final int latest = repository.getLatestChangeset();
+        final int from = Math.max(1, getChangeset(getChild(operation, "versionFrom"), 1));
+        final int to = Math.min(latest, getChangeset(getChild(operation, "versionTo"), latest));
+        final String maxCountText = getText(operation, "maxCount");
+        final int maxCount = maxCountText != null ? Integer.parseInt(maxCountText) : Integer.MAX_VALUE;
+        final boolean includeFiles = "true".equals(getText(operation, "includeFiles"));
+        final boolean ascending = "true".equals(getText(operation, "sortAscending"));
+        final List<Integer> changesets = new ArrayList<Integer>();
+
+        for (int changeset = to; changeset >= from && changesets.size() < maxCount; changeset--) {
+            changesets.add(changeset);
+        }
+
+        if (ascending) {
+            Collections.reverse(changesets);
+        }
+
+        final String owner = escape(repository.config.owner);
+
+        for (int changeset : changesets) {
+            out.append("<Changeset cmtr=\"").append(owner).append("\" cmtrdisp=\"").append(owner)
+               .append("\" date=\"").append(formatDate(changeset)).append("\" owner=\"").append(owner)
+               .append("\" ownerdisp=\"").append(owner).append("\" cset=\"").append(changeset)
+               .append("\"><Comment>Changeset ").append(changeset).append("</Comment>");
+
+            if (includeFiles) {
+                out.append("<Changes>");
+
+                for (FakeRepository.FileVersion file : repository.getChangesetFiles(changeset)) {
+                    out.append("<Change type=\"").append(changeset == 1 ? "Add Edit Encoding" : "Edit")
+                       .append("\">");
+                    writeItem(out, "Item", file);
+                    out.append("</Change>");
+                }
+
+                out.append("</Changes>");
+            }
+
+            out.append("</Changeset>");
+        }
+    }
+
+    /**
+     * Write the item sets for a QueryItems request.
+     *
+     * Each item spec is treated as a full recursive query of the project.
+     *
+     * @param out       The buffer to write to.
+     * @param operation The QueryItems request.
+     */
+    private void writeItemSets(final StringBuilder out, final Element operation) {
+        final int changeset = Math.min(repository.getLatestChangeset(),
+                                       getChangeset(getChild(operation, "version"),
+                                                    repository.getLatestChangeset()));
+        final Element items = getChild(operation, "items");
+        final int count = items != null ? countChildren(items) : 1;
+
+        for (int i = 0; i < count; i++) {
+            out.append("<ItemSet><QueryPath>").append(FakeRepository.PROJECT)
+               .append("</QueryPath><Items>");
+
+            for (FakeRepository.FileVersion file : repository.getFiles(changeset)) {
+                writeItem(out, "Item", file);
+            }
+
+            out.append("</Items></ItemSet>");
+        }
+    }
+
+    /**
+     * Write the items for a QueryItemsById request.
+     *
+     * @param out       The buffer to write to.
+     * @param operation The QueryItemsById request.
+     */
+    private void writeItemsById(final StringBuilder out, final Element operation) {
+        final int changeset = Integer.parseInt(getText(operation, "changeSet"));
+        final Element itemIds = getChild(operation, "itemIds");
+
+        if (itemIds == null) {
+            return;
+        }
+
+        for (Node node = itemIds.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                final int itemId = Integer.parseInt(node.getTextContent().trim());
+                final FakeRepository.FileVersion file = repository.getFileAt(itemId - 1, changeset);
+
+                if (file != null) {
+                    writeItem(out, "Item", file);
+                } else {
+                    out.append("<Item xsi:nil=\"true\"/>");
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the attributes describing the workspace.
+     *
+     * @return The attributes, with a leading space.
+     */
+    private String getWorkspaceAttributes() {
+        final String owner = escape(repository.config.owner);
+
+        return " computer=\"" + escape(getComputerName()) + "\" islocal=\"false\" name=\"" +
+               escape(repository.config.workspace) + "\" owner=\"" + owner +
+               "\" ownerdisp=\"" + owner + "\"";
+    }
+
+    /**
+     * Write the contents of the workspace: its comment, its single working
+     * folder mapping the project, and its last access date.
+     *
+     * @param out The buffer to write to.
+     */
+    private void writeWorkspaceFolders(final StringBuilder out) {
+        out.append("<Comment/><Folders><WorkingFolder item=\"").append(FakeRepository.PROJECT)
+           .append("\" type=\"Map\"/></Folders><LastAccessDate>").append(formatDate(0))
+           .append("</LastAccessDate>");
+    }
+
+    /**
+     * Write an item.
+     *
+     * @param out         The buffer to write to.
+     * @param elementName The name of the element to write.
+     * @param file        The file to write.
+     */
+    private static void writeItem(final StringBuilder out, final String elementName,
+                                  final FakeRepository.FileVersion file) {
+        out.append("<").append(elementName).append(" cs=\"").append(file.changeset)
+           .append("\" date=\"").append(formatDate(file.changeset))
+           .append("\" enc=\"").append(file.binary ? -1 : 65001)
+           .append("\" type=\"File\" itemid=\"").append(file.itemId)
+           .append("\" item=\"").append(escape(file.serverItem))
+           .append("\" hash=\"").append(encodeHash(file.hash))
+           .append("\" len=\"").append(file.length)
+           .append("\" durl=\"fid=").append(file.fileId).append("\"/>");
+    }
+
+    /**
+     * Return the changeset a version spec refers to.
+     *
+     * Only changeset versions are understood. Anything else (latest, date,
+     * workspace or label versions) is treated as the default.
+     *
+     * @param  version        The version spec element.
+     * @param  defaultVersion The changeset to use for other versions.
+     * @return                The changeset.
+     */
+    private static int getChangeset(final Element version, final int defaultVersion) {
+        if (version != null && version.hasAttribute("cs")) {
+            return Integer.parseInt(version.getAttribute("cs"));
+        }
+
+        return defaultVersion;
+    }
+
+    /**
+     * Send a SOAP fault.
+     *
+     * @param exchange The request.
+     * @param message  The fault message.
+     */
+    private void sendFault(final HttpExchange exchange, final String message) throws IOException {
+        final String response =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<soap:Fault><faultcode>soap:Server</faultcode><faultstring>" + escape(message) +
+            "</faultstring></soap:Fault></soap:Body></soap:Envelope>";
+
+        sendResponse(exchange, 500, "text/xml; charset=utf-8", response.getBytes(utf8));
+    }
+
+    /**
+     * Send a response, limited to the configured bandwidth.
+     *
+     * @param exchange    The request.
+     * @param status      The HTTP status code.
+     * @param contentType The content type.
+     * @param data        The response body.
+     */
+    private void sendResponse(final HttpExchange exchange, final int status,
+                              final String contentType, final byte[] data)
+                              throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, data.length);
+
+        final OutputStream out = exchange.getResponseBody();
+        final int chunkSize = 16384;
+        final long start = System.nanoTime();
+
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            final int length = Math.min(chunkSize, data.length - offset);
+            out.write(data, offset, length);
+            bytesSent.addAndGet(length);
+
+            if (bytesPerSecond > 0) {
+                final long dueNanos = (offset + length) * 1000000000L / bytesPerSecond;
+                final long sleepMillis = (dueNanos - (System.nanoTime() - start)) / 1000000;
+
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        out.close();
+    }
+
+    private void countOperation(final String name) {
+        AtomicLong count = operations.get(name);
+
+        if (count == null) {
+            operations.putIfAbsent(name, new AtomicLong());
+            count = operations.get(name);
+        }
+
+        count.incrementAndGet();
+    }
+
+    private static Element getChild(final Element parent, final String localName) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && localName.equals(node.getLocalName())) {
+                return (Element)node;
+            }
+        }
+
+        return null;
+    }
+
+    private static Element getFirstChild(final Element parent) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                return (Element)node;
+            }
+        }
+
+        return null;
+    }
+
+    private static int countChildren(final Element parent) {
+        final NodeList children = parent.getChildNodes();
+        int count = 0;
+
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i) instanceof Element) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static String getText(final Element parent, final String localName) {
+        final Element child = getChild(parent, localName);
+        return child != null ? child.getTextContent() : null;
+    }
+
+    private static String encodeHash(final byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static String formatDate(final int offsetDays) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(1420070400000L + offsetDays * 86400000L));
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;")
+                    .replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    static String getComputerName() {
+        try {
+            final String hostname = InetAddress.getLocalHost().getHostName();
+            final int dot = hostname.indexOf('.');
+            return dot == -1 ? hostname : hostname.substring(0, dot);
+        } catch (final IOException e) {
+            return "localhost";
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int length;
+
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,446 @@
+package org.reviewboard.tfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * Runs rb-tfs against a FakeTFSServer and reports how it performed.
+ *
+ * The driver generates a repository, starts the fake server, and sets up a
+ * private home directory containing a workspace cache which maps a scratch
+ * working copy to the fake collection. Each scenario then runs rb-tfs in a
+ * separate JVM (with the daemon disabled, so every run pays the full
+ * startup cost), and the wall-clock time, exit code, number of requests and
+ * bytes transferred are reported for every run.
+ *
+ * The fake server's responses are built from the TFS web service schemas,
+ * so before a scenario is timed, it's run once as a check. If rb-tfs fails,
+ * produces no output, or asks for an operation the fake server doesn't
+ * implement, the reason and rb-tfs's error output are printed, the
+ * scenario isn't timed, and the driver exits with a non-zero status. A
+ * scenario which passes the check shows that the SDK accepted every
+ * response it needed.
+ *
+ * Run it with "ant loadtest", passing options with -Dloadtest.args.
+ */
+public class LoadTestDriver {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private static final String[] ALL_SCENARIOS = {
+        "get-collection",
+        "parse-revision",
+        "shelveset-diff",
+        "committed-diff",
+        "series-diff",
+        "working-copy-diff",
+    };
+
+    private final FakeRepository repository;
+    private final FakeTFSServer server;
+    private final File jar;
+    private final File home;
+    private final File workdir;
+
+    private LoadTestDriver(final FakeRepository repository,
+                           final FakeTFSServer server, final File jar,
+                           final File root) {
+        this.repository = repository;
+        this.server = server;
+        this.jar = jar;
+        home = new File(root, "home");
+        workdir = new File(root, "workdir");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Options options = new Options();
+        options.addOption(Option.builder()
+            .longOpt("jar")
+            .desc("The rb-tfs jar to test (default build/rb-tfs.jar).")
+            .hasArg()
+            .argName("path")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("scenario")
+            .desc("A scenario to run (default all): " + String.join(", ", ALL_SCENARIOS) + ".")
+            .hasArg()
+            .argName("name")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("runs")
+            .desc("The number of times to run each scenario (default 3).")
+            .hasArg()
+            .argName("count")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("latency")
+            .desc("Milliseconds of latency to add to each request (default 20).")
+            .hasArg()
+            .argName("ms")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("bandwidth")
+            .desc("Maximum response bandwidth in KiB/s (default unlimited).")
+            .hasArg()
+            .argName("kib")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("files")
+            .desc("The number of files in the repository.")
+            .hasArg()
+            .argName("count")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("lines")
+            .desc("The number of lines in each text file.")
+            .hasArg()
+            .argName("count")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("changesets")
+            .desc("The number of changesets in the history.")
+            .hasArg()
+            .argName("count")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("shelved-files")
+            .desc("The number of files in each shelveset.")
+            .hasArg()
+            .argName("count")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("serve")
+            .desc("Only run the fake server, printing its URL, until interrupted.")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("verbose")
+            .desc("Show requests by operation, and the output of failed runs.")
+            .build());
+
+        final CommandLine commandLine;
+        final FakeRepository.Config config = new FakeRepository.Config();
+        final int runs;
+        final int latency;
+        final long bandwidth;
+
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+            config.files = getInt(commandLine, "files", config.files);
+            config.linesPerFile = getInt(commandLine, "lines", config.linesPerFile);
+            config.changesets = getInt(commandLine, "changesets", config.changesets);
+            config.filesPerShelveset = getInt(commandLine, "shelved-files", config.filesPerShelveset);
+            runs = getInt(commandLine, "runs", 3);
+            latency = getInt(commandLine, "latency", 20);
+            bandwidth = getInt(commandLine, "bandwidth", 0) * 1024L;
+        } catch (final ParseException|NumberFormatException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadTestDriver [options]", options);
+            System.exit(1);
+            return;
+        }
+
+        final FakeRepository repository = new FakeRepository(config);
+        final FakeTFSServer server = new FakeTFSServer(repository, 0, latency, bandwidth);
+        server.start();
+
+        if (commandLine.hasOption("serve")) {
+            System.out.println("Serving " + server.getCollectionURL());
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        final File root = Files.createTempDirectory("rb-tfs-loadtest").toFile();
+        boolean failed = false;
+
+        try {
+            final LoadTestDriver driver = new LoadTestDriver(
+                repository, server,
+                new File(commandLine.getOptionValue("jar", "build/rb-tfs.jar")).getAbsoluteFile(),
+                root);
+            final List<String> scenarios =
+                commandLine.hasOption("scenario")
+                    ? Arrays.asList(commandLine.getOptionValues("scenario"))
+                    : Arrays.asList(ALL_SCENARIOS);
+
+            driver.setUp();
+
+            System.out.println(String.format(
+                "%d files, %d lines/file, %d changesets, %d files/shelveset; " +
+                "latency %dms, bandwidth %s",
+                config.files, config.linesPerFile, config.changesets,
+                config.filesPerShelveset, latency,
+                bandwidth > 0 ? (bandwidth / 1024) + " KiB/s" : "unlimited"));
+            System.out.println();
+            System.out.println(String.format("%-18s %4s %5s %9s %9s %11s %11s %11s",
+                                             "scenario", "run", "exit", "wall ms",
+                                             "requests", "bytes in", "bytes out",
+                                             "output"));
+
+            for (String scenario : scenarios) {
+                if (!driver.runScenario(scenario, runs, commandLine.hasOption("verbose"))) {
+                    failed = true;
+                }
+            }
+        } finally {
+            server.stop();
+            FileUtils.deleteQuietly(root);
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Create the home directory and working copy used by the scenarios.
+     */
+    private void setUp() throws IOException {
+        repository.writeWorkingCopy(workdir);
+
+        /*
+         * The workspace cache is how the SDK finds the server and workspace
+         * for a local path, without contacting any server.
+         */
+        final File cacheFile = new File(home, ".microsoft/Team Foundation/4.0/Cache/VersionControl.config");
+        final String config =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+            "<VersionControlServer>\n" +
+            "  <Servers>\n" +
+            "    <ServerInfo uri=\"" + server.getCollectionURL() + "\" " +
+            "repositoryGuid=\"" + FakeTFSServer.INSTANCE_ID + "\">\n" +
+            "      <WorkspaceInfo computer=\"" + FakeTFSServer.getComputerName() + "\" " +
+            "ownerName=\"" + repository.config.owner + "\" " +
+            "ownerDisplayName=\"" + repository.config.owner + "\" " +
+            "comment=\"\" securityToken=\"/" + repository.config.workspace + ";" +
+            repository.config.owner + "\" isLocalWorkspace=\"false\" " +
+            "name=\"" + repository.config.workspace + "\" LastSavedCheckinTimeStamp=\"0\">\n" +
+            "        <MappedPaths>\n" +
+            "          <MappedPath path=\"" + workdir.getAbsolutePath() + "\" />\n" +
+            "        </MappedPaths>\n" +
+            "      </WorkspaceInfo>\n" +
+            "    </ServerInfo>\n" +
+            "  </Servers>\n" +
+            "</VersionControlServer>\n";
+
+        FileUtils.writeStringToFile(cacheFile, config, utf8);
+    }
+
+    /**
+     * Run a scenario several times, printing a line for each run.
+     *
+     * The scenario is first run once, untimed, to check that it works
+     * against the fake server.
+     *
+     * @param  scenario The name of the scenario.
+     * @param  runs     The number of times to run it.
+     * @param  verbose  Whether to print details of each run.
+     * @return          Whether the scenario passed its check.
+     */
+    private boolean runScenario(final String scenario, final int runs,
+                                final boolean verbose)
+                                throws IOException, InterruptedException {
+        final List<String> args = getScenarioArgs(scenario);
+
+        if (args == null) {
+            System.out.println(String.format("%-18s unknown scenario", scenario));
+            return false;
+        }
+
+        final String problem = checkScenario(args);
+
+        if (problem != null) {
+            System.out.println(String.format("%-18s FAILED check: %s", scenario, problem));
+            return false;
+        }
+
+        final List<Long> times = new ArrayList<Long>();
+
+        for (int run = 1; run <= runs; run++) {
+            server.resetCounters();
+
+            final long start = System.nanoTime();
+            final RunResult result = runRbTfs(args);
+            final long wallMs = (System.nanoTime() - start) / 1000000;
+
+            times.add(wallMs);
+
+            System.out.println(String.format("%-18s %4d %5d %9d %9d %11d %11d %11d",
+                                             scenario, run, result.exitCode, wallMs,
+                                             server.getRequests(), server.getBytesSent(),
+                                             server.getBytesReceived(), result.outputLength));
+
+            if (verbose) {
+                for (Map.Entry<String, Long> entry : server.getOperationCounts().entrySet()) {
+                    System.out.println(String.format("    %-24s %6d", entry.getKey(), entry.getValue()));
+                }
+
+                if (result.exitCode != 0 && !result.errors.isEmpty()) {
+                    System.out.println("    " + result.errors.trim().replace("\n", "\n    "));
+                }
+            }
+        }
+
+        Collections.sort(times);
+        System.out.println(String.format("%-18s median %dms, min %dms, max %dms",
+                                         scenario, times.get(times.size() / 2),
+                                         times.get(0), times.get(times.size() - 1)));
+
+        return true;
+    }
+
+    /**
+     * Run a scenario once, and check that rb-tfs and the SDK accepted the
+     * fake server's responses.
+     *
+     * @param  args The rb-tfs arguments for the scenario.
+     * @return      A description of the problem, or null if the run worked.
+     */
+    private String checkScenario(final List<String> args)
+                                 throws IOException, InterruptedException {
+        final RunResult result = runRbTfs(args);
+        final Set<String> unsupported = server.getUnsupportedOperations();
+        final String problem;
+
+        if (!unsupported.isEmpty()) {
+            problem = "unsupported operations " + unsupported;
+        } else if (result.exitCode != 0 && result.exitCode != 2) {
+            /* 2 only warns about unpended changes. */
+            problem = "exit code " + result.exitCode;
+        } else if (result.outputLength == 0) {
+            problem = "no output";
+        } else {
+            return null;
+        }
+
+        return result.errors.isEmpty()
+               ? problem
+               : problem + "\n    " + result.errors.trim().replace("\n", "\n    ");
+    }
+
+    /**
+     * Return the rb-tfs arguments for a scenario.
+     *
+     * @param  scenario The name of the scenario.
+     * @return          The arguments, or null if the scenario is unknown.
+     */
+    private List<String> getScenarioArgs(final String scenario) {
+        final int latest = repository.getLatestChangeset();
+        final int base = Math.max(1, latest - 10);
+
+        if (scenario.equals("get-collection")) {
+            return Arrays.asList("get-collection");
+        } else if (scenario.equals("parse-revision")) {
+            return Arrays.asList("parse-revision");
+        } else if (scenario.equals("shelveset-diff")) {
+            return Arrays.asList("diff", "--", Revision.SHELVESET_BASE,
+                                 Revision.SHELVESET_PREFIX + repository.getShelvesetName(0));
+        } else if (scenario.equals("committed-diff")) {
+            return Arrays.asList("diff", "--", "C" + base, "C" + latest);
+        } else if (scenario.equals("series-diff")) {
+            return Arrays.asList("diff", "--series", "--", "C" + base, "C" + latest);
+        } else if (scenario.equals("working-copy-diff")) {
+            return Arrays.asList("diff", "--", "C" + latest, Revision.WORKING_COPY);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Run rb-tfs in a new JVM.
+     *
+     * @param  args The command and its arguments.
+     * @return      The result of the run.
+     */
+    private RunResult runRbTfs(final List<String> args)
+                               throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-Duser.home=" + home.getAbsolutePath());
+        command.add("-jar");
+        command.add(jar.getPath());
+        command.add(args.get(0));
+        command.add("--workdir");
+        command.add(workdir.getAbsolutePath());
+        command.add("--login");
+        command.add(repository.config.owner + "@LOADTEST,password");
+        command.addAll(args.subList(1, args.size()));
+
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().put("RB_TFS_NO_DAEMON", "1");
+        builder.directory(workdir);
+
+        final Process process = builder.start();
+        process.getOutputStream().close();
+
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final Thread errorThread = copyInBackground(process.getErrorStream(), errors);
+        final RunResult result = new RunResult();
+        final byte[] buffer = new byte[65536];
+        int length;
+
+        try(final InputStream output = process.getInputStream()) {
+            while ((length = output.read(buffer)) > 0) {
+                result.outputLength += length;
+            }
+        }
+
+        result.exitCode = process.waitFor();
+        errorThread.join();
+        result.errors = new String(errors.toByteArray(), utf8);
+
+        return result;
+    }
+
+    private static Thread copyInBackground(final InputStream input,
+                                           final ByteArrayOutputStream output) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buffer = new byte[8192];
+                int length;
+
+                try {
+                    while ((length = input.read(buffer)) > 0) {
+                        output.write(buffer, 0, length);
+                    }
+                } catch (final IOException e) {
+                }
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    private static int getInt(final CommandLine commandLine, final String name,
+                              final int defaultValue) {
+        return commandLine.hasOption(name)
+               ? Integer.parseInt(commandLine.getOptionValue(name))
+               : defaultValue;
+    }
+
+    /**
+     * The result of running rb-tfs.
+     */
+    private static class RunResult {
+        public int exitCode;
+        public long outputLength;
+        public String errors = "";
+    }
+}
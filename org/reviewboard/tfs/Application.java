@@ -2,11 +2,15 @@ package org.reviewboard.tfs;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.microsoft.tfs.jni.loader.NativeLoader;
 import com.microsoft.tfs.jni.PlatformMiscUtils;
@@ -17,44 +21,103 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
+import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import org.reviewboard.tfs.CollectionPool;
 import org.reviewboard.tfs.Command;
-import org.reviewboard.tfs.CommandDiff;
-import org.reviewboard.tfs.CommandGetCollection;
-import org.reviewboard.tfs.CommandParseRevision;
+import org.reviewboard.tfs.Daemon;
+import org.reviewboard.tfs.DaemonClient;
 
 
 /**
  * The main application.
  */
 public class Application {
-    private static final HashMap<String, Command> commandClasses;
+    /*
+     * The commands are registered by class name, so that only the class for
+     * the selected command (and whatever it uses) gets loaded.
+     */
+    private static final Map<String, String> commandClasses;
     static {
-        commandClasses = new HashMap<String, Command>();
-        commandClasses.put("diff", new CommandDiff());
-        commandClasses.put("get-collection", new CommandGetCollection());
-        commandClasses.put("parse-revision", new CommandParseRevision());
+        commandClasses = new HashMap<String, String>();
+        commandClasses.put("batch-diff", "org.reviewboard.tfs.CommandBatchDiff");
+        commandClasses.put("diff", "org.reviewboard.tfs.CommandDiff");
+        commandClasses.put("get-collection", "org.reviewboard.tfs.CommandGetCollection");
+        commandClasses.put("parse-revision", "org.reviewboard.tfs.CommandParseRevision");
     }
 
+    private static boolean nativeLibrariesSetUp = false;
+
     /**
      * Main function.
      *
-     * This is responsible for parsing the command line and determining which
-     * Command subclass to run.
+     * If an rb-tfs daemon is running, the command is forwarded to it.
+     * Otherwise, this is responsible for parsing the command line and
+     * determining which Command subclass to run.
      *
      * @param args Command-line arguments.
      */
-    public static void main(String[] args) throws IOException, URISyntaxException {
-        /*
-         * Set up the path to the TFS SDK native libraries based on the current
-         * jar filename.
-         */
-        final Path currentJar = Paths.get(Application.class.getProtectionDomain().getCodeSource().getLocation().toURI());
-        final Path nativeDir = currentJar.resolve("../lib/native").toRealPath();
-        System.setProperty(NativeLoader.NATIVE_LIBRARY_BASE_DIRECTORY_PROPERTY, nativeDir.toString());
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("serve")) {
+            System.exit(Daemon.serve(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        final Integer daemonExitCode = DaemonClient.forward(args);
 
+        if (daemonExitCode != null) {
+            System.exit(daemonExitCode);
+        }
+
+        System.exit(runCommand(args, System.in, System.out, System.err, null, null));
+    }
+
+    /**
+     * Set up the path to the TFS SDK native libraries.
+     *
+     * This is based on the current jar filename. It's called by commands
+     * before they first use the TFS SDK, rather than at startup, so that
+     * help output and forwarding commands to the daemon don't pay for it.
+     * Calling it again has no effect.
+     */
+    static synchronized void setUpNativeLibraries() {
+        if (nativeLibrariesSetUp) {
+            return;
+        }
+
+        nativeLibrariesSetUp = true;
+
+        try {
+            final Path currentJar = Paths.get(Application.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            final Path nativeDir = currentJar.getParent().resolve("lib/native").toRealPath();
+            System.setProperty(NativeLoader.NATIVE_LIBRARY_BASE_DIRECTORY_PROPERTY, nativeDir.toString());
+        } catch (final IOException|URISyntaxException e) {
+            /*
+             * The logger is only created here, since setting up logging
+             * takes a noticeable part of the startup time.
+             */
+            LogFactory.getLog(Application.class).warn("Unable to locate the TFS SDK native libraries: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a command line and run the command.
+     *
+     * @param  args             Command-line arguments.
+     * @param  in               The stream to use for standard input.
+     * @param  out              The stream to use for standard output.
+     * @param  err              The stream to use for standard error.
+     * @param  currentDirectory The current directory of the client, when run
+     *                          by the daemon (may be null).
+     * @param  collectionPool   The pool of open TFS connections, when run by
+     *                          the daemon (may be null).
+     * @return                  The exit code for the command.
+     */
+    static int runCommand(String[] args, final InputStream in,
+                          final PrintStream out, final PrintStream err,
+                          final String currentDirectory,
+                          final CollectionPool collectionPool) {
         /*
          * Argument parsing happens in two passes. For the first pass, we add
          * global options (like --debug) and all other items get collected into
@@ -68,6 +131,11 @@ public class Application {
             .longOpt("debug")
             .desc("Enable debug output.")
             .build());
+        options.addOption(Option.builder()
+            .longOpt("stats")
+            .desc("Print a JSON summary of timings, server calls and files " +
+                  "to standard error.")
+            .build());
 
         final CommandLineParser parser = new DefaultParser();
         String commandName = null;
@@ -79,16 +147,20 @@ public class Application {
             String[] capturedArgs = commandLine.getArgs();
             if (capturedArgs.length == 0 ||
                 (capturedArgs.length == 1 && capturedArgs[0].equals("help"))) {
-                showHelp(null, "[command] [options]", options, true);
-                System.exit(0);
+                showHelp(out, null, "[command] [options]", options, true);
+                return 0;
             }
 
             commandName = capturedArgs[0];
-            command = commandClasses.get(commandName);
+            command = createCommand(commandName);
             if (command == null) {
-                System.err.println("Unknown command \"" + commandName + "\"");
-                showHelp(null, "[command] [options]", options, true);
-                System.exit(1);
+                err.println("Unknown command \"" + commandName + "\"");
+                showHelp(out, null, "[command] [options]", options, true);
+                return 1;
+            }
+
+            if (collectionPool != null) {
+                command.setDaemonContext(in, out, err, currentDirectory, collectionPool);
             }
 
             for (Option option : command.getOptions()) {
@@ -102,28 +174,60 @@ public class Application {
                 Logger.getRootLogger().setLevel(Level.INFO);
             }
 
-            command.run(commandLine);
+            final int exitCode = command.run(commandLine);
+
+            if (commandLine.hasOption("stats")) {
+                err.println(command.getStats().toJson());
+            }
+
+            return exitCode;
         } catch(final ParseException e) {
             if (e.getMessage() != null) {
-                System.err.println(e);
+                err.println(e);
             }
 
-            showHelp(commandName, command != null ? command.getUsage() : null,
+            showHelp(out, commandName, command != null ? command.getUsage() : null,
                      options, command == null);
-            System.exit(1);
+            return 1;
+        }
+    }
+
+    /**
+     * Create a new instance of a command.
+     *
+     * @param  commandName The name of the command.
+     * @return             The new command, or null if there's no command with
+     *                     the given name.
+     */
+    private static Command createCommand(final String commandName) {
+        final String className = commandClasses.get(commandName);
+
+        if (className == null) {
+            return null;
+        }
+
+        try {
+            return Class.forName(className)
+                .asSubclass(Command.class)
+                .getDeclaredConstructor()
+                .newInstance();
+        } catch (final ReflectiveOperationException e) {
+            throw new RuntimeException("Unable to create command " + commandName, e);
         }
     }
 
     /**
      * Print usage information to the console.
      *
+     * @param out          The stream to print to.
      * @param commandName  The name of the command being run (may be null).
      * @param args         Usage information.
      * @param options      The options list.
      * @param listCommands Whether to show a list of the available commands.
      */
-    private static void showHelp(final String commandName, final String args,
-                                 final Options options, final boolean listCommands) {
+    private static void showHelp(final PrintStream out, final String commandName,
+                                 final String args, final Options options,
+                                 final boolean listCommands) {
         String usage = "rb-tfs";
 
         if (commandName != null) {
@@ -134,16 +238,22 @@ public class Application {
             usage += " " + args;
         }
 
-        HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp(usage, options);
+        final HelpFormatter formatter = new HelpFormatter();
+        final PrintWriter writer = new PrintWriter(out);
+        formatter.printHelp(writer, formatter.getWidth(), usage, null, options,
+                            formatter.getLeftPadding(),
+                            formatter.getDescPadding(), null);
+        writer.flush();
 
         if (listCommands) {
-            System.out.println();
-            System.out.println("Available commands:");
+            out.println();
+            out.println("Available commands:");
 
             for (String command : commandClasses.keySet()) {
-                System.out.println("    " + command);
+                out.println("    " + command);
             }
+
+            out.println("    serve");
         }
     }
 
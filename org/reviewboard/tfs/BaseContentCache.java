@@ -0,0 +1,441 @@
+package org.reviewboard.tfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A persistent on-disk cache of base file contents.
+ *
+ * The contents of a file at a committed version never change, so they can
+ * be kept between runs. Contents are stored by their MD5 hash (the same hash
+ * that TFS uses), so identical contents found at different paths or
+ * versions are only stored once. A separate index maps each server item and
+ * version to the hash of its contents.
+ *
+ * Every file is written to a temporary name and atomically renamed into
+ * place, so a crash never leaves a partial entry behind. Within a process,
+ * startFetch() and finishFetch() make sure that when several diffs miss on
+ * the same item at once, only one of them downloads it. Contents are
+ * evicted in least-recently-used order once the cache grows past its size
+ * limit, using file modification times to track use.
+ *
+ * The layout of the cache directory is:
+ *
+ *     objects/ab/abcdef...    File contents, named by MD5 hash.
+ *     index/12/123456...      The MD5 hash for a server item and version,
+ *                             named by the SHA-1 of the item and version.
+ */
+public class BaseContentCache {
+    private static Log log = LogFactory.getLog(BaseContentCache.class);
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /*
+     * When evicting, we remove enough entries to get down to this fraction
+     * of the size limit, so we don't need to evict on every store.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Path objectsDir;
+    private final Path indexDir;
+    private final long maxSize;
+
+    /*
+     * Entries used before this time may be evicted. Anything used during
+     * this run is kept, since it may still be waiting to be diffed.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /*
+     * The total size of the stored contents, or -1 if not yet computed.
+     */
+    private final AtomicLong totalSize = new AtomicLong(-1);
+
+    /*
+     * The server items and versions currently being fetched for the cache.
+     */
+    private final Set<String> fetching = new HashSet<String>();
+
+    /**
+     * Create the cache.
+     *
+     * @param root    The directory to store the cache in.
+     * @param maxSize The maximum total size of stored contents, in bytes.
+     */
+    public BaseContentCache(final File root, final long maxSize) throws IOException {
+        objectsDir = root.toPath().resolve("objects");
+        indexDir = root.toPath().resolve("index");
+        this.maxSize = maxSize;
+
+        Files.createDirectories(objectsDir);
+        Files.createDirectories(indexDir);
+    }
+
+    /**
+     * Look up the contents of a server item at a version.
+     *
+     * @param  serverItem The server path of the item.
+     * @param  version    The changeset version of the item.
+     * @return            The cached contents, or null if they aren't cached.
+     */
+    public File get(final String serverItem, final int version) {
+        final Path indexFile = getIndexFile(serverItem, version);
+
+        try {
+            final String hash = new String(Files.readAllBytes(indexFile), utf8).trim();
+            final File contents = hash.matches("[0-9a-f]{32}") ? getByHash(hash) : null;
+
+            if (contents == null) {
+                /* The contents have been evicted, or the entry is invalid. */
+                Files.deleteIfExists(indexFile);
+            }
+
+            return contents;
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            log.warn("Unable to read cache index for " + serverItem + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Claim the fetch of a server item at a version, after a cache miss.
+     *
+     * If nobody else is fetching the item, this returns true, and the
+     * caller must fetch it, store it with put() and then call finishFetch().
+     * Otherwise, this waits for the other fetch to finish and returns false,
+     * and the caller should look the item up again.
+     *
+     * @param  serverItem The server path of the item.
+     * @param  version    The changeset version of the item.
+     * @return            Whether the caller should fetch the item.
+     */
+    public boolean startFetch(final String serverItem, final int version)
+                              throws InterruptedException {
+        final String key = version + ";" + serverItem;
+
+        synchronized (fetching) {
+            if (fetching.add(key)) {
+                return true;
+            }
+
+            while (fetching.contains(key)) {
+                fetching.wait();
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Release a fetch claimed with startFetch().
+     *
+     * @param serverItem The server path of the item.
+     * @param version    The changeset version of the item.
+     */
+    public void finishFetch(final String serverItem, final int version) {
+        synchronized (fetching) {
+            fetching.remove(version + ";" + serverItem);
+            fetching.notifyAll();
+        }
+    }
+
+    /**
+     * Look up contents by their MD5 hash.
+     *
+     * @param  hash The hex-encoded MD5 hash of the contents.
+     * @return      The cached contents, or null if they aren't cached.
+     */
+    public File getByHash(final String hash) {
+        final Path objectFile = getObjectFile(hash);
+
+        try {
+            Files.setLastModifiedTime(objectFile, FileTime.fromMillis(System.currentTimeMillis()));
+            return objectFile.toFile();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the contents of a server item at a version.
+     *
+     * @param  serverItem   The server path of the item.
+     * @param  version      The changeset version of the item.
+     * @param  contents     The contents.
+     * @param  expectedHash The MD5 hash reported by TFS for the contents,
+     *                      if known. If the contents don't match this hash,
+     *                      they won't be cached.
+     */
+    public void put(final String serverItem, final int version,
+                    final ScratchContent contents, final byte[] expectedHash) {
+        try {
+            final Path tempFile = Files.createTempFile(objectsDir, "object", ".tmp");
+            final byte[] hashBytes;
+            long size = 0;
+
+            try {
+                final MessageDigest digest = MessageDigest.getInstance("MD5");
+
+                try(final InputStream input = contents.openStream();
+                    final FileChannel output = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int length;
+
+                    while ((length = input.read(buffer)) > 0) {
+                        digest.update(buffer, 0, length);
+                        output.write(ByteBuffer.wrap(buffer, 0, length));
+                        size += length;
+                    }
+
+                    output.force(true);
+                }
+
+                hashBytes = digest.digest();
+
+                if (expectedHash != null && expectedHash.length > 0 &&
+                    !Arrays.equals(hashBytes, expectedHash)) {
+                    log.warn("Contents of " + serverItem + ";C" + version +
+                             " don't match the hash reported by TFS; not caching");
+                    return;
+                }
+
+                final String hash = toHex(hashBytes);
+                final Path objectFile = getObjectFile(hash);
+
+                Files.createDirectories(objectFile.getParent());
+
+                if (Files.exists(objectFile)) {
+                    log.info("Contents of " + serverItem + ";C" + version + " are already cached");
+                } else {
+                    moveIntoPlace(tempFile, objectFile);
+                    addToTotalSize(size);
+                }
+
+                writeIndex(serverItem, version, hash);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (final IOException|NoSuchAlgorithmException e) {
+            log.warn("Unable to cache " + serverItem + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record the hash of the contents for a server item and version.
+     *
+     * @param serverItem The server path of the item.
+     * @param version    The changeset version of the item.
+     * @param hash       The hex-encoded MD5 hash of the contents.
+     */
+    private void writeIndex(final String serverItem, final int version,
+                            final String hash)
+                            throws IOException {
+        final Path indexFile = getIndexFile(serverItem, version);
+        Files.createDirectories(indexFile.getParent());
+
+        final Path tempFile = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+
+        try {
+            Files.write(tempFile, hash.getBytes(utf8));
+            moveIntoPlace(tempFile, indexFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Atomically move a file into place, replacing any existing file.
+     *
+     * @param source The file to move.
+     * @param target The destination.
+     */
+    private static void moveIntoPlace(final Path source, final Path target)
+                                      throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final FileAlreadyExistsException e) {
+            /* Another process stored the same contents first. */
+        }
+    }
+
+    /**
+     * Add to the total size of the cache, evicting entries if necessary.
+     *
+     * @param size The number of bytes added.
+     */
+    private void addToTotalSize(final long size) throws IOException {
+        synchronized (this) {
+            if (totalSize.get() == -1) {
+                /*
+                 * This is the first store during this run. Compute the size
+                 * of everything in the cache, including the new contents.
+                 */
+                long total = 0;
+
+                for (Path objectFile : listObjects()) {
+                    total += Files.size(objectFile);
+                }
+
+                totalSize.set(total);
+            } else {
+                totalSize.addAndGet(size);
+            }
+        }
+
+        if (totalSize.get() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Remove the least recently used contents until the cache fits within
+     * its size limit.
+     *
+     * Index entries referring to evicted contents are removed the next time
+     * they're looked up.
+     */
+    private synchronized void evict() throws IOException {
+        final long targetSize = (long)(maxSize * EVICTION_TARGET);
+
+        if (totalSize.get() <= targetSize) {
+            return;
+        }
+
+        final List<Path> objects = listObjects();
+        final List<FileTime> times = new ArrayList<FileTime>();
+
+        for (Path objectFile : objects) {
+            times.add(Files.getLastModifiedTime(objectFile));
+        }
+
+        final Integer[] order = new Integer[objects.size()];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                return times.get(a).compareTo(times.get(b));
+            }
+        });
+
+        for (int i : order) {
+            if (totalSize.get() <= targetSize ||
+                times.get(i).toMillis() >= startTime) {
+                break;
+            }
+
+            final Path objectFile = objects.get(i);
+            final long size = Files.size(objectFile);
+
+            try {
+                Files.delete(objectFile);
+                totalSize.addAndGet(-size);
+                log.info("Evicted " + objectFile.getFileName() + " from the cache");
+            } catch (final IOException e) {
+                log.warn("Unable to evict " + objectFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * List all stored contents.
+     *
+     * @return The paths of all stored contents.
+     */
+    private List<Path> listObjects() throws IOException {
+        final List<Path> result = new ArrayList<Path>();
+
+        try(final DirectoryStream<Path> dirs = Files.newDirectoryStream(objectsDir)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+
+                try(final DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        result.add(file);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the path for contents with a given hash.
+     *
+     * @param  hash The hex-encoded MD5 hash of the contents.
+     * @return      The path to the contents.
+     */
+    private Path getObjectFile(final String hash) {
+        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Return the index path for a server item and version.
+     *
+     * @param  serverItem The server path of the item.
+     * @param  version    The changeset version of the item.
+     * @return            The path to the index entry.
+     */
+    private Path getIndexFile(final String serverItem, final int version) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final String key = toHex(digest.digest((serverItem + ";C" + version).getBytes(utf8)));
+
+            return indexDir.resolve(key.substring(0, 2)).resolve(key);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Convert bytes to a hex string.
+     *
+     * @param  bytes The bytes to convert.
+     * @return       The hex string.
+     */
+    static String toHex(final byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+
+        return result.toString();
+    }
+}
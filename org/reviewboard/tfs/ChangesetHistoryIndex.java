@@ -0,0 +1,390 @@
+package org.reviewboard.tfs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Changeset;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.ChangesetVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.DateVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.LatestVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.VersionSpec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A persistent index of the changesets which affect a working directory.
+ *
+ * Resolving a revision means asking the server for the history of the
+ * working directory, even when the same revisions were resolved a moment
+ * ago. This index keeps the ID and date of every changeset in that history
+ * (newer than some point), so that changeset, date and latest versions can
+ * be resolved locally.
+ *
+ * The first sync fetches the most recent INITIAL_SYNC_CHANGES changesets.
+ * After that, each sync only fetches changesets newer than the newest one
+ * in the index. Every changeset at or after coveredFrom is in the index, so
+ * lookups which need older history are left to the server.
+ *
+ * Latest versions sync the index first, unless a TTL was given and the
+ * index was synced within it, in which case changesets checked in since
+ * then are missed. Changeset versions newer than anything in the index
+ * always sync first.
+ *
+ * There is one index file per workspace and working directory:
+ *
+ *     <root>/<SHA-1 of scope>
+ *
+ * It starts with a header line holding the format, coveredFrom and the
+ * time of the last sync, followed by an "<id>\t<date>" line for each
+ * changeset in ascending order. Indexes stay loaded between runs in the
+ * same process (such as the daemon), and are reloaded if another process
+ * updates the file.
+ */
+public class ChangesetHistoryIndex {
+    private static Log log = LogFactory.getLog(ChangesetHistoryIndex.class);
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private static final String FORMAT = "rb-tfs-history-1";
+
+    /*
+     * The number of changesets fetched when an index is first created.
+     */
+    private static final int INITIAL_SYNC_CHANGES = 1000;
+
+    private static final Map<Path, ChangesetHistoryIndex> loaded =
+        new HashMap<Path, ChangesetHistoryIndex>();
+
+    private final Path file;
+    private long fileModified = -1;
+
+    /*
+     * The changeset IDs (ascending) and their dates, in milliseconds.
+     */
+    private int[] ids = new int[0];
+    private long[] dates = new long[0];
+    private int count = 0;
+
+    /*
+     * Every changeset with an ID at least this is in the index. This is 0
+     * if the index has never been synced.
+     */
+    private int coveredFrom = 0;
+    private long syncedAt = 0;
+
+    private long ttlMs;
+
+    private ChangesetHistoryIndex(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the index for a working directory.
+     *
+     * @param  root  The directory to store indexes in.
+     * @param  scope A string identifying the workspace and working
+     *               directory which the index is for.
+     * @param  ttlMs How long latest versions can be answered without
+     *               syncing, in milliseconds.
+     * @return       The index.
+     */
+    public static ChangesetHistoryIndex open(final File root,
+                                             final String scope,
+                                             final long ttlMs)
+                                             throws IOException {
+        Files.createDirectories(root.toPath());
+
+        final Path file = root.toPath().resolve(sha1(scope));
+        ChangesetHistoryIndex index;
+
+        synchronized (loaded) {
+            index = loaded.get(file);
+
+            if (index == null) {
+                index = new ChangesetHistoryIndex(file);
+                loaded.put(file, index);
+            }
+        }
+
+        synchronized (index) {
+            index.ttlMs = ttlMs;
+            index.reloadIfChanged();
+        }
+
+        return index;
+    }
+
+    /**
+     * Return whether a changeset is within the range covered by the index.
+     *
+     * @param  changesetId The changeset ID.
+     * @return             Whether every changeset from the given one onward
+     *                     is known.
+     */
+    public synchronized boolean covers(final int changesetId) {
+        return coveredFrom > 0 && changesetId >= coveredFrom;
+    }
+
+    /**
+     * Return the IDs of the latest changesets up to a version.
+     *
+     * This syncs the index first if needed. If the version can't be
+     * resolved from the index, null is returned and the caller should ask
+     * the server.
+     *
+     * @param  versionControl The version control client.
+     * @param  path           The path the history is for.
+     * @param  toVersion      The newest version to look up.
+     * @param  maxChanges     The number of changesets to return.
+     * @param  stats          The stats to record server calls in.
+     * @return                The changeset IDs, newest first, or null.
+     */
+    public synchronized int[] getChangesetIDs(final VersionControlClient versionControl,
+                                              final String path,
+                                              final VersionSpec toVersion,
+                                              final int maxChanges,
+                                              final RunStats stats) {
+        int last;
+
+        if (toVersion instanceof LatestVersionSpec) {
+            if (coveredFrom == 0 || System.currentTimeMillis() - syncedAt >= ttlMs) {
+                if (!sync(versionControl, path, stats)) {
+                    return null;
+                }
+            }
+
+            last = count - 1;
+        } else if (toVersion instanceof ChangesetVersionSpec) {
+            final int toId = ((ChangesetVersionSpec)toVersion).getChangeset();
+
+            if (coveredFrom == 0 || count == 0 || toId > ids[count - 1]) {
+                if (!sync(versionControl, path, stats)) {
+                    return null;
+                }
+            }
+
+            /*
+             * Nothing newer affects this path, but only the server knows
+             * whether the changeset exists.
+             */
+            if (count == 0 || toId > ids[count - 1]) {
+                return null;
+            }
+
+            last = Arrays.binarySearch(ids, 0, count, toId);
+
+            if (last < 0) {
+                last = -last - 2;
+            }
+        } else if (toVersion instanceof DateVersionSpec) {
+            final long date = ((DateVersionSpec)toVersion).getDate().getTimeInMillis();
+
+            /*
+             * Changesets newer than the newest one in the index could have
+             * been checked in before the date, so only dates up to that one
+             * can be answered.
+             */
+            if (count == 0 || date > dates[count - 1]) {
+                return null;
+            }
+
+            last = Arrays.binarySearch(dates, 0, count, date);
+
+            if (last < 0) {
+                last = -last - 2;
+            } else {
+                while (last + 1 < count && dates[last + 1] == date) {
+                    last++;
+                }
+            }
+
+            if (last < 0) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        final int found = Math.min(maxChanges, last + 1);
+
+        /* Older changesets may exist that the index doesn't have. */
+        if (found < maxChanges && coveredFrom != 1) {
+            return null;
+        }
+
+        final int[] result = new int[found];
+
+        for (int i = 0; i < found; i++) {
+            result[i] = ids[last - i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Fetch any changesets newer than the newest one in the index.
+     *
+     * @param  versionControl The version control client.
+     * @param  path           The path the history is for.
+     * @param  stats          The stats to record the server call in.
+     * @return                Whether the sync succeeded.
+     */
+    private boolean sync(final VersionControlClient versionControl, final String path,
+                         final RunStats stats) {
+        final int newest = count > 0 ? ids[count - 1] : 0;
+        final boolean initial = coveredFrom == 0;
+        final RunStats.Timer timer = stats.startServerCall("queryHistory", path);
+        final Changeset[] changes;
+
+        try {
+            changes = versionControl.queryHistory(
+                path, LatestVersionSpec.INSTANCE, 0, RecursionType.FULL, null,
+                newest > 0 ? new ChangesetVersionSpec(newest) : null,
+                LatestVersionSpec.INSTANCE,
+                initial ? INITIAL_SYNC_CHANGES : Integer.MAX_VALUE,
+                false, false, false, false);
+        } catch (final RuntimeException e) {
+            log.warn("Unable to sync the changeset history index: " + e.getMessage());
+            return false;
+        }
+
+        timer.stop();
+
+        /* History is returned newest first. */
+        int added = 0;
+
+        for (int i = changes.length - 1; i >= 0; i--) {
+            final int id = changes[i].getChangesetID();
+
+            if (id > newest && (added == 0 || id > ids[count - 1])) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.max(16, count * 2));
+                    dates = Arrays.copyOf(dates, ids.length);
+                }
+
+                ids[count] = id;
+                dates[count] = changes[i].getDate().getTimeInMillis();
+                count++;
+                added++;
+            }
+        }
+
+        if (initial) {
+            coveredFrom = changes.length < INITIAL_SYNC_CHANGES || count == 0 ? 1 : ids[0];
+        }
+
+        syncedAt = System.currentTimeMillis();
+        log.info("Synced " + added + " changesets into the history index for " + path);
+        save();
+
+        return true;
+    }
+
+    /**
+     * Load the index file if it has been written since it was last loaded.
+     */
+    private void reloadIfChanged() {
+        final long modified;
+        final List<String> lines;
+
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+
+            if (modified == fileModified) {
+                return;
+            }
+
+            lines = Files.readAllLines(file, utf8);
+        } catch (final NoSuchFileException e) {
+            return;
+        } catch (final IOException e) {
+            log.warn("Unable to read the changeset history index: " + e.getMessage());
+            return;
+        }
+
+        final String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split("\t");
+
+        if (header.length != 3 || !header[0].equals(FORMAT)) {
+            log.warn("Ignoring changeset history index with an unknown format");
+            return;
+        }
+
+        try {
+            final int[] newIds = new int[lines.size() - 1];
+            final long[] newDates = new long[newIds.length];
+
+            for (int i = 0; i < newIds.length; i++) {
+                final String line = lines.get(i + 1);
+                final int tab = line.indexOf('\t');
+
+                newIds[i] = Integer.parseInt(line.substring(0, tab));
+                newDates[i] = Long.parseLong(line.substring(tab + 1));
+            }
+
+            coveredFrom = Integer.parseInt(header[1]);
+            syncedAt = Long.parseLong(header[2]);
+            ids = newIds;
+            dates = newDates;
+            count = newIds.length;
+            fileModified = modified;
+        } catch (final NumberFormatException|IndexOutOfBoundsException e) {
+            log.warn("Ignoring corrupt changeset history index");
+        }
+    }
+
+    /**
+     * Write the index file.
+     */
+    private void save() {
+        try {
+            final Path tempFile = Files.createTempFile(file.getParent(), "history", ".tmp");
+
+            try {
+                try(final BufferedWriter writer = Files.newBufferedWriter(tempFile, utf8)) {
+                    writer.write(FORMAT + "\t" + coveredFrom + "\t" + syncedAt + "\n");
+
+                    for (int i = 0; i < count; i++) {
+                        writer.write(ids[i] + "\t" + dates[i] + "\n");
+                    }
+                }
+
+                try {
+                    Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            fileModified = Files.getLastModifiedTime(file).toMillis();
+        } catch (final IOException e) {
+            log.warn("Unable to write the changeset history index: " + e.getMessage());
+        }
+    }
+
+    private static String sha1(final String value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return BaseContentCache.toHex(digest.digest(value.getBytes(utf8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.reviewboard.tfs;
+
+import java.net.URI;
+import java.util.HashMap;
+
+import com.microsoft.tfs.core.clients.versioncontrol.workspacecache.WorkspaceInfo;
+import com.microsoft.tfs.core.httpclient.Credentials;
+import com.microsoft.tfs.core.httpclient.DefaultNTCredentials;
+import com.microsoft.tfs.core.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.reviewboard.tfs.TFSCollection;
+
+
+/**
+ * A pool of authenticated TFS connections.
+ *
+ * This is used by the daemon to keep connections open between commands.
+ * Connections are keyed by the server URI and the credentials used to
+ * connect. Commands are run one at a time by the daemon, so a connection is
+ * only ever used by a single command at once, and the workdir and workspace
+ * can be updated for each command.
+ */
+public class CollectionPool {
+    private static Log log = LogFactory.getLog(CollectionPool.class);
+    private final HashMap<String, TFSCollection> collections = new HashMap<String, TFSCollection>();
+
+    /**
+     * Return a connection to TFS, creating it if necessary.
+     *
+     * @param  serverURI   The TFS server to connect to.
+     * @param  credentials The credentials to connect with.
+     * @param  workdir     The local workdir for the command.
+     * @param  workspace   The workspace for the command.
+     * @return             The connection to TFS.
+     */
+    public synchronized TFSCollection getCollection(final URI serverURI,
+                                                    final Credentials credentials,
+                                                    final String workdir,
+                                                    final WorkspaceInfo workspace) {
+        final String key = serverURI + "\0" + getCredentialsKey(credentials);
+        TFSCollection collection = collections.get(key);
+
+        if (collection == null) {
+            log.info("Opening new pooled connection to " + serverURI);
+            collection = new TFSCollection(serverURI, credentials, workdir, workspace);
+            collection.setPooled();
+            collections.put(key, collection);
+        } else {
+            log.info("Reusing pooled connection to " + serverURI);
+            collection.workdir = workdir;
+            collection.workspace = workspace;
+        }
+
+        return collection;
+    }
+
+    /**
+     * Close all connections in the pool.
+     */
+    public synchronized void close() {
+        for (TFSCollection collection : collections.values()) {
+            collection.closeConnection();
+        }
+
+        collections.clear();
+    }
+
+    /**
+     * Return a string identifying a set of credentials.
+     *
+     * @param  credentials The credentials.
+     * @return             A key for the credentials.
+     */
+    private static String getCredentialsKey(final Credentials credentials) {
+        if (credentials == null) {
+            return "none";
+        } else if (credentials instanceof UsernamePasswordCredentials) {
+            final UsernamePasswordCredentials userCredentials =
+                (UsernamePasswordCredentials)credentials;
+
+            return "user\0" + userCredentials.getUsername() + "\0" +
+                   userCredentials.getPassword();
+        } else if (credentials instanceof DefaultNTCredentials) {
+            return "default";
+        } else {
+            return credentials.getClass().getName() + "\0" +
+                   System.identityHashCode(credentials);
+        }
+    }
+}
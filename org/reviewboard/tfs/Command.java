@@ -1,6 +1,8 @@
 package org.reviewboard.tfs;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
 
 import com.microsoft.tfs.core.clients.versioncontrol.Workstation;
 import com.microsoft.tfs.core.clients.versioncontrol.path.LocalPath;
@@ -31,8 +33,62 @@ import org.reviewboard.tfs.TFSCollection;
 public abstract class Command {
     private static Log log = LogFactory.getLog(Command.class);
 
+    /*
+     * The streams the command should use for its input and output. These are
+     * the standard streams, unless the command is being run by the daemon on
+     * behalf of a client.
+     */
+    protected InputStream in = System.in;
+    protected PrintStream out = System.out;
+    protected PrintStream err = System.err;
+
+    private String currentDirectory = null;
+    private CollectionPool collectionPool = null;
+
+    /*
+     * Timings and counters for this run, which are printed by --stats.
+     */
+    protected final RunStats stats = new RunStats();
+
     public abstract String getUsage();
-    public abstract void run(CommandLine commandLine) throws ParseException;
+
+    /**
+     * Run the command.
+     *
+     * @param  commandLine    Command-line arguments.
+     * @return                The exit code for the process.
+     * @throws ParseException An error parsing the command line.
+     */
+    public abstract int run(CommandLine commandLine) throws ParseException;
+
+    /**
+     * Return the timings and counters for this run.
+     *
+     * @return The stats.
+     */
+    final RunStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Set up the command to run on behalf of a daemon client.
+     *
+     * @param in               The client's standard input.
+     * @param out              The client's standard output.
+     * @param err              The client's standard error.
+     * @param currentDirectory The client's current directory.
+     * @param collectionPool   The pool of open TFS connections.
+     */
+    final void setDaemonContext(final InputStream in, final PrintStream out,
+                                final PrintStream err,
+                                final String currentDirectory,
+                                final CollectionPool collectionPool) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.currentDirectory = currentDirectory;
+        this.collectionPool = collectionPool;
+    }
 
     /**
      * Returns the command-line arguments that this command accepts.
@@ -56,6 +112,31 @@ public abstract class Command {
         };
     }
 
+    /**
+     * Return the value of an option which must be a positive integer.
+     *
+     * @param  commandLine    Command-line arguments.
+     * @param  name           The name of the option.
+     * @return                The parsed value.
+     * @throws ParseException The value was not a positive integer.
+     */
+    protected static int getPositiveIntOption(final CommandLine commandLine,
+                                              final String name)
+                                              throws ParseException {
+        final String value = commandLine.getOptionValue(name);
+
+        try {
+            final int result = Integer.parseInt(value);
+
+            if (result > 0) {
+                return result;
+            }
+        } catch (final NumberFormatException e) {
+        }
+
+        throw new ParseException("--" + name + " requires a positive number, not \"" + value + "\"");
+    }
+
     /**
      * Returns a connection to TFS.
      *
@@ -63,20 +144,78 @@ public abstract class Command {
      * @return             The connection to TFS.
      */
     protected final TFSCollection getCollection(final CommandLine commandLine) {
-        final String workdir = new File(
-            commandLine.hasOption("workdir")
-            ? commandLine.getOptionValue("workdir")
-            : LocalPath.getCurrentWorkingDirectory()).getAbsolutePath();
+        final String workdir = getWorkdir(commandLine);
         log.info("Using working directory " + workdir);
 
+        RunStats.Timer timer = stats.startPhase("workspace");
         final WorkspaceInfo workspace = getLocalWorkspace(workdir);
+        timer.stop();
 
         final java.net.URI serverURI = workspace.getServerURI();
         log.info("Using TFS server " + serverURI);
 
+        timer = stats.startPhase("credentials");
         final Credentials credentials = findCredentials(serverURI, commandLine.getOptionValue("login"));
+        timer.stop();
+
+        timer = stats.startPhase("connect");
+
+        try {
+            if (collectionPool != null) {
+                return collectionPool.getCollection(serverURI, credentials, workdir, workspace);
+            } else {
+                return new TFSCollection(serverURI, credentials, workdir, workspace);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Returns the absolute path of the local workdir.
+     *
+     * Relative paths are resolved against the current directory of the
+     * process, or of the daemon client.
+     *
+     * @param  commandLine The parsed command line.
+     * @return             The workdir.
+     */
+    protected final String getWorkdir(final CommandLine commandLine) {
+        return resolvePath(commandLine.hasOption("workdir")
+                           ? commandLine.getOptionValue("workdir")
+                           : ".").getAbsolutePath();
+    }
+
+    /**
+     * Resolve a path given on the command line.
+     *
+     * Relative paths are resolved against the current directory of the
+     * process, or of the daemon client.
+     *
+     * @param  path The path to resolve.
+     * @return      The resolved path.
+     */
+    protected final File resolvePath(final String path) {
+        final File file = new File(path);
 
-        return new TFSCollection(serverURI, credentials, workdir, workspace);
+        if (file.isAbsolute()) {
+            return file;
+        } else if (path.equals(".")) {
+            return new File(getCurrentDirectory());
+        } else {
+            return new File(getCurrentDirectory(), path);
+        }
+    }
+
+    /**
+     * Returns the current directory of the process, or of the daemon client.
+     *
+     * @return The current directory.
+     */
+    private String getCurrentDirectory() {
+        return currentDirectory != null
+               ? currentDirectory
+               : LocalPath.getCurrentWorkingDirectory();
     }
 
     /**
@@ -88,6 +227,8 @@ public abstract class Command {
      * @return           A credentials object.
      */
     protected static Credentials findCredentials(java.net.URI serverURI, String login) {
+        Application.setUpNativeLibraries();
+
         final CredentialsManager credentialsManager = CredentialsManagerFactory.getCredentialsManager(
             DefaultPersistenceStoreProvider.INSTANCE,
             !Application.getBooleanEnvVar("TF_USE_KEYCHAIN", true));
@@ -119,6 +260,8 @@ public abstract class Command {
      * @return         TFS workspace information.
      */
     protected static WorkspaceInfo getLocalWorkspace(final String workdir) {
+        Application.setUpNativeLibraries();
+
         final Workstation workstation = Workstation.getCurrent(DefaultPersistenceStoreProvider.INSTANCE);
 
         if (workdir != null && workstation.isMapped(workdir)) {
@@ -0,0 +1,383 @@
+package org.reviewboard.tfs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.tfs.core.exceptions.TECoreException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A command to perform many diffs at once.
+ *
+ * Each line of the batch file (or standard input) lists the revisions for
+ * one diff, in the same form as the diff command, optionally followed by
+ * the owner of a shelveset tip. The fields are separated by tabs, since
+ * shelveset names and owners may contain spaces:
+ *
+ *     <revision1>\t<revision2>[\t<shelveset owner>]
+ *
+ * Spaces around each field are ignored, and no field may be empty. Blank
+ * lines and lines starting with "#" are ignored.
+ *
+ * All diffs run in this process over a single TFS connection, a few at a
+ * time, and share one base file cache (a temporary one, unless --cache-dir
+ * is given), so each base version is downloaded once for the whole batch.
+ * The diff for the Nth revision line is written to <N>.diff in the output
+ * directory, and its status to <N>.json, where N is zero-padded to four
+ * digits (0001.diff, 0001.json, ...) so the files sort in batch order. Each
+ * status is also printed to standard output as a line of JSON, in the
+ * order of the batch.
+ */
+public class CommandBatchDiff extends CommandDiff {
+    private static Log log = LogFactory.getLog(CommandBatchDiff.class);
+    private static final int DEFAULT_MAX_CONCURRENT = 4;
+
+    /*
+     * Options of the diff command which don't apply to a batch.
+     */
+    private static final List<String> unsupportedOptions = Arrays.asList(
+        "shelveset-owner", "series", "series-dir", "stream");
+
+    /**
+     * One diff in the batch.
+     */
+    private static class Job {
+        public int number;
+        public String base;
+        public String tip;
+        public String ownerName;
+
+        /*
+         * The result, once the diff has run.
+         */
+        public int exitCode;
+        public String status;
+    }
+
+    /**
+     * Returns the command-line arguments that this command accepts.
+     *
+     * @return Options for the command-line parsing.
+     */
+    public Option[] getOptions() {
+        final List<Option> options = new ArrayList<Option>();
+
+        for (Option option : super.getOptions()) {
+            if (!unsupportedOptions.contains(option.getLongOpt())) {
+                options.add(option);
+            }
+        }
+
+        options.add(Option.builder()
+            .longOpt("output-dir")
+            .desc("Write each diff, and its status, to this directory.")
+            .hasArg()
+            .argName("dir")
+            .build());
+        options.add(Option.builder()
+            .longOpt("max-concurrent")
+            .desc("Number of diffs to run at once (default " +
+                  DEFAULT_MAX_CONCURRENT + ").")
+            .hasArg()
+            .argName("count")
+            .build());
+
+        return options.toArray(new Option[0]);
+    }
+
+    /**
+     * Returns a string to use when printing usage information.
+     *
+     * @return Usage information.
+     */
+    public String getUsage() {
+        return "[options] --output-dir <dir> [batch-file]";
+    }
+
+    /**
+     * Run the command.
+     *
+     * @param  commandLine    Command-line arguments.
+     * @return                The exit code for the process. This is 1 if
+     *                        any diff failed, or 2 if any had a warning.
+     * @throws ParseException An error parsing the command line or the
+     *                        batch.
+     */
+    public int run(CommandLine commandLine) throws ParseException {
+        final String[] args = commandLine.getArgs();
+
+        if (args.length > 1) {
+            throw new ParseException("batch-diff takes at most one batch file");
+        }
+
+        if (!commandLine.hasOption("output-dir")) {
+            throw new ParseException("batch-diff requires --output-dir");
+        }
+
+        final File outputDir = resolvePath(commandLine.getOptionValue("output-dir"));
+        final int maxConcurrent =
+            commandLine.hasOption("max-concurrent")
+                ? getPositiveIntOption(commandLine, "max-concurrent")
+                : DEFAULT_MAX_CONCURRENT;
+        final TFSDiffer.DiffOptions diffOptions = getDiffOptions(commandLine);
+
+        if (commandLine.hasOption("shelveset-page-depth")) {
+            shelvesetPageDepth = getPositiveIntOption(commandLine, "shelveset-page-depth");
+        }
+
+        final List<Job> jobs;
+
+        try {
+            jobs = readJobs(args.length > 0 ? args[0] : null);
+        } catch (final IOException e) {
+            err.println("Unable to read the batch: " + e.getMessage());
+            return 1;
+        }
+
+        File tempCacheDir = null;
+
+        try(final TFSCollection collection = getCollection(commandLine)) {
+            FileUtils.forceMkdir(outputDir);
+
+            if (commandLine.hasOption("include") || commandLine.hasOption("exclude")) {
+                diffOptions.pathFilter = getPathFilter(collection, commandLine);
+            }
+
+            if (diffOptions.baseCache == null) {
+                tempCacheDir = Files.createTempDirectory("rb-tfs-batch").toFile();
+                diffOptions.baseCache = new BaseContentCache(tempCacheDir, Long.MAX_VALUE);
+            }
+
+            log.info("Running " + jobs.size() + " diffs, " + maxConcurrent + " at a time");
+
+            return runJobs(collection, jobs, diffOptions, outputDir, maxConcurrent);
+        } catch (final IOException|TECoreException e) {
+            err.println(e.getMessage());
+            return 1;
+        } finally {
+            if (tempCacheDir != null) {
+                FileUtils.deleteQuietly(tempCacheDir);
+            }
+        }
+    }
+
+    /**
+     * Read the diffs to run.
+     *
+     * @param  batchFile      The file listing the diffs, or null to read
+     *                        them from standard input.
+     * @return                The diffs.
+     * @throws ParseException A line of the batch is invalid.
+     */
+    private List<Job> readJobs(final String batchFile) throws IOException, ParseException {
+        final List<Job> jobs = new ArrayList<Job>();
+        final InputStream input =
+            batchFile != null ? new FileInputStream(resolvePath(batchFile)) : in;
+
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            int lineNum = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+
+                final String[] fields = line.split("\t", -1);
+
+                if (fields.length < 2 || fields.length > 3) {
+                    throw new ParseException("Line " + lineNum + " of the batch must have two " +
+                                             "revisions and an optional shelveset owner, " +
+                                             "separated by tabs");
+                }
+
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = fields[i].trim();
+
+                    if (fields[i].isEmpty()) {
+                        throw new ParseException("Line " + lineNum + " of the batch has an " +
+                                                 "empty field");
+                    }
+                }
+
+                final Job job = new Job();
+                job.number = jobs.size() + 1;
+                job.base = fields[0];
+                job.tip = fields[1];
+                job.ownerName = fields.length > 2 ? fields[2] : null;
+                jobs.add(job);
+            }
+        } finally {
+            if (batchFile != null) {
+                input.close();
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Run the diffs, and print their statuses in order as they finish.
+     *
+     * @param  collection    The TFS collection shared by the diffs.
+     * @param  jobs          The diffs to run.
+     * @param  diffOptions   Options for the differ, shared by the diffs.
+     * @param  outputDir     The directory to write the results to.
+     * @param  maxConcurrent The number of diffs to run at once.
+     * @return               The exit code for the process.
+     */
+    private int runJobs(final TFSCollection collection, final List<Job> jobs,
+                        final TFSDiffer.DiffOptions diffOptions, final File outputDir,
+                        final int maxConcurrent) {
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(maxConcurrent, new BatchThreadFactory());
+        final List<Future<Job>> results = new ArrayList<Future<Job>>();
+        int exitCode = 0;
+
+        try {
+            for (final Job job : jobs) {
+                results.add(executor.submit(new Callable<Job>() {
+                    public Job call() {
+                        runJob(collection, job, diffOptions.copy(), outputDir);
+                        return job;
+                    }
+                }));
+            }
+
+            for (Future<Job> result : results) {
+                final Job job;
+
+                try {
+                    job = result.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    err.println("Interrupted while running the batch");
+                    return 1;
+                } catch (final ExecutionException e) {
+                    err.println(e.getCause().getMessage());
+                    return 1;
+                }
+
+                out.println(job.status);
+                out.flush();
+
+                if (job.exitCode == 1) {
+                    exitCode = 1;
+                } else if (job.exitCode == 2 && exitCode == 0) {
+                    exitCode = 2;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return exitCode;
+    }
+
+    /**
+     * Run one diff, and write its result and status.
+     *
+     * The job's exit code is set to what the diff command would return for
+     * the same diff.
+     *
+     * @param collection  The TFS collection.
+     * @param job         The diff to run.
+     * @param diffOptions Options for the differ.
+     * @param outputDir   The directory to write the results to.
+     */
+    private void runJob(final TFSCollection collection, final Job job,
+                       final TFSDiffer.DiffOptions diffOptions, final File outputDir) {
+        final String name = String.format(Locale.ROOT, "%04d", job.number);
+        final File diffFile = new File(outputDir, name + ".diff");
+        TFSDiffer.DiffResult result;
+        String error = null;
+        int exitCode;
+
+        log.info("Diffing " + job.base + " " + job.tip + " as " + name);
+
+        final RunStats.Timer timer = stats.startPhase("diff");
+
+        try {
+            result = getDiff(collection, job.base, job.tip, job.ownerName, diffOptions);
+            error = result.err;
+            exitCode = !result.success ? 1 : result.warnAboutDirty ? 2 : 0;
+
+            if (result.diff != null) {
+                try(final OutputStream diffStream = new FileOutputStream(diffFile)) {
+                    TFSDiffer.writeDiff(result, diffStream);
+                }
+            }
+        } catch (final IOException|RuntimeException e) {
+            log.warn("Diff " + name + " failed: " + e);
+            result = null;
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+            exitCode = 1;
+        }
+
+        timer.stop();
+
+        final String status =
+            "{\"job\": " + job.number +
+            ", \"base\": " + RunStats.quote(job.base) +
+            ", \"tip\": " + RunStats.quote(job.tip) +
+            ", \"owner\": " + (job.ownerName != null ? RunStats.quote(job.ownerName) : "null") +
+            ", \"diff\": " + (result != null && result.diff != null
+                              ? RunStats.quote(diffFile.getPath()) : "null") +
+            ", \"exitCode\": " + exitCode +
+            ", \"success\": " + (result != null && result.success) +
+            ", \"warnAboutDirty\": " + (result != null && result.warnAboutDirty) +
+            ", \"error\": " + (error != null ? RunStats.quote(error) : "null") +
+            "}";
+
+        try {
+            FileUtils.writeStringToFile(new File(outputDir, name + ".json"), status + "\n", "UTF-8");
+        } catch (final IOException e) {
+            log.warn("Unable to write the status of diff " + name + ": " + e.getMessage());
+        }
+
+        job.exitCode = exitCode;
+        job.status = status;
+    }
+
+    /**
+     * A thread factory for the diffs in a batch.
+     *
+     * Like download threads, these are daemon threads.
+     */
+    private static class BatchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-batch-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
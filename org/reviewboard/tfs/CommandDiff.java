@@ -1,20 +1,55 @@
 package org.reviewboard.tfs;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
+import com.microsoft.tfs.core.clients.versioncontrol.WorkspaceLocation;
 import com.microsoft.tfs.core.clients.versioncontrol.path.ServerPath;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Change;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ChangeType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Changeset;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.DeletedState;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Item;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemSet;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingSet;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Shelveset;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Workspace;
 import com.microsoft.tfs.core.clients.versioncontrol.specs.ItemSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.ChangesetVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.DateVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.LatestVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.VersionSpec;
 import com.microsoft.tfs.core.clients.versioncontrol.workspacecache.WorkspaceInfo;
 import com.microsoft.tfs.core.exceptions.TECoreException;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.logging.Log;
@@ -30,8 +65,28 @@ import org.reviewboard.tfs.TFSDiffer;
  */
 public class CommandDiff extends Command {
     private static Log log = LogFactory.getLog(CommandDiff.class);
+    private static final int STREAM_BUFFER_SIZE = 65536;
+    static final int DEFAULT_CACHE_SIZE_MB = 1024;
+
+    /*
+     * The number of folders covered by each query of a paged shelveset
+     * diff.
+     */
+    private static final int SHELVESET_PAGE_FOLDERS = 50;
+
     private CommandLine commandLine;
 
+    /*
+     * The stream to write the diff to as it's generated, when streaming.
+     */
+    private OutputStream streamOutput = null;
+
+    /*
+     * The folder depth at which shelvesets are split into pages, or 0 to
+     * query shelvesets all at once.
+     */
+    int shelvesetPageDepth = 0;
+
     /**
      * Returns the command-line arguments that this command accepts.
      *
@@ -48,6 +103,122 @@ public class CommandDiff extends Command {
                 .desc("Look up the shelveset created by the given owner.")
                 .hasArg()
                 .argName("owner")
+                .build(),
+            Option.builder()
+                .longOpt("download-threads")
+                .desc("Number of files to download concurrently (default 1).")
+                .hasArg()
+                .argName("count")
+                .build(),
+            Option.builder()
+                .longOpt("download-timeout")
+                .desc("Give up on a file download after this many seconds, " +
+                      "including any hedged request (default 0, for no " +
+                      "limit).")
+                .hasArg()
+                .argName("seconds")
+                .build(),
+            Option.builder()
+                .longOpt("no-hedged-downloads")
+                .desc("Don't start a second request for downloads which are " +
+                      "slower than most others in the diff.")
+                .build(),
+            Option.builder()
+                .longOpt("jobs")
+                .desc("Number of file diffs to compute concurrently (default 1). " +
+                      "The output is the same for any number of jobs.")
+                .hasArg()
+                .argName("count")
+                .build(),
+            Option.builder()
+                .longOpt("large-file-size")
+                .desc("Diff text files larger than this many megabytes by " +
+                      "streaming them in windows, rather than reading them " +
+                      "into memory (default 32).")
+                .hasArg()
+                .argName("megabytes")
+                .build(),
+            Option.builder()
+                .longOpt("large-file-memory")
+                .desc("Approximate memory, in megabytes, to use for each " +
+                      "windowed diff of a large file (default 64).")
+                .hasArg()
+                .argName("megabytes")
+                .build(),
+            Option.builder()
+                .longOpt("max-diff-size")
+                .desc("Report text files larger than this many megabytes " +
+                      "as changed, without diffing them (default 512).")
+                .hasArg()
+                .argName("megabytes")
+                .build(),
+            Option.builder()
+                .longOpt("cache-dir")
+                .desc("Cache base file contents in this directory between runs.")
+                .hasArg()
+                .argName("dir")
+                .build(),
+            Option.builder()
+                .longOpt("cache-size")
+                .desc("Maximum size of the base file cache, in megabytes " +
+                      "(default " + DEFAULT_CACHE_SIZE_MB + ").")
+                .hasArg()
+                .argName("megabytes")
+                .build(),
+            Option.builder()
+                .longOpt("no-section-cache")
+                .desc("Don't reuse the diffs of unchanged files from " +
+                      "previous working copy diffs.")
+                .build(),
+            Option.builder()
+                .longOpt("series")
+                .desc("Write a separate diff for each changeset in the " +
+                      "range to standard output, each preceded by a " +
+                      "\"changeset <id> <length>\" line.")
+                .build(),
+            Option.builder()
+                .longOpt("series-dir")
+                .desc("Write a separate diff for each changeset in the " +
+                      "range to <id>.diff in this directory.")
+                .hasArg()
+                .argName("dir")
+                .build(),
+            Option.builder()
+                .longOpt("stream")
+                .desc("Write the diff for each file as soon as it is ready, " +
+                      "rather than once the whole diff has been generated.")
+                .build(),
+            Option.builder()
+                .longOpt("stat")
+                .desc("Instead of the diff, write a tab-separated line for " +
+                      "each changed file with the lines added and removed " +
+                      "(\"-\" if unknown), \"text\" or \"binary\", the " +
+                      "change type, the path and, for renames and " +
+                      "branches, the source path. Lines are written as " +
+                      "each file is counted.")
+                .build(),
+            Option.builder()
+                .longOpt("include")
+                .desc("Only diff files under this path, or matching this " +
+                      "glob (*, ? and **). Paths are local or server ($/) " +
+                      "paths. This may be given more than once.")
+                .hasArg()
+                .argName("path")
+                .build(),
+            Option.builder()
+                .longOpt("exclude")
+                .desc("Leave out files under this path, or matching this " +
+                      "glob. This may be given more than once.")
+                .hasArg()
+                .argName("path")
+                .build(),
+            Option.builder()
+                .longOpt("shelveset-page-depth")
+                .desc("Query a shelveset in pages, one for each batch of " +
+                      "folders this many levels below $/, and diff each " +
+                      "page while the next is queried.")
+                .hasArg()
+                .argName("levels")
                 .build()
         });
     }
@@ -65,9 +236,10 @@ public class CommandDiff extends Command {
      * Run the command.
      *
      * @param  commandLine    Command-line arguments.
+     * @return                The exit code for the process.
      * @throws ParseException An error parsing the command line.
      */
-    public void run(CommandLine commandLine) throws ParseException {
+    public int run(CommandLine commandLine) throws ParseException {
         final String[] args = commandLine.getArgs();
 
         if (args.length != 2) {
@@ -76,41 +248,321 @@ public class CommandDiff extends Command {
 
         final String base = args[0];
         final String tip = args[1];
+        final TFSDiffer.DiffOptions diffOptions = getDiffOptions(commandLine);
+        final boolean series = commandLine.hasOption("series") ||
+                               commandLine.hasOption("series-dir");
+        final File seriesDir =
+            commandLine.hasOption("series-dir")
+                ? resolvePath(commandLine.getOptionValue("series-dir"))
+                : null;
+
+        if (series && (tip.startsWith(Revision.SHELVESET_PREFIX) ||
+                       tip.equals(Revision.WORKING_COPY))) {
+            throw new ParseException("--series requires a range of committed changesets");
+        }
+
+        if (commandLine.hasOption("stream") || diffOptions.stat) {
+            streamOutput = new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+        }
+
+        if (commandLine.hasOption("shelveset-page-depth")) {
+            shelvesetPageDepth = getPositiveIntOption(commandLine, "shelveset-page-depth");
+        }
 
         try(final TFSCollection collection = getCollection(commandLine)) {
             TFSDiffer.DiffResult diffResult = null;
 
-            if (tip.startsWith(Revision.SHELVESET_PREFIX)) {
-                final String shelvesetName = tip.substring(Revision.SHELVESET_PREFIX.length());
-                final String ownerName =
-                    commandLine.hasOption("shelveset-owner")
-                        ? commandLine.getOptionValue("shelveset-owner")
-                        : collection.workspace.getOwnerName();
+            if (commandLine.hasOption("include") || commandLine.hasOption("exclude")) {
+                diffOptions.pathFilter = getPathFilter(collection, commandLine);
+            }
+
+            if (tip.equals(Revision.WORKING_COPY) && !diffOptions.stat &&
+                !commandLine.hasOption("no-section-cache")) {
+                diffOptions.sectionCache = getSectionCache(collection, commandLine);
+            }
+
+            RunStats.Timer timer = stats.startPhase("diff");
 
-                diffResult = getShelvesetDiff(collection, shelvesetName, ownerName);
-            } else if (tip.equals(Revision.WORKING_COPY)) {
-                diffResult = getWorkingCopyDiff(collection);
+            if (series) {
+                diffResult = getChangesetSeriesDiff(collection, base, tip,
+                                                    diffOptions, seriesDir);
             } else {
-                diffResult = getCommittedChangesetsDiff(collection, base, tip);
+                diffResult = getDiff(collection, base, tip,
+                                     commandLine.getOptionValue("shelveset-owner"),
+                                     diffOptions);
             }
 
-            if (diffResult.diff != null) {
-                IOUtils.write(diffResult.diff, System.out);
+            timer.stop();
+            timer = stats.startPhase("output");
+
+            if (streamOutput != null) {
+                streamOutput.flush();
+            } else if (diffResult.diff != null) {
+                TFSDiffer.writeDiff(diffResult, out);
             }
 
+            timer.stop();
+
             if (diffResult.err != null) {
-                System.err.println(diffResult.err);
+                err.println(diffResult.err);
             }
 
             if (!diffResult.success) {
-                System.exit(1);
+                return 1;
             } else if (diffResult.warnAboutDirty) {
-                System.exit(2);
+                return 2;
             }
         } catch (final IOException|TECoreException e) {
-            System.err.println(e.getMessage());
-            System.exit(1);
+            err.println(e.getMessage());
+            return 1;
         };
+
+        return 0;
+    }
+
+    /**
+     * Do a diff between two revisions.
+     *
+     * The tip may be a shelveset, the working copy or a committed version.
+     * This is safe to call from several threads at once, as long as
+     * streaming isn't enabled.
+     *
+     * @param  collection  The TFS collection.
+     * @param  base        The base revision.
+     * @param  tip         The tip revision.
+     * @param  ownerName   The owner of a shelveset tip, or null for the
+     *                     owner of the workspace.
+     * @param  diffOptions Options for the differ.
+     * @return             The diff and/or error information.
+     */
+    final TFSDiffer.DiffResult getDiff(final TFSCollection collection,
+                                       final String base,
+                                       final String tip,
+                                       final String ownerName,
+                                       final TFSDiffer.DiffOptions diffOptions) {
+        if (tip.startsWith(Revision.SHELVESET_PREFIX)) {
+            return getShelvesetDiff(collection, tip.substring(Revision.SHELVESET_PREFIX.length()),
+                                    ownerName != null ? ownerName
+                                                      : collection.workspace.getOwnerName(),
+                                    diffOptions);
+        } else if (tip.equals(Revision.WORKING_COPY)) {
+            return getWorkingCopyDiff(collection, diffOptions);
+        } else {
+            return getCommittedChangesetsDiff(collection, base, tip, diffOptions);
+        }
+    }
+
+    /**
+     * Build the options for the differ from the command line.
+     *
+     * @param  commandLine    Command-line arguments.
+     * @return                The options to diff with.
+     * @throws ParseException An invalid option value was provided.
+     */
+    final TFSDiffer.DiffOptions getDiffOptions(final CommandLine commandLine)
+                                               throws ParseException {
+        final TFSDiffer.DiffOptions diffOptions = new TFSDiffer.DiffOptions();
+        diffOptions.stats = stats;
+
+        if (commandLine.hasOption("download-threads")) {
+            diffOptions.downloadThreads = getPositiveIntOption(commandLine, "download-threads");
+        }
+
+        if (commandLine.hasOption("download-timeout") ||
+            commandLine.hasOption("no-hedged-downloads")) {
+            long timeoutMs = HedgedDownloader.DEFAULT_TIMEOUT_MS;
+
+            if (commandLine.hasOption("download-timeout")) {
+                try {
+                    timeoutMs = Integer.parseInt(commandLine.getOptionValue("download-timeout")) * 1000L;
+                } catch (final NumberFormatException e) {
+                    timeoutMs = -1;
+                }
+
+                if (timeoutMs < 0) {
+                    throw new ParseException("--download-timeout requires a number of seconds, not \"" +
+                                             commandLine.getOptionValue("download-timeout") + "\"");
+                }
+            }
+
+            diffOptions.downloader = new HedgedDownloader(
+                timeoutMs, !commandLine.hasOption("no-hedged-downloads"));
+        }
+
+        diffOptions.stat = commandLine.hasOption("stat");
+
+        if (commandLine.hasOption("jobs")) {
+            diffOptions.jobs = getPositiveIntOption(commandLine, "jobs");
+        }
+
+        if (commandLine.hasOption("large-file-size")) {
+            diffOptions.largeFileSize =
+                getPositiveIntOption(commandLine, "large-file-size") * 1024L * 1024;
+        }
+
+        if (commandLine.hasOption("large-file-memory")) {
+            diffOptions.largeFileMemory =
+                getPositiveIntOption(commandLine, "large-file-memory") * 1024L * 1024;
+        }
+
+        if (commandLine.hasOption("max-diff-size")) {
+            diffOptions.maxDiffFileSize =
+                getPositiveIntOption(commandLine, "max-diff-size") * 1024L * 1024;
+        }
+
+        if (commandLine.hasOption("cache-dir")) {
+            final long cacheSize =
+                commandLine.hasOption("cache-size")
+                    ? getPositiveIntOption(commandLine, "cache-size")
+                    : DEFAULT_CACHE_SIZE_MB;
+
+            try {
+                diffOptions.baseCache = new BaseContentCache(
+                    resolvePath(commandLine.getOptionValue("cache-dir")),
+                    cacheSize * 1024 * 1024);
+            } catch (final IOException e) {
+                log.warn("Unable to use the base file cache: " + e.getMessage());
+            }
+        }
+
+        return diffOptions;
+    }
+
+    /**
+     * Build the filter for the --include and --exclude options.
+     *
+     * @param  collection     The TFS collection.
+     * @param  commandLine    Command-line arguments.
+     * @return                The filter.
+     * @throws ParseException A local path isn't mapped in the workspace.
+     */
+    final PathFilter getPathFilter(final TFSCollection collection,
+                                   final CommandLine commandLine)
+                                   throws ParseException {
+        final Workspace workspace = collection.workspace.getWorkspace(collection);
+
+        return new PathFilter(getServerPatterns(workspace, commandLine.getOptionValues("include")),
+                              getServerPatterns(workspace, commandLine.getOptionValues("exclude")));
+    }
+
+    /**
+     * Convert path patterns given on the command line to server paths.
+     *
+     * Server paths are used as-is. For local paths, the part before the
+     * first glob is resolved and mapped to a server path, and the rest is
+     * appended to it.
+     *
+     * @param  workspace      The workspace to map local paths with.
+     * @param  patterns       The patterns, or null if there are none.
+     * @return                The server path patterns.
+     * @throws ParseException A local path isn't mapped in the workspace.
+     */
+    private List<String> getServerPatterns(final Workspace workspace,
+                                           final String[] patterns)
+                                           throws ParseException {
+        final List<String> result = new ArrayList<String>();
+
+        if (patterns == null) {
+            return result;
+        }
+
+        for (String pattern : patterns) {
+            if (pattern.startsWith(ServerPath.ROOT)) {
+                result.add(pattern);
+                continue;
+            }
+
+            final String normalized = pattern.replace('\\', '/');
+            int globStart = normalized.length();
+
+            for (int i = 0; i < normalized.length(); i++) {
+                if (normalized.charAt(i) == '*' || normalized.charAt(i) == '?') {
+                    globStart = i;
+                    break;
+                }
+            }
+
+            final String literal;
+            final String rest;
+
+            if (globStart == normalized.length()) {
+                literal = normalized;
+                rest = "";
+            } else {
+                final int slash = normalized.lastIndexOf('/', globStart);
+
+                literal = slash > 0 ? normalized.substring(0, slash) : slash == 0 ? "/" : ".";
+                rest = normalized.substring(slash + 1);
+            }
+
+            final String localPath = resolvePath(literal).getAbsolutePath();
+            final String serverPath =
+                workspace != null ? workspace.getMappedServerPath(localPath) : null;
+
+            if (serverPath == null) {
+                throw new ParseException("\"" + pattern + "\" is not mapped in the workspace");
+            }
+
+            if (rest.isEmpty()) {
+                result.add(serverPath);
+            } else {
+                result.add(serverPath + (serverPath.endsWith("/") ? "" : "/") + rest);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Open the diff section cache for the working copy.
+     *
+     * The cache is kept in the "sections" directory of the cache directory
+     * if one was given, or of ~/.rb-tfs otherwise.
+     *
+     * @param  collection  The TFS collection.
+     * @param  commandLine Command-line arguments.
+     * @return             The cache, or null if it can't be used.
+     */
+    private DiffSectionCache getSectionCache(final TFSCollection collection,
+                                             final CommandLine commandLine) {
+        final File root =
+            commandLine.hasOption("cache-dir")
+                ? new File(resolvePath(commandLine.getOptionValue("cache-dir")), "sections")
+                : new File(new File(System.getProperty("user.home"), ".rb-tfs"), "sections");
+        final WorkspaceInfo workspace = collection.workspace;
+
+        try {
+            return new DiffSectionCache(root, workspace.getServerURI() + "\n" +
+                                              workspace.getName() + ";" +
+                                              workspace.getOwnerName() + "\n" +
+                                              collection.workdir);
+        } catch (final IOException e) {
+            log.warn("Unable to use the diff section cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Diff a set of pending changes.
+     *
+     * If streaming is enabled, the diff is written out as it's generated.
+     * Otherwise, it's returned in the result.
+     *
+     * @param  pendingSets    The pending sets to diff.
+     * @param  versionControl The version control client.
+     * @param  diffOptions    Options for the differ.
+     * @return                The diff and/or error information.
+     */
+    private TFSDiffer.DiffResult diffPendingSets(final PendingSet[] pendingSets,
+                                                 final VersionControlClient versionControl,
+                                                 final TFSDiffer.DiffOptions diffOptions) {
+        if (streamOutput != null) {
+            return TFSDiffer.getInstance().diffPendingSets(
+                pendingSets, versionControl, diffOptions, streamOutput);
+        } else {
+            return TFSDiffer.getInstance().diffPendingSets(
+                pendingSets, versionControl, diffOptions);
+        }
     }
 
     /**
@@ -119,57 +571,851 @@ public class CommandDiff extends Command {
      * @param  collection    The TFS collection.
      * @param  shelvesetName The name of the shelveset.
      * @param  ownerName     The owner of the shelveset.
+     * @param  diffOptions   Options for the differ.
      * @return               The diff and/or error information.
      */
     private TFSDiffer.DiffResult getShelvesetDiff(final TFSCollection collection,
                                                   final String shelvesetName,
-                                                  final String ownerName) {
+                                                  final String ownerName,
+                                                  final TFSDiffer.DiffOptions diffOptions) {
         final VersionControlClient versionControl = collection.getVersionControlClient();
 
+        if (shelvesetPageDepth > 0) {
+            return getPagedShelvesetDiff(versionControl, shelvesetName, ownerName,
+                                         diffOptions);
+        }
+
         log.info("Querying for shelveset '" + shelvesetName + "' (" + ownerName + ")");
 
+        final RunStats.Timer timer = stats.startServerCall("queryShelvedChanges", shelvesetName);
+        final ItemSpec[] specs =
+            diffOptions.pathFilter != null && diffOptions.pathFilter.hasIncludes()
+                ? diffOptions.pathFilter.getItemSpecs()
+                : null;
         final PendingSet[] pendingSets = versionControl.queryShelvedChanges(
-            shelvesetName, ownerName, null, true);
+            shelvesetName, ownerName, specs, true);
+        timer.stop();
+
+        return diffPendingSets(pendingSets, versionControl, diffOptions);
+    }
+
+    /**
+     * Do a diff of a shelveset, querying its changes in pages.
+     *
+     * Querying a huge shelveset all at once means waiting for one enormous
+     * response, and holding every change in memory, before the diff can
+     * start. Instead, the shelveset is split up by folder.
+     *
+     * The folder tree is walked down to the page depth, one level at a
+     * time. At each level, the changes directly inside the level's folders
+     * are queried (a batch of folders at a time) and diffed, and the
+     * folders for the next level are listed. These are the folders that
+     * existed on the server when the shelveset was created, the folders on
+     * the server now (including deleted ones), and any folders added or
+     * renamed by the shelveset itself. Every shelved change is inside one of
+     * these, even if its folder has since been deleted or renamed on the
+     * server. Each folder at the page depth is then queried with
+     * full recursion, again in batches. Each of those pages is diffed while
+     * the next one is queried on another thread, and is dropped once it has
+     * been diffed.
+     *
+     * If --include was given, the walk starts at the included paths
+     * instead of $/.
+     *
+     * Files appear in the diff in page order, rather than in the order of a
+     * single query.
+     *
+     * @param  versionControl The version control client.
+     * @param  shelvesetName  The name of the shelveset.
+     * @param  ownerName      The owner of the shelveset.
+     * @param  diffOptions    Options for the differ.
+     * @return                The diff and/or error information.
+     */
+    private TFSDiffer.DiffResult getPagedShelvesetDiff(final VersionControlClient versionControl,
+                                                       final String shelvesetName,
+                                                       final String ownerName,
+                                                       final TFSDiffer.DiffOptions diffOptions) {
+        final ScratchContent.Writer diffWriter =
+            streamOutput != null ? null : new ScratchContent.Writer();
+        final OutputStream diffStream = streamOutput != null ? streamOutput : diffWriter;
+        final TFSDiffer.DiffResult result = new TFSDiffer.DiffResult();
+
+        try {
+            diffPagedShelveset(versionControl, shelvesetName, ownerName, diffOptions,
+                               diffStream, result);
+        } finally {
+            if (diffWriter != null) {
+                TFSDiffer.setDiff(result, diffWriter);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Diff a shelveset in pages of folders, into a combined result.
+     *
+     * @param versionControl The version control client.
+     * @param shelvesetName  The name of the shelveset.
+     * @param ownerName      The owner of the shelveset.
+     * @param diffOptions    Options for the differ.
+     * @param diffStream     The stream to write the diff to.
+     * @param result         The combined result.
+     */
+    private void diffPagedShelveset(final VersionControlClient versionControl,
+                                    final String shelvesetName,
+                                    final String ownerName,
+                                    final TFSDiffer.DiffOptions diffOptions,
+                                    final OutputStream diffStream,
+                                    final TFSDiffer.DiffResult result) {
+        List<String> folders =
+            diffOptions.pathFilter != null && diffOptions.pathFilter.hasIncludes()
+                ? diffOptions.pathFilter.getIncludeRoots()
+                : Collections.singletonList(ServerPath.ROOT);
+
+        log.info("Querying for shelveset '" + shelvesetName + "' (" + ownerName +
+                 ") in pages of " + SHELVESET_PAGE_FOLDERS + " folders, " +
+                 shelvesetPageDepth + " levels deep");
+
+        final VersionSpec shelvedVersion = getShelvedVersion(versionControl, shelvesetName, ownerName);
+
+        for (int depth = 0; depth < shelvesetPageDepth && !folders.isEmpty(); depth++) {
+            final Set<String> children = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+            for (List<String> batch : getFolderBatches(folders)) {
+                final PendingSet[] page = queryShelvesetPage(
+                    versionControl, shelvesetName, ownerName, batch, RecursionType.ONE_LEVEL);
+
+                for (PendingSet set : page) {
+                    for (PendingChange change : set.getPendingChanges()) {
+                        if (change.getItemType() == ItemType.FOLDER) {
+                            children.add(change.getServerItem());
+                        }
+                    }
+                }
+
+                if (!diffShelvesetPage(page, versionControl, diffOptions, diffStream, result)) {
+                    return;
+                }
+            }
+
+            children.addAll(getChildFolders(versionControl, folders, LatestVersionSpec.INSTANCE,
+                                            DeletedState.ANY));
+
+            if (shelvedVersion != null) {
+                children.addAll(getChildFolders(versionControl, folders, shelvedVersion,
+                                                DeletedState.NON_DELETED));
+            }
+
+            children.removeAll(folders);
+            folders = new ArrayList<String>(children);
+        }
+
+        final List<List<String>> batches = getFolderBatches(folders);
+        final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new ShelvesetQueryThreadFactory());
+
+        try {
+            Future<PendingSet[]> next = null;
+
+            for (int i = 0; i < batches.size(); i++) {
+                final PendingSet[] page =
+                    next != null ? waitForPage(next)
+                                 : queryShelvesetPage(versionControl, shelvesetName, ownerName,
+                                                      batches.get(i), RecursionType.FULL);
+
+                if (i + 1 < batches.size()) {
+                    final List<String> nextBatch = batches.get(i + 1);
+
+                    next = executor.submit(new Callable<PendingSet[]>() {
+                        public PendingSet[] call() {
+                            return queryShelvesetPage(versionControl, shelvesetName, ownerName,
+                                                      nextBatch, RecursionType.FULL);
+                        }
+                    });
+                }
+
+                if (!diffShelvesetPage(page, versionControl, diffOptions, diffStream, result)) {
+                    return;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Query the changes in a shelveset under a batch of folders.
+     *
+     * @param  versionControl The version control client.
+     * @param  shelvesetName  The name of the shelveset.
+     * @param  ownerName      The owner of the shelveset.
+     * @param  folders        The folders to query.
+     * @param  recursion      The recursion for each folder.
+     * @return                The pending sets for the page.
+     */
+    private PendingSet[] queryShelvesetPage(final VersionControlClient versionControl,
+                                            final String shelvesetName,
+                                            final String ownerName,
+                                            final List<String> folders,
+                                            final RecursionType recursion) {
+        final ItemSpec[] specs = new ItemSpec[folders.size()];
+
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new ItemSpec(folders.get(i), recursion);
+        }
+
+        final RunStats.Timer timer = stats.startServerCall(
+            "queryShelvedChanges", shelvesetName + " " + folders.get(0) +
+            (folders.size() > 1 ? " (+" + (folders.size() - 1) + ")" : ""));
+        final PendingSet[] page = versionControl.queryShelvedChanges(
+            shelvesetName, ownerName, specs, true);
+        timer.stop();
 
-        return TFSDiffer.getInstance().diffPendingSets(pendingSets, versionControl);
+        return page != null ? page : new PendingSet[0];
+    }
+
+    /**
+     * Diff one page of a shelveset, adding it to the combined result.
+     *
+     * @param  page           The pending sets for the page.
+     * @param  versionControl The version control client.
+     * @param  diffOptions    Options for the differ.
+     * @param  diffStream     The stream to write the diff to.
+     * @param  result         The combined result.
+     * @return                Whether the page was diffed successfully.
+     */
+    private boolean diffShelvesetPage(final PendingSet[] page,
+                                      final VersionControlClient versionControl,
+                                      final TFSDiffer.DiffOptions diffOptions,
+                                      final OutputStream diffStream,
+                                      final TFSDiffer.DiffResult result) {
+        if (page.length == 0) {
+            return true;
+        }
+
+        final TFSDiffer.DiffResult pageResult = TFSDiffer.getInstance().diffPendingSets(
+            page, versionControl, diffOptions, diffStream);
+
+        result.warnAboutDirty |= pageResult.warnAboutDirty;
+
+        if (!pageResult.success) {
+            result.success = false;
+            result.err = pageResult.err;
+        }
+
+        return pageResult.success;
+    }
+
+    /**
+     * Return the version of the server at the time a shelveset was created.
+     *
+     * @param  versionControl The version control client.
+     * @param  shelvesetName  The name of the shelveset.
+     * @param  ownerName      The owner of the shelveset.
+     * @return                The version, or null if the shelveset couldn't
+     *                        be found.
+     */
+    private VersionSpec getShelvedVersion(final VersionControlClient versionControl,
+                                          final String shelvesetName,
+                                          final String ownerName) {
+        final RunStats.Timer timer = stats.startServerCall("queryShelvesets", shelvesetName);
+        final Shelveset[] shelvesets = versionControl.queryShelvesets(shelvesetName, ownerName, null);
+        timer.stop();
+
+        if (shelvesets == null || shelvesets.length != 1) {
+            log.warn("Unable to look up when shelveset '" + shelvesetName + "' was created; " +
+                     "changes under folders renamed since then may be missing");
+            return null;
+        }
+
+        return new DateVersionSpec(shelvesets[0].getCreationDate());
+    }
+
+    /**
+     * Return the folders on the server directly inside a set of folders.
+     *
+     * @param  versionControl The version control client.
+     * @param  folders        The parent folders.
+     * @param  version        The version to list the folders at.
+     * @param  deletedState   Which folders to list, by whether they're
+     *                        deleted.
+     * @return                The child folders.
+     */
+    private List<String> getChildFolders(final VersionControlClient versionControl,
+                                         final List<String> folders,
+                                         final VersionSpec version,
+                                         final DeletedState deletedState) {
+        final List<String> result = new ArrayList<String>();
+
+        for (List<String> batch : getFolderBatches(folders)) {
+            final ItemSpec[] specs = new ItemSpec[batch.size()];
+
+            for (int i = 0; i < specs.length; i++) {
+                specs[i] = new ItemSpec(batch.get(i), RecursionType.ONE_LEVEL);
+            }
+
+            final RunStats.Timer timer = stats.startServerCall("getItems", batch.get(0));
+            final ItemSet[] itemSets = versionControl.getItems(
+                specs, version, deletedState, ItemType.FOLDER, false);
+            timer.stop();
+
+            for (int i = 0; i < itemSets.length; i++) {
+                for (Item item : itemSets[i].getItems()) {
+                    /* Each set includes the parent folder itself. */
+                    if (!item.getServerItem().equalsIgnoreCase(batch.get(i))) {
+                        result.add(item.getServerItem());
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Split a list of folders into batches for querying.
+     *
+     * @param  folders The folders.
+     * @return         The batches, each of up to SHELVESET_PAGE_FOLDERS
+     *                 folders.
+     */
+    private static List<List<String>> getFolderBatches(final List<String> folders) {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        for (int i = 0; i < folders.size(); i += SHELVESET_PAGE_FOLDERS) {
+            batches.add(folders.subList(i, Math.min(folders.size(), i + SHELVESET_PAGE_FOLDERS)));
+        }
+
+        return batches;
+    }
+
+    /**
+     * Wait for the query for a page of a shelveset to finish.
+     *
+     * @param  future The pending query.
+     * @return        The pending sets for the page.
+     */
+    private static PendingSet[] waitForPage(final Future<PendingSet[]> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while querying shelveset", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
     }
 
     /**
      * Do a diff of the working copy.
      *
-     * @param  collection The TFS collection;
-     * @return            The diff and/or error information.
+     * For a server workspace, the pending changes are queried from the
+     * server. A local workspace's pending changes and base contents are read
+     * from its local metadata instead, and the local files are scanned in
+     * parallel, so the diff needs no server calls unless a baseline is
+     * missing.
+     *
+     * @param  collection  The TFS collection;
+     * @param  diffOptions Options for the differ.
+     * @return             The diff and/or error information.
      */
-    private TFSDiffer.DiffResult getWorkingCopyDiff(final TFSCollection collection) {
+    private TFSDiffer.DiffResult getWorkingCopyDiff(final TFSCollection collection,
+                                                    final TFSDiffer.DiffOptions diffOptions) {
         final VersionControlClient versionControl = collection.getVersionControlClient();
         final WorkspaceInfo workspace = collection.workspace;
+        final PathFilter pathFilter = diffOptions.pathFilter;
+        final boolean narrowed = pathFilter != null && pathFilter.hasIncludes();
         final String[] items = new String[]{ collection.workdir };
-        final ItemSpec[] specs = ItemSpec.fromStrings(items, RecursionType.FULL);
+
+        /*
+         * The include roots are clipped to the working directory, so that
+         * --include never pulls in pending changes from outside it.
+         */
+        final List<String> roots =
+            narrowed ? pathFilter.getIncludeRoots(getServerScope(collection)) : null;
+        final ItemSpec[] specs =
+            narrowed ? PathFilter.toItemSpecs(roots) : ItemSpec.fromStrings(items, RecursionType.FULL);
 
         log.info("Doing diff of working copy");
 
-        final PendingSet[] pendingSets = versionControl.queryPendingSets(
-            specs, true, workspace.getName(), workspace.getOwnerName(), true);
+        if (narrowed && roots.isEmpty()) {
+            log.warn("None of the --include paths are within " + collection.workdir);
+        }
+
+        final TFSDiffer.DiffResult result;
+
+        if (workspace.getLocation() == WorkspaceLocation.LOCAL) {
+            /*
+             * A local workspace keeps its pending changes and baselines on
+             * disk, so the diff can be made without contacting the server.
+             */
+            RunStats.Timer timer = stats.startPhase("pendingChanges");
+            final Workspace localWorkspace = workspace.getWorkspace(collection);
+            final String[] scopes =
+                narrowed ? roots.toArray(new String[0])
+                         : new String[]{ getServerScope(collection) };
+            final AtomicReference<PendingChange[]> candidates = new AtomicReference<PendingChange[]>();
+            final PendingChange[] changes =
+                scopes.length > 0
+                    ? localWorkspace.getPendingChangesWithCandidates(
+                          ItemSpec.fromStrings(scopes, RecursionType.FULL), true, candidates)
+                    : null;
+            final List<PendingChange> changeList = new ArrayList<PendingChange>();
+            boolean hasCandidates = false;
+
+            if (changes != null) {
+                for (PendingChange change : changes) {
+                    if (pathFilter == null || pathFilter.matches(change.getServerItem())) {
+                        changeList.add(change);
+                    }
+                }
+            }
+
+            /*
+             * Candidate changes are edited or new files which haven't been
+             * pended. Like the server query, these only trigger a warning.
+             */
+            if (candidates.get() != null) {
+                for (PendingChange candidate : candidates.get()) {
+                    if (pathFilter == null || pathFilter.matches(candidate.getServerItem())) {
+                        hasCandidates = true;
+                    }
+                }
+            }
+
+            timer.stop();
+
+            log.info("Found " + changeList.size() + " pending changes in local workspace");
+
+            timer = stats.startPhase("baselines");
+            diffOptions.localBaselines = LocalBaselineStore.load(localWorkspace, getBaseItems(changeList));
+            timer.stop();
+
+            timer = stats.startPhase("scan");
+            diffOptions.localFiles = LocalFileScan.scan(getLocalItems(changeList));
+            timer.stop();
+
+            final PendingChange[] changeArray = changeList.toArray(new PendingChange[0]);
+
+            if (streamOutput != null) {
+                result = TFSDiffer.getInstance().diffPendingChanges(
+                    changeArray, versionControl, diffOptions, streamOutput);
+            } else {
+                result = TFSDiffer.getInstance().diffPendingChanges(
+                    changeArray, versionControl, diffOptions);
+            }
+
+            result.warnAboutDirty |= hasCandidates;
+        } else {
+            final RunStats.Timer timer = stats.startServerCall("queryPendingSets", collection.workdir);
+            final PendingSet[] pendingSets =
+                specs.length > 0
+                    ? versionControl.queryPendingSets(specs, true, workspace.getName(),
+                                                      workspace.getOwnerName(), true)
+                    : new PendingSet[0];
+            timer.stop();
+
+            result = diffPendingSets(pendingSets, versionControl, diffOptions);
+        }
+
+        /*
+         * A filtered diff leaves out files whose cached sections are still
+         * valid, so only a complete diff may prune the cache.
+         */
+        if (result.success && diffOptions.sectionCache != null && pathFilter == null) {
+            diffOptions.sectionCache.prune();
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the server paths of the base versions of a set of pending
+     * changes.
+     *
+     * @param  changes The pending changes.
+     * @return         The base server paths.
+     */
+    private static List<String> getBaseItems(final List<PendingChange> changes) {
+        final List<String> result = new ArrayList<String>();
 
-        return TFSDiffer.getInstance().diffPendingSets(pendingSets, versionControl);
+        for (PendingChange change : changes) {
+            if (change.isRename() || change.isBranch()) {
+                result.add(change.getSourceServerItem());
+            } else if (!change.isAdd()) {
+                result.add(change.getServerItem());
+            }
+        }
+
+        return result;
     }
 
     /**
-     * Do a diff of the working copy.
+     * Return the local paths of the new versions of a set of pending
+     * changes.
      *
-     * @param  collection The TFS collection;
-     * @return            The diff and/or error information.
+     * @param  changes The pending changes.
+     * @return         The local paths.
+     */
+    private static List<String> getLocalItems(final List<PendingChange> changes) {
+        final List<String> result = new ArrayList<String>();
+
+        for (PendingChange change : changes) {
+            if (!change.isDelete() && change.getLocalItem() != null) {
+                result.add(change.getLocalItem());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Do a diff between two committed changesets.
+     *
+     * Rather than accumulating the changes made by every changeset in the
+     * range, this compares the state of every file under the working
+     * directory at the two versions. Files are matched up by item ID, so
+     * renames within the range are shown as renames, and files whose
+     * contents (according to their hashes) and paths are the same at both
+     * versions are skipped without being downloaded.
+     *
+     * @param  collection  The TFS collection.
+     * @param  base        The base version.
+     * @param  tip         The tip version.
+     * @param  diffOptions Options for the differ.
+     * @return             The diff and/or error information.
      */
     private TFSDiffer.DiffResult getCommittedChangesetsDiff(final TFSCollection collection,
                                                             final String base,
-                                                            final String tip) {
+                                                            final String tip,
+                                                            final TFSDiffer.DiffOptions diffOptions) {
+        final VersionControlClient versionControl = collection.getVersionControlClient();
+        final VersionSpec baseVersion = VersionSpec.parseSingleVersionFromSpec(base, null);
+        final VersionSpec tipVersion = VersionSpec.parseSingleVersionFromSpec(tip, null);
+        final String scope = getServerScope(collection);
+
+        log.info("Doing diff of " + scope + " between " + base + " and " + tip);
+
+        final Map<Integer, Item> baseItems = getFileItems(versionControl, scope, baseVersion);
+        final Map<Integer, Item> tipItems = getFileItems(versionControl, scope, tipVersion);
+        final List<TFSDiffer.CommittedChange> changes = new ArrayList<TFSDiffer.CommittedChange>();
+
+        for (Item tipItem : tipItems.values()) {
+            final Item baseItem = baseItems.remove(tipItem.getItemID());
+
+            if (baseItem == null) {
+                changes.add(new TFSDiffer.CommittedChange(null, tipItem));
+            } else if (baseItem.getChangeSetID() != tipItem.getChangeSetID() &&
+                       (!baseItem.getServerItem().equals(tipItem.getServerItem()) ||
+                        !TFSDiffer.hashesMatch(baseItem.getContentHashValue(),
+                                               tipItem.getContentHashValue()))) {
+                changes.add(new TFSDiffer.CommittedChange(baseItem, tipItem));
+            }
+        }
+
+        /* Anything left in the base version was deleted. */
+        for (Item baseItem : baseItems.values()) {
+            changes.add(new TFSDiffer.CommittedChange(baseItem, null));
+        }
+
+        Collections.sort(changes, new Comparator<TFSDiffer.CommittedChange>() {
+            public int compare(final TFSDiffer.CommittedChange a,
+                               final TFSDiffer.CommittedChange b) {
+                return getPath(a).compareTo(getPath(b));
+            }
+
+            private String getPath(final TFSDiffer.CommittedChange change) {
+                return (change.newItem != null ? change.newItem : change.oldItem).getServerItem();
+            }
+        });
+
+        log.info("Found " + changes.size() + " changed files");
+
+        if (streamOutput != null) {
+            return TFSDiffer.getInstance().diffCommittedChanges(
+                changes, versionControl, diffOptions, streamOutput);
+        } else {
+            final ScratchContent.Writer diffStream = new ScratchContent.Writer();
+            final TFSDiffer.DiffResult result = TFSDiffer.getInstance().diffCommittedChanges(
+                changes, versionControl, diffOptions, diffStream);
+
+            TFSDiffer.setDiff(result, diffStream);
+
+            return result;
+        }
+    }
+
+    /**
+     * Write a separate diff for each changeset between two versions.
+     *
+     * All changesets after base, up to and including tip, are diffed in a
+     * single pass over one connection. Each changeset's old file versions
+     * are normally the new versions from an earlier changeset in the
+     * series, so the items seen so far are remembered and only items not
+     * yet seen are looked up on the server. File contents are fetched
+     * through the base cache (a temporary one if none was configured), so
+     * each version is downloaded at most once.
+     *
+     * @param  collection  The TFS collection.
+     * @param  base        The base version.
+     * @param  tip         The tip version.
+     * @param  diffOptions Options for the differ.
+     * @param  seriesDir   The directory to write the diffs to, or null to
+     *                     write them to standard output.
+     * @return             Error information for the diff.
+     */
+    private TFSDiffer.DiffResult getChangesetSeriesDiff(final TFSCollection collection,
+                                                        final String base,
+                                                        final String tip,
+                                                        final TFSDiffer.DiffOptions diffOptions,
+                                                        final File seriesDir)
+                                                        throws IOException {
+        final VersionControlClient versionControl = collection.getVersionControlClient();
+        final String scope = getServerScope(collection);
+        final int baseId = getChangesetID(versionControl, scope,
+                                          VersionSpec.parseSingleVersionFromSpec(base, null));
+        final RunStats.Timer timer = stats.startServerCall("queryHistory", scope);
+        final Changeset[] changesets = versionControl.queryHistory(
+            scope,
+            LatestVersionSpec.INSTANCE,
+            0,
+            RecursionType.FULL,
+            null,
+            new ChangesetVersionSpec(baseId + 1),
+            VersionSpec.parseSingleVersionFromSpec(tip, null),
+            Integer.MAX_VALUE,
+            true,
+            false,
+            true,
+            true);
+        timer.stop();
+
+        log.info("Writing diffs for " + changesets.length + " changesets in " + scope);
+
+        File tempCacheDir = null;
+
+        if (diffOptions.baseCache == null) {
+            tempCacheDir = Files.createTempDirectory("rb-tfs-series").toFile();
+            diffOptions.baseCache = new BaseContentCache(tempCacheDir, Long.MAX_VALUE);
+        }
+
+        if (seriesDir != null) {
+            FileUtils.forceMkdir(seriesDir);
+        }
+
         /*
-         * TODO: Implement. This will involve querying for all the changesets
-         * between base and tip, and then accumulating all changes together.
+         * The latest known state of each item, keyed by item ID. A null
+         * value means the item has been deleted.
          */
-        TFSDiffer.DiffResult result = new TFSDiffer.DiffResult();
-        result.err = "Diffing between committed revisions isn't implemented yet.";
-        result.success = false;
-        return result;
+        final Map<Integer, Item> knownItems = new HashMap<Integer, Item>();
+        final OutputStream seriesOutput = new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+
+        try {
+            for (Changeset changeset : changesets) {
+                final int changesetId = changeset.getChangesetID();
+                final List<TFSDiffer.CommittedChange> changes =
+                    getChangesetChanges(versionControl, changeset, knownItems);
+                final TFSDiffer.DiffResult result;
+
+                log.info("Diffing changeset " + changesetId + " (" + changes.size() + " files)");
+
+                if (seriesDir != null) {
+                    try(final OutputStream diffStream = new BufferedOutputStream(
+                            new FileOutputStream(new File(seriesDir, changesetId + ".diff")),
+                            STREAM_BUFFER_SIZE)) {
+                        result = TFSDiffer.getInstance().diffCommittedChanges(
+                            changes, versionControl, diffOptions, diffStream);
+                    }
+                } else {
+                    final ScratchContent.Writer diffStream = new ScratchContent.Writer();
+                    result = TFSDiffer.getInstance().diffCommittedChanges(
+                        changes, versionControl, diffOptions, diffStream);
+                    TFSDiffer.setDiff(result, diffStream);
+
+                    if (result.success) {
+                        IOUtils.write("changeset " + changesetId + " " + result.diff.size() + "\n",
+                                      seriesOutput, "UTF-8");
+                        TFSDiffer.writeDiff(result, seriesOutput);
+                        result.diff = null;
+                        seriesOutput.flush();
+                    }
+                }
+
+                if (!result.success) {
+                    result.err = "Changeset " + changesetId + ": " + result.err;
+                    return result;
+                }
+            }
+        } finally {
+            if (tempCacheDir != null) {
+                diffOptions.baseCache = null;
+                FileUtils.deleteQuietly(tempCacheDir);
+            }
+        }
+
+        return new TFSDiffer.DiffResult();
+    }
+
+    /**
+     * Return the changes made to files by a changeset.
+     *
+     * The state of each item before the changeset is taken from the known
+     * items where possible. The rest are looked up in a single query. The
+     * known items are then updated with the state after the changeset.
+     *
+     * @param  versionControl The version control client.
+     * @param  changeset      The changeset, including its changes.
+     * @param  knownItems     The latest known state of each item.
+     * @return                The changes to diff.
+     */
+    private List<TFSDiffer.CommittedChange> getChangesetChanges(final VersionControlClient versionControl,
+                                                                final Changeset changeset,
+                                                                final Map<Integer, Item> knownItems) {
+        final List<Item> newItems = new ArrayList<Item>();
+        final List<Boolean> deleted = new ArrayList<Boolean>();
+        final List<Integer> unknownIds = new ArrayList<Integer>();
+
+        for (Change change : changeset.getChanges()) {
+            final Item item = change.getItem();
+
+            if (item.getItemType() != ItemType.FILE) {
+                continue;
+            }
+
+            newItems.add(item);
+            deleted.add(change.getChangeType().contains(ChangeType.DELETE));
+
+            if (!knownItems.containsKey(item.getItemID())) {
+                unknownIds.add(item.getItemID());
+            }
+        }
+
+        if (!unknownIds.isEmpty()) {
+            final int[] ids = new int[unknownIds.size()];
+
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = unknownIds.get(i);
+            }
+
+            final RunStats.Timer timer = stats.startServerCall(
+                "getItems", "C" + (changeset.getChangesetID() - 1));
+            final Item[] oldItems = versionControl.getItems(
+                ids, changeset.getChangesetID() - 1, true);
+            timer.stop();
+
+            for (int i = 0; i < ids.length; i++) {
+                knownItems.put(ids[i], oldItems[i]);
+            }
+        }
+
+        final List<TFSDiffer.CommittedChange> changes = new ArrayList<TFSDiffer.CommittedChange>();
+
+        for (int i = 0; i < newItems.size(); i++) {
+            final Item newItem = newItems.get(i);
+            final Item oldItem = knownItems.get(newItem.getItemID());
+
+            if (deleted.get(i)) {
+                if (oldItem != null) {
+                    changes.add(new TFSDiffer.CommittedChange(oldItem, null));
+                }
+
+                knownItems.put(newItem.getItemID(), null);
+            } else {
+                changes.add(new TFSDiffer.CommittedChange(oldItem, newItem));
+                knownItems.put(newItem.getItemID(), newItem);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Return the ID of the changeset that a version refers to.
+     *
+     * @param  versionControl The version control client.
+     * @param  scope          The path to look up the version for.
+     * @param  version        The version.
+     * @return                The changeset ID.
+     */
+    private int getChangesetID(final VersionControlClient versionControl,
+                               final String scope,
+                               final VersionSpec version) {
+        if (version instanceof ChangesetVersionSpec) {
+            return ((ChangesetVersionSpec)version).getChangeset();
+        }
+
+        final RunStats.Timer timer = stats.startServerCall("queryHistory", scope);
+        final Changeset[] changesets = versionControl.queryHistory(
+            scope, LatestVersionSpec.INSTANCE, 0, RecursionType.FULL, null,
+            null, version, 1, false, false, false, false);
+        timer.stop();
+
+        return changesets.length > 0 ? changesets[0].getChangesetID() : 0;
+    }
+
+    /**
+     * Return the server path that the working directory is mapped to.
+     *
+     * @param  collection The TFS collection.
+     * @return            The server path, or the working directory itself if
+     *                    it couldn't be mapped.
+     */
+    private String getServerScope(final TFSCollection collection) {
+        final Workspace workspace = collection.workspace.getWorkspace(collection);
+        final String serverPath =
+            workspace != null ? workspace.getMappedServerPath(collection.workdir) : null;
+
+        return serverPath != null ? serverPath : collection.workdir;
+    }
+
+    /**
+     * Return all files under a path at a version, keyed by item ID.
+     *
+     * @param  versionControl The version control client.
+     * @param  scope          The path to query.
+     * @param  version        The version to query.
+     * @return                The files, in server path order.
+     */
+    private Map<Integer, Item> getFileItems(final VersionControlClient versionControl,
+                                            final String scope,
+                                            final VersionSpec version) {
+        final RunStats.Timer timer = stats.startServerCall("getItems", scope + ";" + version);
+        final ItemSet[] itemSets = versionControl.getItems(
+            new ItemSpec[]{ new ItemSpec(scope, RecursionType.FULL) },
+            version, DeletedState.NON_DELETED, ItemType.FILE, true);
+        timer.stop();
+
+        final Map<Integer, Item> items = new LinkedHashMap<Integer, Item>();
+
+        for (ItemSet itemSet : itemSets) {
+            for (Item item : itemSet.getItems()) {
+                items.put(item.getItemID(), item);
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * A thread factory for querying pages of a shelveset.
+     *
+     * The threads are marked as daemon threads, so that an abandoned query
+     * never keeps the process alive.
+     */
+    private static class ShelvesetQueryThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-shelveset-query-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
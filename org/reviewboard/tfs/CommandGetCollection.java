@@ -1,5 +1,6 @@
 package org.reviewboard.tfs;
 
+import com.microsoft.tfs.core.clients.versioncontrol.workspacecache.WorkspaceInfo;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.Log;
@@ -27,11 +28,24 @@ public class CommandGetCollection extends Command {
      * Run the command.
      *
      * @param  commandLine    Command-line arguments.
+     * @return                The exit code for the process.
      * @throws ParseException An error parsing the command line.
      */
-    public void run(CommandLine commandLine) throws ParseException {
-        try(final TFSCollection collection = getCollection(commandLine)) {
-            System.out.println(collection.getBaseURI());
+    public int run(CommandLine commandLine) throws ParseException {
+        /*
+         * The collection URL is recorded in the local workspace cache, so
+         * there's no need to look up credentials or connect to TFS.
+         */
+        final String workdir = getWorkdir(commandLine);
+        final WorkspaceInfo workspace = getLocalWorkspace(workdir);
+
+        if (workspace == null) {
+            err.println(workdir + " is not in a TFS workspace");
+            return 1;
         }
+
+        out.println(workspace.getServerURI());
+
+        return 0;
     }
 }
@@ -1,16 +1,29 @@
 package org.reviewboard.tfs;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Changeset;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Shelveset;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.version.ChangesetVersionSpec;
 import com.microsoft.tfs.core.clients.versioncontrol.specs.version.LatestVersionSpec;
 import com.microsoft.tfs.core.clients.versioncontrol.specs.version.VersionSpec;
 import com.microsoft.tfs.core.clients.versioncontrol.specs.version.WorkspaceVersionSpec;
+import com.microsoft.tfs.core.clients.versioncontrol.workspacecache.WorkspaceInfo;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -22,6 +35,39 @@ import org.reviewboard.tfs.TFSCollection;
 public class CommandParseRevision extends Command {
     private static Log log = LogFactory.getLog(CommandParseRevision.class);
 
+    /*
+     * How long, in seconds, the history index can answer latest versions
+     * without syncing. By default it always syncs, so that a changeset
+     * which was just checked in is never missed.
+     */
+    private static final int DEFAULT_HISTORY_TTL = 0;
+
+    /*
+     * The number of changesets fetched ahead of time, per changeset version
+     * in a batch. Changeset IDs are shared by the whole collection, so a
+     * range between two IDs can hold any number of changesets.
+     */
+    private static final int PREFETCH_CHANGES_PER_VERSION = 8;
+
+    /*
+     * The local index of the working directory's history, if enabled.
+     */
+    private ChangesetHistoryIndex historyIndex = null;
+
+    /*
+     * The (lower-case) names of the owner's shelvesets, if they've been
+     * listed ahead of time.
+     */
+    private Set<String> shelvesetNames = null;
+
+    /*
+     * Changeset IDs (newest first) fetched ahead of time for a range of
+     * changesets.
+     */
+    private int[] prefetchedIds = null;
+    private int prefetchedFrom;
+    private int prefetchedTo;
+
     /**
      * Returns a string to use when printing usage information.
      *
@@ -43,6 +89,25 @@ public class CommandParseRevision extends Command {
                 .desc("Look up the shelveset created by the given owner.")
                 .hasArg()
                 .argName("owner")
+                .build(),
+            Option.builder()
+                .longOpt("batch")
+                .desc("Read revisions from standard input, one request per " +
+                      "line, and write one line of results per request.")
+                .build(),
+            Option.builder()
+                .longOpt("no-history-index")
+                .desc("Always resolve revisions with the server, rather " +
+                      "than the local index of changeset history.")
+                .build(),
+            Option.builder()
+                .longOpt("history-ttl")
+                .desc("Resolve the latest version from the history index " +
+                      "without syncing it, if it was synced within this " +
+                      "many seconds. Changesets checked in since then are " +
+                      "missed (default " + DEFAULT_HISTORY_TTL + ").")
+                .hasArg()
+                .argName("seconds")
                 .build()
         });
     }
@@ -51,82 +116,352 @@ public class CommandParseRevision extends Command {
      * Run the command.
      *
      * @param  commandLine    Command-line arguments.
+     * @return                The exit code for the process.
      * @throws ParseException An error parsing the command line.
      */
-    public void run(CommandLine commandLine) throws ParseException {
+    public int run(CommandLine commandLine) throws ParseException {
         final String[] revision = commandLine.getArgs();
 
+        if (commandLine.hasOption("batch") && revision.length > 0) {
+            throw new ParseException("--batch reads revisions from standard input");
+        }
+
+        final int historyTtl =
+            commandLine.hasOption("history-ttl")
+                ? getPositiveIntOption(commandLine, "history-ttl")
+                : DEFAULT_HISTORY_TTL;
+
         try(final TFSCollection collection = getCollection(commandLine)) {
-            /*
-             * If there are no revisions specified, we want the working
-             * directory.
-             */
-            if (revision.length == 0) {
-                final VersionSpec version = new WorkspaceVersionSpec(collection.workspace.getWorkspace(collection));
-                final Changeset change = getChanges(collection, null, version, 1)[0];
-
-                System.out.println(change.getChangesetID());
-                System.out.println(Revision.WORKING_COPY);
-
-                return;
+            final String ownerName = commandLine.hasOption("shelveset-owner")
+                                     ? commandLine.getOptionValue("shelveset-owner")
+                                     : collection.workspace.getOwnerName();
+
+            if (!commandLine.hasOption("no-history-index")) {
+                historyIndex = getHistoryIndex(collection, historyTtl);
             }
 
-            /*
-             * If there's a single revision specified, first check to see if
-             * it's a shelveset.
-             */
-            if (revision.length == 1) {
-                final String ownerName = commandLine.hasOption("owner")
-                                         ? commandLine.getOptionValue("owner")
-                                         : collection.workspace.getOwnerName();
-                final VersionControlClient versionControl = collection.getVersionControlClient();
-                final Shelveset[] shelvesets = versionControl.queryShelvesets(revision[0], ownerName, null);
-
-                if (shelvesets.length == 1) {
-                    System.out.println(Revision.SHELVESET_BASE);
-                    System.out.println(Revision.SHELVESET_PREFIX + revision[0]);
-
-                    return;
-                }
+            if (commandLine.hasOption("batch")) {
+                return runBatch(collection, ownerName);
+            }
+
+            for (String result : parseRevision(collection, revision, ownerName)) {
+                out.println(result);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Parse revisions read from standard input.
+     *
+     * Each line of input contains the revisions for one request, separated
+     * by whitespace, and results in one line of output containing the
+     * parsed revisions separated by spaces. If a request can't be parsed,
+     * its output line starts with "error:".
+     *
+     * All input is read before any queries are made, so that the requests
+     * can share queries. The shelvesets for the owner are listed once, and
+     * changeset numbers that the history index can't answer are resolved
+     * with a single history query covering as many of them as a bounded
+     * number of changesets allows. Any left over are queried one by one.
+     *
+     * @param  collection The TFS collection.
+     * @param  ownerName  The owner to look up shelvesets for.
+     * @return            The exit code for the process.
+     */
+    private int runBatch(final TFSCollection collection, final String ownerName) {
+        final List<String[]> requests = new ArrayList<String[]>();
+
+        try {
+            for (String line : IOUtils.readLines(in, "UTF-8")) {
+                final String trimmed = line.trim();
+                requests.add(trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+"));
             }
+        } catch (final IOException e) {
+            err.println("Unable to read revisions: " + e.getMessage());
+            return 1;
+        }
 
-            VersionSpec fromVersion = null;
-            VersionSpec toVersion = null;
+        final List<Integer> changesetIds = new ArrayList<Integer>();
+        boolean needShelvesets = false;
 
-            if (revision.length == 1) {
-                final VersionSpec[] versions = VersionSpec.parseMultipleVersionsFromSpec(revision[0], null, true);
+        for (String[] revision : requests) {
+            needShelvesets |= revision.length == 1;
 
-                if (versions.length == 1) {
-                    toVersion = versions[0];
-                } else if (versions.length == 2) {
-                    fromVersion = versions[0];
-                    toVersion = versions[1];
-                } else {
-                    assert false : versions;
+            try {
+                for (VersionSpec version : getVersions(revision)) {
+                    if (version instanceof ChangesetVersionSpec) {
+                        changesetIds.add(((ChangesetVersionSpec)version).getChangeset());
+                    }
                 }
-            } else if (revision.length == 2) {
-                fromVersion = VersionSpec.parseSingleVersionFromSpec(revision[0], null);
-                toVersion = VersionSpec.parseSingleVersionFromSpec(revision[1], null);
-            } else {
-                throw new ParseException("parse-revision takes between zero and two revisions");
+            } catch (final ParseException|RuntimeException e) {
+                /* This will be reported when the request is parsed. */
             }
+        }
 
-            Changeset[] changes = null;
-            if (fromVersion == null) {
-                changes = getChanges(collection, fromVersion, toVersion, 2);
+        if (needShelvesets) {
+            log.info("Listing shelvesets for " + ownerName);
+            shelvesetNames = new HashSet<String>();
 
-                ArrayUtils.reverse(changes);
-            } else {
-                changes = new Changeset[]{
-                    getChanges(collection, null, fromVersion, 1)[0],
-                    getChanges(collection, null, toVersion, 1)[0],
-                };
+            final RunStats.Timer timer = stats.startServerCall("queryShelvesets", ownerName);
+            final Shelveset[] shelvesets =
+                collection.getVersionControlClient().queryShelvesets(null, ownerName, null);
+            timer.stop();
+
+            for (Shelveset shelveset : shelvesets) {
+                shelvesetNames.add(shelveset.getName().toLowerCase());
             }
+        }
 
-            for (Changeset change : changes) {
-                System.out.println(change.getChangesetID());
+        if (!changesetIds.isEmpty() &&
+            (historyIndex == null || !historyIndex.covers(Collections.min(changesetIds)))) {
+            prefetchHistory(collection, Collections.max(changesetIds),
+                            PREFETCH_CHANGES_PER_VERSION * changesetIds.size());
+        }
+
+        int exitCode = 0;
+
+        for (String[] revision : requests) {
+            try {
+                out.println(StringUtils.join(parseRevision(collection, revision, ownerName), ' '));
+            } catch (final ParseException|RuntimeException e) {
+                out.println("error: " + e.getMessage());
+                exitCode = 1;
             }
         }
+
+        return exitCode;
+    }
+
+    /**
+     * Parse a set of revisions.
+     *
+     * @param  collection     The TFS collection.
+     * @param  revision       The revisions to parse.
+     * @param  ownerName      The owner to look up shelvesets for.
+     * @return                The parsed revisions.
+     * @throws ParseException The revisions could not be parsed.
+     */
+    private String[] parseRevision(final TFSCollection collection,
+                                   final String[] revision,
+                                   final String ownerName)
+                                   throws ParseException {
+        /*
+         * If there are no revisions specified, we want the working
+         * directory.
+         */
+        if (revision.length == 0) {
+            final VersionSpec version = new WorkspaceVersionSpec(collection.workspace.getWorkspace(collection));
+
+            return new String[]{
+                Integer.toString(getChangesetIDs(collection, version, 1)[0]),
+                Revision.WORKING_COPY,
+            };
+        }
+
+        /*
+         * If there's a single revision specified, first check to see if
+         * it's a shelveset.
+         */
+        if (revision.length == 1 && isShelveset(collection, revision[0], ownerName)) {
+            return new String[]{
+                Revision.SHELVESET_BASE,
+                Revision.SHELVESET_PREFIX + revision[0],
+            };
+        }
+
+        final VersionSpec[] versions = getVersions(revision);
+        int[] changesetIds = null;
+
+        if (versions.length == 1) {
+            changesetIds = getChangesetIDs(collection, versions[0], 2);
+
+            ArrayUtils.reverse(changesetIds);
+        } else {
+            changesetIds = new int[]{
+                getChangesetIDs(collection, versions[0], 1)[0],
+                getChangesetIDs(collection, versions[1], 1)[0],
+            };
+        }
+
+        final String[] result = new String[changesetIds.length];
+
+        for (int i = 0; i < changesetIds.length; i++) {
+            result[i] = Integer.toString(changesetIds[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return whether a revision names a shelveset.
+     *
+     * @param  collection The TFS collection.
+     * @param  name       The revision to check.
+     * @param  ownerName  The owner to look up shelvesets for.
+     * @return            Whether there's a shelveset with the given name.
+     */
+    private boolean isShelveset(final TFSCollection collection,
+                                final String name,
+                                final String ownerName) {
+        if (shelvesetNames != null) {
+            return shelvesetNames.contains(name.toLowerCase());
+        }
+
+        final VersionControlClient versionControl = collection.getVersionControlClient();
+        final RunStats.Timer timer = stats.startServerCall("queryShelvesets", name);
+        final Shelveset[] shelvesets = versionControl.queryShelvesets(name, ownerName, null);
+        timer.stop();
+
+        return shelvesets.length == 1;
+    }
+
+    /**
+     * Parse the versions for a set of (non-shelveset) revisions.
+     *
+     * @param  revision       One or two revisions.
+     * @return                Either the version to show the change for, or
+     *                        the from and to versions of a range.
+     * @throws ParseException The wrong number of revisions was provided.
+     */
+    private VersionSpec[] getVersions(final String[] revision) throws ParseException {
+        if (revision.length == 1) {
+            final VersionSpec[] versions = VersionSpec.parseMultipleVersionsFromSpec(revision[0], null, true);
+
+            assert versions.length == 1 || versions.length == 2 : versions;
+
+            return versions;
+        } else if (revision.length == 2) {
+            return new VersionSpec[]{
+                VersionSpec.parseSingleVersionFromSpec(revision[0], null),
+                VersionSpec.parseSingleVersionFromSpec(revision[1], null),
+            };
+        } else {
+            throw new ParseException("parse-revision takes between zero and two revisions");
+        }
+    }
+
+    /**
+     * Open the changeset history index for the working directory.
+     *
+     * The index is kept in ~/.rb-tfs/history.
+     *
+     * @param  collection The TFS collection.
+     * @param  ttl        How long, in seconds, latest versions can be
+     *                    answered without syncing.
+     * @return            The index, or null if it can't be used.
+     */
+    private ChangesetHistoryIndex getHistoryIndex(final TFSCollection collection,
+                                                  final int ttl) {
+        final File root = new File(new File(System.getProperty("user.home"), ".rb-tfs"), "history");
+        final WorkspaceInfo workspace = collection.workspace;
+
+        try {
+            return ChangesetHistoryIndex.open(root, workspace.getServerURI() + "\n" +
+                                                    workspace.getName() + ";" +
+                                                    workspace.getOwnerName() + "\n" +
+                                                    collection.workdir,
+                                              ttl * 1000L);
+        } catch (final IOException e) {
+            log.warn("Unable to use the changeset history index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fetch the history up to a changeset ahead of time.
+     *
+     * Later lookups for changeset versions within the fetched range can
+     * then be answered without another query.
+     *
+     * The newest maxChanges changesets up to the given one are fetched,
+     * with no lower bound, so that the changeset before the oldest one in
+     * a batch is normally fetched as well. Lookups for changesets older than
+     * the fetched range are left to their own queries.
+     *
+     * @param  collection The TFS collection.
+     * @param  toId       The last changeset to fetch.
+     * @param  maxChanges The most changesets to fetch.
+     */
+    private void prefetchHistory(final TFSCollection collection,
+                                 final int toId,
+                                 final int maxChanges) {
+        final Changeset[] changes = getChanges(collection, null,
+                                               new ChangesetVersionSpec(toId),
+                                               maxChanges);
+
+        prefetchedIds = new int[changes.length];
+
+        for (int i = 0; i < changes.length; i++) {
+            prefetchedIds[i] = changes[i].getChangesetID();
+        }
+
+        /*
+         * History is returned newest first. If fewer changesets came back
+         * than were asked for, the history starts within the range.
+         */
+        prefetchedFrom =
+            changes.length >= maxChanges ? prefetchedIds[changes.length - 1] : 0;
+        prefetchedTo = toId;
+    }
+
+    /**
+     * Return the IDs of the latest changesets up to a version.
+     *
+     * Changeset, date and latest versions are answered from the history
+     * index where possible. Otherwise, if the version is a changeset within
+     * the prefetched range and enough changesets are known, no query is
+     * needed.
+     *
+     * @param  collection The TFS collection.
+     * @param  toVersion  The newest version to query.
+     * @param  maxChanges The number of changesets to return.
+     * @return            The changeset IDs, newest first.
+     */
+    private int[] getChangesetIDs(final TFSCollection collection,
+                                  final VersionSpec toVersion,
+                                  final int maxChanges) {
+        if (historyIndex != null) {
+            final int[] result = historyIndex.getChangesetIDs(
+                collection.getVersionControlClient(), collection.workdir,
+                toVersion, maxChanges, stats);
+
+            if (result != null) {
+                return result;
+            }
+        }
+
+        if (prefetchedIds != null && toVersion instanceof ChangesetVersionSpec) {
+            final int toId = ((ChangesetVersionSpec)toVersion).getChangeset();
+
+            if (toId >= prefetchedFrom && toId <= prefetchedTo) {
+                final int[] result = new int[maxChanges];
+                int count = 0;
+
+                for (int i = 0; i < prefetchedIds.length && count < maxChanges; i++) {
+                    if (prefetchedIds[i] <= toId) {
+                        result[count++] = prefetchedIds[i];
+                    }
+                }
+
+                if (count == maxChanges) {
+                    return result;
+                } else if (prefetchedFrom == 0) {
+                    /* The prefetch reached the start of the history. */
+                    return Arrays.copyOf(result, count);
+                }
+            }
+        }
+
+        final Changeset[] changes = getChanges(collection, null, toVersion, maxChanges);
+        final int[] result = new int[changes.length];
+
+        for (int i = 0; i < changes.length; i++) {
+            result[i] = changes[i].getChangesetID();
+        }
+
+        return result;
     }
 
     /**
@@ -143,7 +478,8 @@ public class CommandParseRevision extends Command {
                                    VersionSpec fromVersion,
                                    VersionSpec toVersion,
                                    int maxChanges) {
-        return collection.getVersionControlClient().queryHistory(
+        final RunStats.Timer timer = stats.startServerCall("queryHistory", collection.workdir);
+        final Changeset[] changes = collection.getVersionControlClient().queryHistory(
             collection.workdir,
             LatestVersionSpec.INSTANCE,
             0,
@@ -156,5 +492,8 @@ public class CommandParseRevision extends Command {
             false,
             false,
             false);
+        timer.stop();
+
+        return changes;
     }
 }
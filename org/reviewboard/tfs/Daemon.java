@@ -0,0 +1,386 @@
+package org.reviewboard.tfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import org.reviewboard.tfs.Application;
+import org.reviewboard.tfs.CollectionPool;
+
+
+/**
+ * A long-lived server which runs rb-tfs commands on behalf of clients.
+ *
+ * Starting a JVM, loading the TFS SDK and its native libraries, and
+ * authenticating with TFS make up most of the time taken by a typical
+ * command. The daemon keeps all of that around between commands, and
+ * DaemonClient forwards commands to it when it's running.
+ *
+ * The daemon listens on a loopback port. The port and a random secret are
+ * written to a state file which only the current user can read, and clients
+ * must present the secret before a command is run. Commands are run one at
+ * a time.
+ *
+ * The protocol is simple. The client sends the secret, its current
+ * directory, and its arguments. After that, both sides send frames
+ * consisting of a type byte, a length, and data. The client sends its
+ * standard input, and the daemon sends standard output, standard error, and
+ * finally the exit code.
+ *
+ * Only the current directory and arguments are passed along. Commands run
+ * with the daemon's environment, so variables such as TF_USE_KEYCHAIN are
+ * the ones the daemon was started with, and the daemon must be restarted
+ * (or RB_TFS_NO_DAEMON set) for a change to take effect. Log output is
+ * written to the daemon's console, which is why commands given --debug are
+ * run locally instead (see DaemonClient.forward).
+ */
+public class Daemon {
+    private static Log log = LogFactory.getLog(Daemon.class);
+
+    static final byte FRAME_STDIN = 0;
+    static final byte FRAME_STDOUT = 1;
+    static final byte FRAME_STDERR = 2;
+    static final byte FRAME_EXIT = 3;
+
+    /*
+     * An argument count sent by clients to ask the daemon to shut down.
+     */
+    static final int STOP_REQUEST = -1;
+
+    private static final int DEFAULT_IDLE_TIMEOUT_MINUTES = 30;
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final CollectionPool collectionPool = new CollectionPool();
+    private final String secret;
+    private final Level defaultLogLevel = Logger.getRootLogger().getLevel();
+    private boolean stopRequested = false;
+
+    private Daemon(final String secret) {
+        this.secret = secret;
+    }
+
+    /**
+     * Returns the path to the daemon's state file.
+     *
+     * @return The path to the state file.
+     */
+    static Path getStateFile() {
+        return new File(System.getProperty("user.home"), ".rb-tfs").toPath().resolve("daemon");
+    }
+
+    /**
+     * Run the daemon.
+     *
+     * @param  args Command-line arguments for the serve command.
+     * @return      The exit code for the process.
+     */
+    public static int serve(final String[] args) {
+        final Options options = new Options();
+        options.addOption(Option.builder()
+            .longOpt("idle-timeout")
+            .desc("Exit after this many minutes without a request " +
+                  "(default " + DEFAULT_IDLE_TIMEOUT_MINUTES + ", 0 to never exit).")
+            .hasArg()
+            .argName("minutes")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("stop")
+            .desc("Stop the running daemon.")
+            .build());
+        options.addOption(Option.builder()
+            .longOpt("debug")
+            .desc("Enable debug output.")
+            .build());
+
+        int idleTimeout = DEFAULT_IDLE_TIMEOUT_MINUTES;
+
+        try {
+            final CommandLine commandLine = new DefaultParser().parse(options, args);
+
+            if (commandLine.hasOption("debug")) {
+                Logger.getRootLogger().setLevel(Level.INFO);
+            }
+
+            if (commandLine.hasOption("stop")) {
+                return DaemonClient.stop() ? 0 : 1;
+            }
+
+            if (commandLine.hasOption("idle-timeout")) {
+                idleTimeout = Integer.parseInt(commandLine.getOptionValue("idle-timeout"));
+            }
+        } catch (final ParseException|NumberFormatException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("rb-tfs serve [options]", options);
+            return 1;
+        }
+
+        final byte[] secretBytes = new byte[32];
+        new SecureRandom().nextBytes(secretBytes);
+
+        final Daemon daemon = new Daemon(toHex(secretBytes));
+
+        try {
+            daemon.run(idleTimeout);
+            return 0;
+        } catch (final IOException e) {
+            System.err.println("Unable to run daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Accept and run commands until the daemon is stopped or goes idle.
+     *
+     * @param idleTimeout The number of minutes to wait for a request before
+     *                    exiting, or 0 to wait forever.
+     */
+    private void run(final int idleTimeout) throws IOException {
+        final Path stateFile = getStateFile();
+
+        try(final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(idleTimeout * 60 * 1000);
+            writeStateFile(stateFile, serverSocket.getLocalPort());
+
+            log.info("Listening on port " + serverSocket.getLocalPort());
+
+            while (!stopRequested) {
+                try(final Socket socket = serverSocket.accept()) {
+                    handleConnection(socket);
+                } catch (final SocketTimeoutException e) {
+                    log.info("No requests for " + idleTimeout + " minutes; exiting");
+                    break;
+                } catch (final IOException e) {
+                    log.error("Error handling request: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(stateFile);
+            collectionPool.close();
+        }
+    }
+
+    /**
+     * Write the port and secret to the state file.
+     *
+     * The file is written to a temporary location with owner-only
+     * permissions and then moved into place, so clients never see a
+     * partially-written file.
+     *
+     * @param stateFile The path to the state file.
+     * @param port      The port the daemon is listening on.
+     */
+    private void writeStateFile(final Path stateFile, final int port) throws IOException {
+        Files.createDirectories(stateFile.getParent());
+
+        final Path tempFile = Files.createTempFile(stateFile.getParent(), "daemon", ".tmp");
+
+        try {
+            Files.setPosixFilePermissions(tempFile, PosixFilePermissions.fromString("rw-------"));
+        } catch (final UnsupportedOperationException e) {
+            final File file = tempFile.toFile();
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+        }
+
+        Files.write(tempFile, (port + "\n" + secret + "\n").getBytes(utf8));
+        Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Handle a connection from a client.
+     *
+     * @param socket The client connection.
+     */
+    private void handleConnection(final Socket socket) throws IOException {
+        final DataInputStream input = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!MessageDigest.isEqual(input.readUTF().getBytes(utf8), secret.getBytes(utf8))) {
+            log.error("Rejecting client with an invalid secret");
+            return;
+        }
+
+        final String currentDirectory = input.readUTF();
+        final int argCount = input.readInt();
+
+        if (argCount == STOP_REQUEST) {
+            log.info("Stop requested by client");
+            stopRequested = true;
+            writeExitFrame(output, 0);
+            return;
+        }
+
+        final String[] args = new String[argCount];
+
+        for (int i = 0; i < argCount; i++) {
+            args[i] = input.readUTF();
+        }
+
+        final PipedInputStream stdin = new PipedInputStream(OUTPUT_BUFFER_SIZE);
+        startStdinThread(input, new PipedOutputStream(stdin));
+        final PrintStream stdout = new PrintStream(new BufferedOutputStream(
+            new FrameOutputStream(output, FRAME_STDOUT), OUTPUT_BUFFER_SIZE), false, "UTF-8");
+        final PrintStream stderr = new PrintStream(
+            new FrameOutputStream(output, FRAME_STDERR), true, "UTF-8");
+        int exitCode;
+
+        log.info("Running command from " + currentDirectory);
+        Logger.getRootLogger().setLevel(defaultLogLevel);
+
+        try {
+            exitCode = Application.runCommand(args, stdin, stdout, stderr,
+                                              currentDirectory, collectionPool);
+        } catch (final RuntimeException e) {
+            log.error("Command failed", e);
+            stderr.println(e.getMessage());
+            exitCode = 1;
+        } finally {
+            stdin.close();
+        }
+
+        stdout.flush();
+        stderr.flush();
+        writeExitFrame(output, exitCode);
+    }
+
+    /**
+     * Start a thread which copies the client's standard input.
+     *
+     * @param input The stream from the client.
+     * @param stdin The stream to copy standard input to.
+     */
+    private static void startStdinThread(final DataInputStream input,
+                                           final OutputStream stdin) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final byte type = input.readByte();
+                        final int length = input.readInt();
+
+                        if (type != FRAME_STDIN || length == 0) {
+                            break;
+                        }
+
+                        final byte[] data = new byte[length];
+                        input.readFully(data);
+                        stdin.write(data);
+                    }
+                } catch (final IOException e) {
+                    /* The client has gone away or the command has finished. */
+                } finally {
+                    try {
+                        stdin.close();
+                    } catch (final IOException e) {
+                    }
+                }
+            }
+        }, "rb-tfs-daemon-stdin");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Send the exit code to the client.
+     *
+     * @param output   The stream to the client.
+     * @param exitCode The exit code.
+     */
+    private static void writeExitFrame(final DataOutputStream output,
+                                       final int exitCode)
+                                       throws IOException {
+        synchronized (output) {
+            output.writeByte(FRAME_EXIT);
+            output.writeInt(4);
+            output.writeInt(exitCode);
+            output.flush();
+        }
+    }
+
+    /**
+     * Convert bytes to a hex string.
+     *
+     * @param  bytes The bytes to convert.
+     * @return       The hex string.
+     */
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * An output stream which sends everything written to it as frames.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final byte type;
+
+        public FrameOutputStream(final DataOutputStream output, final byte type) {
+            this.output = output;
+            this.type = type;
+        }
+
+        public void write(final int b) throws IOException {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        public void write(final byte[] data, final int offset, final int length)
+                          throws IOException {
+            if (length == 0) {
+                return;
+            }
+
+            synchronized (output) {
+                output.writeByte(type);
+                output.writeInt(length);
+                output.write(data, offset, length);
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized (output) {
+                output.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.reviewboard.tfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+
+/**
+ * A client which forwards commands to a running rb-tfs daemon.
+ *
+ * This deliberately avoids touching the TFS SDK, so that forwarding a
+ * command is as cheap as possible.
+ */
+public class DaemonClient {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int STDIN_BUFFER_SIZE = 8192;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final int port;
+    private final String secret;
+
+    private DaemonClient(final int port, final String secret) {
+        this.port = port;
+        this.secret = secret;
+    }
+
+    /**
+     * Forward a command to the daemon, if one is running.
+     *
+     * Setting the RB_TFS_NO_DAEMON environment variable disables forwarding.
+     * Commands given --debug are never forwarded, since the daemon's log
+     * output goes to its own console rather than to the client.
+     *
+     * @param  args Command-line arguments.
+     * @return      The exit code from the command, or null if the command
+     *              was not run by a daemon and should be run locally.
+     */
+    public static Integer forward(final String[] args) {
+        final String noDaemon = System.getenv("RB_TFS_NO_DAEMON");
+
+        if (noDaemon != null && noDaemon.length() > 0) {
+            return null;
+        }
+
+        for (String arg : args) {
+            if (arg.equals("--debug")) {
+                return null;
+            }
+        }
+
+        final DaemonClient client = load();
+
+        if (client == null) {
+            return null;
+        }
+
+        return client.send(args);
+    }
+
+    /**
+     * Ask a running daemon to shut down.
+     *
+     * @return Whether a daemon was found and stopped.
+     */
+    public static boolean stop() {
+        final DaemonClient client = load();
+
+        if (client == null) {
+            System.err.println("No rb-tfs daemon is running");
+            return false;
+        }
+
+        return client.send(null) != null;
+    }
+
+    /**
+     * Load the daemon's port and secret from its state file.
+     *
+     * @return A client for the daemon, or null if no daemon is running.
+     */
+    private static DaemonClient load() {
+        final Path stateFile = Daemon.getStateFile();
+
+        try {
+            final List<String> lines = Files.readAllLines(stateFile, utf8);
+
+            if (lines.size() < 2) {
+                return null;
+            }
+
+            return new DaemonClient(Integer.parseInt(lines.get(0).trim()),
+                                    lines.get(1).trim());
+        } catch (final IOException|NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Send a command to the daemon and relay its output.
+     *
+     * @param  args Command-line arguments, or null to ask the daemon to
+     *              shut down.
+     * @return      The exit code, or null if the daemon could not be reached
+     *              before the command started.
+     */
+    private Integer send(final String[] args) {
+        boolean started = false;
+
+        try(final Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                           CONNECT_TIMEOUT_MS);
+
+            final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+
+            output.writeUTF(secret);
+            output.writeUTF(System.getProperty("user.dir"));
+
+            if (args == null) {
+                output.writeInt(Daemon.STOP_REQUEST);
+            } else {
+                output.writeInt(args.length);
+
+                for (String arg : args) {
+                    output.writeUTF(arg);
+                }
+            }
+
+            output.flush();
+
+            if (args != null) {
+                startStdinThread(System.in, output);
+            }
+
+            while (true) {
+                final byte type = input.readByte();
+                final int length = input.readInt();
+
+                started = true;
+
+                if (type == Daemon.FRAME_EXIT) {
+                    return input.readInt();
+                }
+
+                final byte[] data = new byte[length];
+                input.readFully(data);
+
+                if (type == Daemon.FRAME_STDOUT) {
+                    System.out.write(data);
+                    System.out.flush();
+                } else if (type == Daemon.FRAME_STDERR) {
+                    System.err.write(data);
+                    System.err.flush();
+                }
+            }
+        } catch (final EOFException e) {
+            if (started) {
+                System.err.println("Lost connection to the rb-tfs daemon");
+                return 1;
+            }
+
+            return null;
+        } catch (final IOException e) {
+            if (started) {
+                System.err.println("Lost connection to the rb-tfs daemon: " + e.getMessage());
+                return 1;
+            }
+
+            /* The daemon isn't running. The state file is stale. */
+            return null;
+        }
+    }
+
+    /**
+     * Start a thread which sends standard input to the daemon.
+     *
+     * @param stdin  The standard input stream.
+     * @param output The stream to the daemon.
+     */
+    private static void startStdinThread(final InputStream stdin,
+                                         final DataOutputStream output) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buffer = new byte[STDIN_BUFFER_SIZE];
+
+                try {
+                    int length;
+
+                    while ((length = stdin.read(buffer)) > 0) {
+                        output.writeByte(Daemon.FRAME_STDIN);
+                        output.writeInt(length);
+                        output.write(buffer, 0, length);
+                        output.flush();
+                    }
+
+                    output.writeByte(Daemon.FRAME_STDIN);
+                    output.writeInt(0);
+                    output.flush();
+                } catch (final IOException e) {
+                    /* The daemon has finished with the command. */
+                }
+            }
+        }, "rb-tfs-client-stdin");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,336 @@
+package org.reviewboard.tfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A persistent cache of the diff sections for a working copy.
+ *
+ * Diffing a working copy over and over (while updating a review) mostly
+ * recomputes the same diffs, since only a few files change between runs.
+ * This cache stores the diff for each pending change, keyed by everything
+ * that the diff depends on: the base item and version, the change type,
+ * the size, modification time and MD5 hash of the local file, and the diff
+ * options which decide how the file is diffed.
+ *
+ * A file whose size and modification time are unchanged is trusted without
+ * being read, unless it was modified within a couple of seconds of the
+ * entry being written (where a later change might not have moved the
+ * timestamp). Otherwise the file is hashed, and the entry is still used if
+ * the contents are the same.
+ *
+ * Updating the workspace changes the base version of its pending changes,
+ * so their entries no longer match. After a successful run, prune() removes
+ * every entry that wasn't used or stored by that run, so entries for
+ * superseded base versions or undone changes don't accumulate.
+ *
+ * There is one cache directory per workspace and working directory, and
+ * one entry per server item:
+ *
+ *     <root>/<workspace hash>/ab/abcdef...   Named by the SHA-1 of the
+ *                                            server item.
+ *
+ * Each entry is a header line followed by the diff section.
+ */
+public class DiffSectionCache {
+    private static Log log = LogFactory.getLog(DiffSectionCache.class);
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    /*
+     * The version of the entry format, and of the diff output. This must be
+     * changed whenever the output for a change would differ, so that stale
+     * sections aren't reused.
+     */
+    private static final String FORMAT = "rb-tfs-section-2";
+
+    /*
+     * Files modified this close to the time an entry was written are
+     * re-hashed rather than trusted by their size and timestamp.
+     */
+    private static final long RACY_WINDOW_MS = 2000;
+
+    private final Path dir;
+    private final Set<Path> usedEntries = new HashSet<Path>();
+
+    /**
+     * The inputs which determine the diff section for a pending change.
+     */
+    public static class Key {
+        public String serverItem;
+        public String sourceItem;
+        public int baseVersion;
+        public String changeType;
+        public String localItem;
+        public long size;
+        public long modified;
+
+        /*
+         * The diff options which affect the section. See
+         * TFSDiffer.DiffOptions.getSectionIdentity().
+         */
+        public String options;
+
+        /*
+         * The MD5 hash of the local file, once it has been computed.
+         */
+        public byte[] hash = null;
+
+        /**
+         * Return the part of the entry header which must match exactly.
+         *
+         * @return The header fields.
+         */
+        private String getIdentity() {
+            return FORMAT + "\t" + serverItem + "\t" + sourceItem + "\t" +
+                   baseVersion + "\t" + changeType + "\t" + options + "\t" + size;
+        }
+    }
+
+    /**
+     * Create the cache.
+     *
+     * @param root  The directory to store caches in.
+     * @param scope A string identifying the workspace and working directory
+     *              which this cache is for.
+     */
+    public DiffSectionCache(final File root, final String scope) throws IOException {
+        dir = root.toPath().resolve(sha1(scope));
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Build the key for a pending change in a local workspace.
+     *
+     * @param  change  The pending change.
+     * @param  options The diff options which affect the section.
+     * @return         The key.
+     */
+    public Key getKey(final PendingChange change, final TFSDiffer.DiffOptions options) {
+        final Key key = new Key();
+        key.serverItem = change.getServerItem();
+        key.sourceItem = change.getSourceServerItem();
+        key.baseVersion = change.getVersion();
+        key.changeType = change.getChangeType().toString();
+        key.localItem = change.getLocalItem();
+        key.options = options.getSectionIdentity();
+
+        final File localFile = key.localItem != null ? new File(key.localItem) : null;
+
+        if (localFile != null && localFile.isFile()) {
+            key.size = localFile.length();
+            key.modified = localFile.lastModified();
+        } else {
+            key.size = -1;
+            key.modified = 0;
+        }
+
+        return key;
+    }
+
+    /**
+     * Look up the diff section for a pending change.
+     *
+     * This may hash the local file, in which case the hash is stored in the
+     * key.
+     *
+     * @param  key The key for the change.
+     * @return     The cached diff section, or null if there isn't a valid
+     *             entry.
+     */
+    public byte[] get(final Key key) {
+        final Path entryFile = getEntryFile(key.serverItem);
+        final byte[] data;
+
+        try {
+            data = Files.readAllBytes(entryFile);
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            log.warn("Unable to read cached diff for " + key.serverItem + ": " + e.getMessage());
+            return null;
+        }
+
+        int headerEnd = 0;
+
+        while (headerEnd < data.length && data[headerEnd] != '\n') {
+            headerEnd++;
+        }
+
+        final String[] header = new String(data, 0, headerEnd, utf8).split("\t");
+        final String identity = key.getIdentity();
+
+        /*
+         * The header is the identity, followed by the modification time, the
+         * time the entry was written, and the hash of the local file.
+         */
+        if (headerEnd == data.length || header.length < 3 ||
+            !joinFields(header, header.length - 3).equals(identity)) {
+            return null;
+        }
+
+        final long modified = Long.parseLong(header[header.length - 3]);
+        final long stored = Long.parseLong(header[header.length - 2]);
+        final String hash = header[header.length - 1];
+
+        if (key.size >= 0 &&
+            (modified != key.modified || modified >= stored - RACY_WINDOW_MS)) {
+            if (!hash.equals(BaseContentCache.toHex(computeKeyHash(key)))) {
+                return null;
+            }
+        }
+
+        synchronized (usedEntries) {
+            usedEntries.add(entryFile);
+        }
+
+        return Arrays.copyOfRange(data, headerEnd + 1, data.length);
+    }
+
+    /**
+     * Store the diff section for a pending change.
+     *
+     * @param key     The key for the change.
+     * @param section The diff section.
+     */
+    public void put(final Key key, final byte[] section) {
+        final Path entryFile = getEntryFile(key.serverItem);
+
+        try {
+            final String hash = key.size >= 0 ? BaseContentCache.toHex(computeKeyHash(key)) : "-";
+            final byte[] header = (key.getIdentity() + "\t" + key.modified + "\t" +
+                                   System.currentTimeMillis() + "\t" + hash + "\n").getBytes(utf8);
+
+            Files.createDirectories(entryFile.getParent());
+
+            final Path tempFile = Files.createTempFile(entryFile.getParent(), "section", ".tmp");
+
+            try {
+                final byte[] data = new byte[header.length + section.length];
+                System.arraycopy(header, 0, data, 0, header.length);
+                System.arraycopy(section, 0, data, header.length, section.length);
+                Files.write(tempFile, data);
+
+                try {
+                    Files.move(tempFile, entryFile, StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, entryFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            synchronized (usedEntries) {
+                usedEntries.add(entryFile);
+            }
+        } catch (final IOException e) {
+            log.warn("Unable to cache diff for " + key.serverItem + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove all entries which weren't used or stored since the cache was
+     * created.
+     *
+     * This should only be called after a complete diff of the working copy.
+     */
+    public void prune() {
+        try(final DirectoryStream<Path> dirs = Files.newDirectoryStream(dir)) {
+            for (Path subdir : dirs) {
+                try(final DirectoryStream<Path> entries = Files.newDirectoryStream(subdir)) {
+                    for (Path entryFile : entries) {
+                        final boolean used;
+
+                        synchronized (usedEntries) {
+                            used = usedEntries.contains(entryFile);
+                        }
+
+                        if (!used) {
+                            log.info("Removing stale cached diff " + entryFile.getFileName());
+                            Files.deleteIfExists(entryFile);
+                        }
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("Unable to prune the diff cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the hash of the local file for a key, computing it if needed.
+     *
+     * @param  key The key.
+     * @return     The MD5 hash of the local file.
+     */
+    private static byte[] computeKeyHash(final Key key) {
+        if (key.hash == null) {
+            try {
+                key.hash = TFSDiffer.computeHash(new File(key.localItem));
+            } catch (final IOException e) {
+                /* Something that can never match a stored hash. */
+                key.hash = new byte[0];
+            }
+        }
+
+        return key.hash;
+    }
+
+    /**
+     * Join the first fields of a header back together.
+     *
+     * @param  fields The header fields.
+     * @param  count  The number of fields to join.
+     * @return        The joined fields.
+     */
+    private static String joinFields(final String[] fields, final int count) {
+        final StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                result.append('\t');
+            }
+
+            result.append(fields[i]);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Return the entry path for a server item.
+     *
+     * @param  serverItem The server path of the item.
+     * @return            The path to the entry.
+     */
+    private Path getEntryFile(final String serverItem) {
+        final String name = sha1(serverItem);
+        return dir.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private static String sha1(final String value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return BaseContentCache.toHex(digest.digest(value.getBytes(utf8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.reviewboard.tfs;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A type of Java Flight Recorder event.
+ *
+ * rb-tfs runs on Java 8, which has no JFR API, so event types can't be
+ * declared as subclasses of jdk.jfr.Event. Instead, they're defined at
+ * runtime with jdk.jfr.EventFactory (Java 11 and newer), through
+ * reflection. The type is only defined once a recording has started, so
+ * runs without JFR never load it. When JFR isn't available, begin()
+ * returns null and commit() does nothing.
+ *
+ * Until a recording starts, whether JFR is running is only checked once
+ * every RECHECK_INTERVAL_MS, so that begin() is cheap in the common case.
+ * Events from a recording started while rb-tfs is running (such as one
+ * started on the daemon with jcmd) may therefore be missed for that long.
+ *
+ * Events are used like this:
+ *
+ *     final Object event = FlightEvents.SERVER_CALL.begin();
+ *     ...
+ *     FlightEvents.SERVER_CALL.commit(event, "queryHistory", path, 0L);
+ *
+ * The values passed to commit() are in the order of the type's fields.
+ */
+final class FlightEvents {
+    private static Log log = LogFactory.getLog(FlightEvents.class);
+    private static final long RECHECK_INTERVAL_MS = 1000;
+
+    private static Method isInitialized = null;
+    private static Method createFactory;
+    private static Method newEvent;
+    private static Method beginEvent;
+    private static Method endEvent;
+    private static Method setField;
+    private static Method commitEvent;
+    private static Constructor<?> newAnnotation;
+    private static Constructor<?> newField;
+    private static Class<?> nameType;
+    private static Class<?> labelType;
+    private static Class<?> categoryType;
+
+    static {
+        try {
+            final Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+            final Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> event = Class.forName("jdk.jfr.Event");
+            final Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement");
+            final Class<?> field = Class.forName("jdk.jfr.ValueDescriptor");
+
+            createFactory = factory.getMethod("create", List.class, List.class);
+            newEvent = factory.getMethod("newEvent");
+            beginEvent = event.getMethod("begin");
+            endEvent = event.getMethod("end");
+            setField = event.getMethod("set", int.class, Object.class);
+            commitEvent = event.getMethod("commit");
+            newAnnotation = annotation.getConstructor(Class.class, Object.class);
+            newField = field.getConstructor(Class.class, String.class);
+            nameType = Class.forName("jdk.jfr.Name");
+            labelType = Class.forName("jdk.jfr.Label");
+            categoryType = Class.forName("jdk.jfr.Category");
+            isInitialized = recorder.getMethod("isInitialized");
+        } catch (final ReflectiveOperationException|LinkageError e) {
+            /* JFR isn't available, so no events are recorded. */
+        }
+    }
+
+    /*
+     * A call to the TFS server, or a download from it.
+     */
+    public static final FlightEvents SERVER_CALL = new FlightEvents(
+        "org.reviewboard.tfs.ServerCall", "Server Call",
+        new String[]{ "call", "detail", "bytes" },
+        new Class<?>[]{ String.class, String.class, long.class });
+
+    /*
+     * A file being diffed. The event covers the diff itself, and records
+     * the time spent fetching the file beforehand.
+     */
+    public static final FlightEvents FILE = new FlightEvents(
+        "org.reviewboard.tfs.File", "Diffed File",
+        new String[]{ "path", "result", "size", "fetchNanos" },
+        new Class<?>[]{ String.class, String.class, long.class, long.class });
+
+    private final String name;
+    private final String label;
+    private final String[] fieldNames;
+    private final Class<?>[] fieldTypes;
+    private volatile Object factory = null;
+    private volatile boolean failed = false;
+
+    /*
+     * When to next check whether JFR is recording, from System.nanoTime().
+     */
+    private volatile long recheckAt = System.nanoTime();
+
+    private FlightEvents(final String name, final String label,
+                         final String[] fieldNames, final Class<?>[] fieldTypes) {
+        this.name = name;
+        this.label = label;
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+    }
+
+    /**
+     * Start timing an event.
+     *
+     * @return The event, or null if no recording is running.
+     */
+    public Object begin() {
+        Object eventFactory = factory;
+
+        if (eventFactory == null) {
+            if (failed || isInitialized == null || System.nanoTime() - recheckAt < 0) {
+                return null;
+            }
+
+            eventFactory = getFactory();
+
+            if (eventFactory == null) {
+                return null;
+            }
+        }
+
+        try {
+            final Object event = newEvent.invoke(eventFactory);
+            beginEvent.invoke(event);
+            return event;
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finish an event and record it.
+     *
+     * @param event  The event returned by begin(), which may be null.
+     * @param values The values of the event's fields.
+     */
+    public void commit(final Object event, final Object... values) {
+        if (event == null) {
+            return;
+        }
+
+        try {
+            endEvent.invoke(event);
+
+            for (int i = 0; i < values.length; i++) {
+                setField.invoke(event, i, values[i]);
+            }
+
+            commitEvent.invoke(event);
+        } catch (final ReflectiveOperationException e) {
+        }
+    }
+
+    /**
+     * Return the factory for this type of event, defining the type if
+     * needed.
+     *
+     * @return The factory, or null if JFR isn't recording.
+     */
+    private synchronized Object getFactory() {
+        if (factory != null || failed || isInitialized == null ||
+            System.nanoTime() - recheckAt < 0) {
+            return factory;
+        }
+
+        try {
+            if (!(Boolean)isInitialized.invoke(null)) {
+                recheckAt = System.nanoTime() +
+                            TimeUnit.MILLISECONDS.toNanos(RECHECK_INTERVAL_MS);
+                return null;
+            }
+
+            final List<Object> annotations = new ArrayList<Object>();
+            annotations.add(newAnnotation.newInstance(nameType, name));
+            annotations.add(newAnnotation.newInstance(labelType, label));
+            annotations.add(newAnnotation.newInstance(categoryType, new String[]{ "rb-tfs" }));
+
+            final List<Object> fields = new ArrayList<Object>();
+
+            for (int i = 0; i < fieldNames.length; i++) {
+                fields.add(newField.newInstance(fieldTypes[i], fieldNames[i]));
+            }
+
+            factory = createFactory.invoke(null, annotations, fields);
+        } catch (final ReflectiveOperationException|RuntimeException e) {
+            log.warn("Unable to define JFR event " + name + ": " + e);
+            failed = true;
+        }
+
+        return factory;
+    }
+}
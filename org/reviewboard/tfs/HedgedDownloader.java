@@ -0,0 +1,431 @@
+package org.reviewboard.tfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs file downloads with a deadline, hedging the slow ones.
+ *
+ * Latencies are tracked per byte, so that large files, which are always
+ * slower, don't set the threshold for small ones or get hedged just for
+ * being large. A download which is taking longer than the HEDGE_PERCENTILE
+ * time per byte of the recent downloads in the same run, for the bytes it
+ * has received so far, gets a second, identical request, and whichever
+ * finishes first is used. The other is cancelled, and its contents are
+ * released if it finishes anyway. Until MIN_SAMPLES downloads have
+ * finished, INITIAL_HEDGE_DELAY_MS per MIN_SAMPLE_BYTES is used as the
+ * threshold instead. A download which is still receiving data at a normal
+ * rate is therefore never hedged, however large it is, while one which
+ * has stalled is.
+ *
+ * If the first request fails before it has been hedged, it is retried
+ * once straight away instead. Hedges and retries add load to the server,
+ * so only about one in every HEDGE_BUDGET_DIVISOR downloads may make a
+ * second request, and a download never makes more than two.
+ *
+ * If a timeout is given, each download, including its hedge, must finish
+ * within it, or it fails with an IOException. By default there is no
+ * limit, since a large file on a slow connection can legitimately take a
+ * long time. Attempts run on a shared pool of daemon
+ * threads, so one which never returns doesn't keep the process alive.
+ */
+public class HedgedDownloader {
+    private static Log log = LogFactory.getLog(HedgedDownloader.class);
+
+    /*
+     * The default time allowed for each download, in milliseconds. 0 means
+     * no limit.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 0;
+
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 256;
+    private static final long INITIAL_HEDGE_DELAY_MS = 5000;
+
+    /*
+     * Downloads smaller than this are timed as if they were this size, since
+     * their latency is mostly the request rather than the transfer.
+     */
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final long MIN_HEDGE_DELAY_MS = 200;
+    private static final int HEDGE_BUDGET_DIVISOR = 10;
+
+    private static final ExecutorService executor =
+        Executors.newCachedThreadPool(new AttemptThreadFactory());
+
+    private final long timeoutNanos;
+    private final boolean hedge;
+
+    /*
+     * The latencies of the most recent downloads, in nanoseconds per
+     * MIN_SAMPLE_BYTES, as a ring buffer.
+     */
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int numSamples = 0;
+    private int nextSample = 0;
+
+    private int started = 0;
+    private int extraRequests = 0;
+
+    /**
+     * Create the downloader.
+     *
+     * @param timeoutMs The time allowed for each download, in
+     *                  milliseconds, or 0 for no limit.
+     * @param hedge     Whether to hedge slow downloads.
+     */
+    public HedgedDownloader(final long timeoutMs, final boolean hedge) {
+        this.timeoutNanos = timeoutMs > 0 ? TimeUnit.MILLISECONDS.toNanos(timeoutMs) : Long.MAX_VALUE;
+        this.hedge = hedge;
+    }
+
+    /**
+     * A download which reports its progress.
+     */
+    public interface Download {
+        /**
+         * Make one request for the contents.
+         *
+         * @param  received    A counter to add the number of bytes
+         *                     received to, as they arrive. See
+         *                     ProgressOutputStream.
+         * @return             The contents.
+         * @throws IOException The request failed.
+         */
+        ScratchContent run(AtomicLong received) throws IOException;
+    }
+
+    /**
+     * A stream which counts the bytes written through it.
+     */
+    public static class ProgressOutputStream extends FilterOutputStream {
+        private final AtomicLong received;
+
+        public ProgressOutputStream(final OutputStream out, final AtomicLong received) {
+            super(out);
+            this.received = received;
+        }
+
+        public void write(final int b) throws IOException {
+            out.write(b);
+            received.incrementAndGet();
+        }
+
+        public void write(final byte[] data, final int offset, final int count)
+                          throws IOException {
+            out.write(data, offset, count);
+            received.addAndGet(count);
+        }
+    }
+
+    /**
+     * Run a download.
+     *
+     * The download may be called more than once at the same time, and
+     * each call must return its own contents.
+     *
+     * @param  download    The download to run.
+     * @param  description A description of the file, for logging.
+     * @param  stats       The stats to record the download in.
+     * @return             The contents.
+     * @throws IOException The download failed or timed out.
+     */
+    public ScratchContent download(final Download download,
+                                   final String description,
+                                   final RunStats stats)
+                                   throws IOException {
+        final long start = System.nanoTime();
+        long deadline = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : start + timeoutNanos;
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final CompletionService<ScratchContent> completion =
+            new ExecutorCompletionService<ScratchContent>(executor);
+        final List<Future<ScratchContent>> attempts = new ArrayList<Future<ScratchContent>>();
+        final Attempt first = new Attempt(download, settled);
+        long hedgeAt = startDownload(start);
+        boolean wasHedged = false;
+        boolean wasRetried = false;
+        boolean returned = false;
+        Throwable failure = null;
+
+        attempts.add(completion.submit(first));
+
+        try {
+            int outstanding = 1;
+
+            while (true) {
+                final long now = System.nanoTime();
+                final long waitUntil = Math.min(hedgeAt, deadline);
+                final Future<ScratchContent> done =
+                    completion.poll(Math.max(0, waitUntil - now), TimeUnit.NANOSECONDS);
+
+                if (done != null) {
+                    outstanding--;
+
+                    try {
+                        final ScratchContent content = done.get();
+
+                        if (content != null) {
+                            final long elapsed = System.nanoTime() - start;
+                            final boolean hedgeWon = wasHedged && done != attempts.get(0);
+
+                            addSample(elapsed, content.size());
+                            stats.addDownload(elapsed, wasHedged, hedgeWon, wasRetried);
+
+                            if (hedgeWon) {
+                                log.info("Hedged download of " + description + " finished first");
+                            }
+
+                            returned = true;
+                            return content;
+                        }
+                    } catch (final ExecutionException e) {
+                        failure = e.getCause();
+                        log.warn("Download attempt for " + description + " failed: " +
+                                 failure.getMessage());
+                    }
+
+                    if (outstanding > 0) {
+                        continue;
+                    } else if (!wasHedged && !wasRetried && hedgeAt != Long.MAX_VALUE &&
+                               startExtraRequest()) {
+                        /* The only request failed before it was hedged. */
+                        log.info("Retrying download of " + description);
+                        wasRetried = true;
+                        hedgeAt = Long.MAX_VALUE;
+                        outstanding++;
+                        attempts.add(completion.submit(new Attempt(download, settled)));
+                        continue;
+                    } else {
+                        break;
+                    }
+                }
+
+                if (System.nanoTime() >= deadline) {
+                    if (!settled.compareAndSet(false, true)) {
+                        /* An attempt finished just in time, and is on its way. */
+                        deadline = Long.MAX_VALUE;
+                        hedgeAt = Long.MAX_VALUE;
+                        continue;
+                    }
+
+                    stats.addDownloadTimeout();
+                    throw new IOException("Timed out downloading " + description + " after " +
+                                          TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) +
+                                          " seconds");
+                }
+
+                if (System.nanoTime() >= hedgeAt && outstanding > 0 && !wasHedged) {
+                    /*
+                     * The first attempt may have received enough data by now
+                     * to be on time.
+                     */
+                    final long dueAt = getHedgeTime(start, first.received.get());
+                    final long checkedAt = System.nanoTime();
+
+                    if (dueAt > checkedAt) {
+                        hedgeAt = Math.max(dueAt, checkedAt +
+                                           TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MS));
+                        continue;
+                    }
+                }
+
+                if (System.nanoTime() >= hedgeAt) {
+                    hedgeAt = Long.MAX_VALUE;
+
+                    if (startExtraRequest()) {
+                        log.info("Download of " + description + " is slow; starting a hedged request");
+                        wasHedged = true;
+                        outstanding++;
+                        attempts.add(completion.submit(new Attempt(download, settled)));
+                    } else if (outstanding == 0) {
+                        break;
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted downloading " + description);
+        } finally {
+            /*
+             * Any attempt which finishes from now on releases its own
+             * contents.
+             */
+            final boolean claimed = !settled.compareAndSet(false, true);
+
+            for (Future<ScratchContent> attempt : attempts) {
+                attempt.cancel(true);
+            }
+
+            if (claimed && !returned) {
+                releaseFinished(attempts);
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else {
+            throw new IOException("Download of " + description + " failed", failure);
+        }
+    }
+
+    /**
+     * Release the contents of any attempt which finished but wasn't used.
+     *
+     * @param attempts The attempts.
+     */
+    private static void releaseFinished(final List<Future<ScratchContent>> attempts) {
+        for (Future<ScratchContent> attempt : attempts) {
+            if (attempt.isDone() && !attempt.isCancelled()) {
+                try {
+                    final ScratchContent content = attempt.get();
+
+                    if (content != null) {
+                        content.close();
+                    }
+                } catch (final ExecutionException|InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a new download, and return when it should first be checked for
+     * hedging.
+     *
+     * @param  start The start of the download, from System.nanoTime().
+     * @return       The time to check at, or Long.MAX_VALUE to never hedge.
+     */
+    private long startDownload(final long start) {
+        synchronized (this) {
+            started++;
+        }
+
+        return getHedgeTime(start, 0);
+    }
+
+    /**
+     * Return when a download should be hedged, given how much it has
+     * received so far.
+     *
+     * @param  start    The start of the download, from System.nanoTime().
+     * @param  received The number of bytes received so far.
+     * @return          The time to hedge at, or Long.MAX_VALUE to never
+     *                  hedge.
+     */
+    private synchronized long getHedgeTime(final long start, final long received) {
+        if (!hedge) {
+            return Long.MAX_VALUE;
+        }
+
+        long delay = TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY_MS);
+
+        if (numSamples >= MIN_SAMPLES) {
+            final long[] sorted = Arrays.copyOf(samples, numSamples);
+            Arrays.sort(sorted);
+            delay = sorted[(int)(HEDGE_PERCENTILE * (numSamples - 1))];
+        }
+
+        final double units = (double)Math.max(received, MIN_SAMPLE_BYTES) / MIN_SAMPLE_BYTES;
+
+        return start + Math.max((long)(delay * units),
+                                TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MS));
+    }
+
+    /**
+     * Claim a hedge or retry from the budget.
+     *
+     * @return Whether a second request can be started.
+     */
+    private synchronized boolean startExtraRequest() {
+        if (extraRequests >= 1 + started / HEDGE_BUDGET_DIVISOR) {
+            return false;
+        }
+
+        extraRequests++;
+        return true;
+    }
+
+    /**
+     * Record the latency of a finished download.
+     *
+     * @param nanos The time taken.
+     * @param size  The size of the contents, in bytes.
+     */
+    private synchronized void addSample(final long nanos, final long size) {
+        samples[nextSample] = (long)(nanos / ((double)Math.max(size, MIN_SAMPLE_BYTES) / MIN_SAMPLE_BYTES));
+        nextSample = (nextSample + 1) % MAX_SAMPLES;
+        numSamples = Math.min(numSamples + 1, MAX_SAMPLES);
+    }
+
+    /**
+     * One request for a download.
+     *
+     * Only the first attempt to finish keeps its contents. Attempts which
+     * finish after that, or after the download has been given up on,
+     * release their contents and return null.
+     */
+    private static class Attempt implements Callable<ScratchContent> {
+        private final Download download;
+        private final AtomicBoolean settled;
+
+        /*
+         * The number of bytes received so far.
+         */
+        public final AtomicLong received = new AtomicLong(0);
+
+        public Attempt(final Download download, final AtomicBoolean settled) {
+            this.download = download;
+            this.settled = settled;
+        }
+
+        public ScratchContent call() throws Exception {
+            final ScratchContent content = download.run(received);
+
+            if (settled.compareAndSet(false, true)) {
+                return content;
+            }
+
+            content.close();
+            return null;
+        }
+    }
+
+    /**
+     * A thread factory for download attempts.
+     *
+     * Like download threads, these are daemon threads.
+     */
+    private static class AttemptThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-download-attempt-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
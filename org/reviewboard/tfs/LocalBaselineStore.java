@@ -0,0 +1,196 @@
+package org.reviewboard.tfs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.BaselineFolderCollection;
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.LocalWorkspaceProperties;
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.LocalWorkspaceTransaction;
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.WorkspaceLocalItem;
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.WorkspacePropertiesLocalVersionTransaction;
+import com.microsoft.tfs.core.clients.versioncontrol.localworkspace.WorkspaceVersionTable;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Workspace;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Reads base file contents from the baseline folders of a local workspace.
+ *
+ * A TFS local workspace keeps a pristine copy of every item it has
+ * downloaded in the "$tf" baseline folders of its mappings, usually
+ * gzip-compressed. For pending changes in such a workspace, the base
+ * contents can be read from there instead of being downloaded.
+ *
+ * The baseline locations for all the needed items are looked up ahead of
+ * time, in a single transaction on the workspace's local version table.
+ * Contents are decompressed into scratch storage and checked against the
+ * hash TFS reports for the base version. If a baseline is missing or
+ * doesn't match, the caller should download the contents instead.
+ */
+public class LocalBaselineStore {
+    private static Log log = LogFactory.getLog(LocalBaselineStore.class);
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /*
+     * The locations of the baseline files, keyed by server item.
+     */
+    private final Map<String, String> locations = new HashMap<String, String>();
+
+    private LocalBaselineStore() {}
+
+    /**
+     * Look up the baselines for a set of server items.
+     *
+     * @param  workspace   The local workspace.
+     * @param  serverItems The server paths of the base items.
+     * @return             The baselines, or null if the workspace's local
+     *                     data couldn't be read.
+     */
+    public static LocalBaselineStore load(final Workspace workspace,
+                                          final Collection<String> serverItems) {
+        final LocalBaselineStore store = new LocalBaselineStore();
+        final LocalWorkspaceTransaction transaction = new LocalWorkspaceTransaction(workspace);
+
+        try {
+            transaction.execute(new WorkspacePropertiesLocalVersionTransaction() {
+                public void invoke(final LocalWorkspaceProperties wp,
+                                   final WorkspaceVersionTable lv) {
+                    final BaselineFolderCollection baselineFolders =
+                        new BaselineFolderCollection(workspace, wp.getBaselineFolders());
+
+                    for (String serverItem : serverItems) {
+                        WorkspaceLocalItem item = lv.getByServerItem(serverItem, true);
+
+                        if (item == null) {
+                            item = lv.getByServerItem(serverItem, false);
+                        }
+
+                        if (item != null && item.hasBaselineFileGUID()) {
+                            final String location =
+                                baselineFolders.getBaselineLocation(item.getBaselineFileGUID());
+
+                            if (location != null) {
+                                store.locations.put(serverItem, location);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            log.warn("Unable to read local workspace baselines: " + e.getMessage());
+            return null;
+        } finally {
+            transaction.close();
+        }
+
+        log.info("Found local baselines for " + store.locations.size() +
+                 " of " + serverItems.size() + " items");
+
+        return store;
+    }
+
+    /**
+     * Return the base contents of a server item.
+     *
+     * @param  serverItem   The server path of the base item.
+     * @param  expectedHash The MD5 hash reported by TFS for the base
+     *                      contents, if known.
+     * @return              The contents, or null if there's no usable
+     *                      baseline.
+     */
+    public ScratchContent getBaseContent(final String serverItem, final byte[] expectedHash) {
+        final String location = locations.get(serverItem);
+
+        if (location == null) {
+            return null;
+        }
+
+        final ScratchContent.Writer writer = new ScratchContent.Writer();
+
+        try {
+            final byte[] hash = copyBaseline(new File(location), writer);
+
+            if (expectedHash != null && expectedHash.length > 0 &&
+                !Arrays.equals(hash, expectedHash)) {
+                log.warn("Local baseline for " + serverItem + " doesn't match " +
+                         "the hash reported by TFS; downloading it instead");
+                writer.discard();
+                return null;
+            }
+
+            log.info("Read base contents of " + serverItem + " from local baseline " + location);
+            return writer.toContent();
+        } catch (final IOException e) {
+            log.warn("Unable to read local baseline for " + serverItem + ": " + e.getMessage());
+            writer.discard();
+            return null;
+        }
+    }
+
+    /**
+     * Copy a baseline file, decompressing it if needed.
+     *
+     * @param  baseline The baseline file.
+     * @param  output   The stream to write the contents to.
+     * @return          The MD5 hash of the contents.
+     */
+    private static byte[] copyBaseline(final File baseline, final OutputStream output)
+                                       throws IOException {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        try(final InputStream input = openBaseline(baseline)) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int length;
+
+            while ((length = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+                output.write(buffer, 0, length);
+            }
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Open a baseline file for reading.
+     *
+     * Baselines are stored either gzip-compressed or raw. Rather than
+     * trusting the file extension, this checks for the gzip header.
+     *
+     * @param  baseline The baseline file.
+     * @return          A stream of the uncompressed contents.
+     */
+    private static InputStream openBaseline(final File baseline) throws IOException {
+        final BufferedInputStream input = new BufferedInputStream(
+            Files.newInputStream(baseline.toPath()), COPY_BUFFER_SIZE);
+
+        input.mark(2);
+        final int first = input.read();
+        final int second = input.read();
+        input.reset();
+
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(input, COPY_BUFFER_SIZE);
+        } else {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.reviewboard.tfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * The sizes, modification times and MD5 hashes of a set of local files.
+ *
+ * A working-copy diff hashes the local file of each pending change, both to
+ * see whether it still matches its base version and to key the diff section
+ * cache. Doing that one file at a time as each change is diffed leaves the
+ * disk and CPUs mostly idle, so this scans all of the files up front on a
+ * pool of threads.
+ */
+public class LocalFileScan {
+    private static Log log = LogFactory.getLog(LocalFileScan.class);
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * The state of a local file when it was scanned.
+     */
+    private static class ScannedFile {
+        public long size;
+        public long modified;
+        public byte[] hash;
+    }
+
+    private final Map<String, ScannedFile> files = new ConcurrentHashMap<String, ScannedFile>();
+
+    private LocalFileScan() {}
+
+    /**
+     * Scan a set of local files.
+     *
+     * Files which don't exist or can't be read are left out of the scan.
+     *
+     * @param  localItems The paths of the files.
+     * @return            The scan.
+     */
+    public static LocalFileScan scan(final Collection<String> localItems) {
+        final LocalFileScan scan = new LocalFileScan();
+        final int numThreads = Math.max(1, Math.min(
+            MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            numThreads, new ScanThreadFactory());
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        log.info("Scanning " + localItems.size() + " local files using " + numThreads + " threads");
+
+        try {
+            for (final String localItem : localItems) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        scan.scanFile(localItem);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (final Exception e) {
+                    log.warn("Error scanning local files: " + e.getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return scan;
+    }
+
+    /**
+     * Return the hash of a local file, if it hasn't changed since the scan.
+     *
+     * @param  localItem The path of the file.
+     * @param  size      The current size of the file.
+     * @param  modified  The current modification time of the file.
+     * @return           The MD5 hash, or null if the file wasn't scanned or
+     *                   has changed.
+     */
+    public byte[] getHash(final String localItem, final long size, final long modified) {
+        final ScannedFile scanned = localItem != null ? files.get(localItem) : null;
+
+        if (scanned == null || scanned.size != size || scanned.modified != modified) {
+            return null;
+        }
+
+        return scanned.hash;
+    }
+
+    /**
+     * Return the hash of a local file, if it hasn't changed since the scan.
+     *
+     * @param  localItem The path of the file.
+     * @return           The MD5 hash, or null if the file wasn't scanned or
+     *                   has changed.
+     */
+    public byte[] getHash(final String localItem) {
+        if (localItem == null) {
+            return null;
+        }
+
+        final File file = new File(localItem);
+        return getHash(localItem, file.length(), file.lastModified());
+    }
+
+    /**
+     * Scan a single file.
+     *
+     * @param localItem The path of the file.
+     */
+    private void scanFile(final String localItem) {
+        final File file = new File(localItem);
+
+        if (!file.isFile()) {
+            return;
+        }
+
+        final ScannedFile scanned = new ScannedFile();
+        scanned.size = file.length();
+        scanned.modified = file.lastModified();
+
+        try {
+            scanned.hash = TFSDiffer.computeHash(file);
+        } catch (final IOException e) {
+            log.warn("Unable to hash " + localItem + ": " + e.getMessage());
+            return;
+        }
+
+        /*
+         * If the file changed while it was being hashed, the hash may not
+         * match either version, so leave it for the differ to hash.
+         */
+        if (file.length() == scanned.size && file.lastModified() == scanned.modified) {
+            files.put(localItem, scanned);
+        }
+    }
+
+    /**
+     * A thread factory for the scan threads.
+     *
+     * Scan threads are marked as daemon threads, so that an abandoned scan
+     * never keeps the process alive.
+     */
+    private static class ScanThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-scan-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
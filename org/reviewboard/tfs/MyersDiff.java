@@ -0,0 +1,405 @@
+package org.reviewboard.tfs;
+
+
+/**
+ * A line-based implementation of the Myers diff algorithm.
+ *
+ * This operates on sequences of line IDs (see UnifiedDiff), where two lines
+ * with the same ID are known to be identical. The result is a pair of arrays
+ * marking which lines in each sequence were changed.
+ *
+ * The algorithm is the linear-space variant described in "An O(ND)
+ * Difference Algorithm and Its Variations" (Eugene W. Myers), including the
+ * same cost-limiting heuristic and boundary shifting used by GNU diff, so
+ * that the resulting hunks closely match what "diff -u" produces.
+ */
+public final class MyersDiff {
+    private static final int HORIZON_LINES = UnifiedDiff.CONTEXT_LINES;
+
+    private final int[] a;
+    private final int[] b;
+
+    /*
+     * Changed flags for each sequence. These are offset by one, so that
+     * index 0 and index length + 1 act as unchanged sentinels.
+     */
+    private final boolean[] changedA;
+    private final boolean[] changedB;
+
+    /*
+     * Forward and backward vectors, indexed by diagonal + diagOffset.
+     */
+    private final int[] fd;
+    private final int[] bd;
+    private final int diagOffset;
+    private final int tooExpensive;
+
+    /*
+     * The result of a middle snake search.
+     */
+    private int xmid;
+    private int ymid;
+
+    private MyersDiff(final int[] a, final int aLength,
+                      final int[] b, final int bLength) {
+        this.a = a;
+        this.b = b;
+        changedA = new boolean[aLength + 2];
+        changedB = new boolean[bLength + 2];
+
+        final int diags = aLength + bLength + 3;
+        fd = new int[diags];
+        bd = new int[diags];
+        diagOffset = bLength + 1;
+
+        int cost = 1;
+
+        for (int d = diags; d != 0; d >>= 2) {
+            cost <<= 1;
+        }
+
+        tooExpensive = Math.max(4096, cost);
+    }
+
+    /**
+     * Compute the differences between two sequences of line IDs.
+     *
+     * @param  a        The line IDs of the old file.
+     * @param  aLength  The number of lines in the old file.
+     * @param  b        The line IDs of the new file.
+     * @param  bLength  The number of lines in the new file.
+     * @param  changedA Receives the changed flags for the old file.
+     * @param  changedB Receives the changed flags for the new file.
+     */
+    public static void compute(final int[] a, final int aLength,
+                               final int[] b, final int bLength,
+                               final boolean[] changedA,
+                               final boolean[] changedB) {
+        /*
+         * Lines in a common prefix or suffix are never considered changed.
+         * Like GNU diff, we strip these before comparing, but keep a few
+         * lines (the same number as the context lines) on either side so
+         * that changes can still be shifted into them.
+         */
+        int prefix = 0;
+        int suffix = 0;
+
+        while (prefix < aLength && prefix < bLength && a[prefix] == b[prefix]) {
+            prefix++;
+        }
+
+        while (suffix < aLength - prefix && suffix < bLength - prefix &&
+               a[aLength - 1 - suffix] == b[bLength - 1 - suffix]) {
+            suffix++;
+        }
+
+        prefix = Math.max(0, prefix - HORIZON_LINES);
+        suffix = Math.max(0, suffix - HORIZON_LINES);
+
+        final int aMiddle = aLength - prefix - suffix;
+        final int bMiddle = bLength - prefix - suffix;
+        final MyersDiff diff = new MyersDiff(
+            slice(a, prefix, aMiddle), aMiddle,
+            slice(b, prefix, bMiddle), bMiddle);
+
+        diff.compareSequences(0, aMiddle, 0, bMiddle);
+        diff.shiftBoundaries(diff.a, diff.changedA, diff.changedB, aMiddle);
+        diff.shiftBoundaries(diff.b, diff.changedB, diff.changedA, bMiddle);
+
+        System.arraycopy(diff.changedA, 1, changedA, prefix, aMiddle);
+        System.arraycopy(diff.changedB, 1, changedB, prefix, bMiddle);
+    }
+
+    /**
+     * Return a range of an array.
+     *
+     * @param  ids    The array.
+     * @param  start  The start of the range.
+     * @param  length The length of the range.
+     * @return        The array itself if the range covers it, or a copy of
+     *                the range.
+     */
+    private static int[] slice(final int[] ids, final int start, final int length) {
+        if (start == 0 && length == ids.length) {
+            return ids;
+        }
+
+        final int[] result = new int[length];
+        System.arraycopy(ids, start, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Compare a range of the two sequences, marking changed lines.
+     *
+     * @param xoff The start of the range in the old file.
+     * @param xlim The end of the range in the old file.
+     * @param yoff The start of the range in the new file.
+     * @param ylim The end of the range in the new file.
+     */
+    private void compareSequences(int xoff, int xlim, int yoff, int ylim) {
+        while (xoff < xlim && yoff < ylim && a[xoff] == b[yoff]) {
+            xoff++;
+            yoff++;
+        }
+
+        while (xlim > xoff && ylim > yoff && a[xlim - 1] == b[ylim - 1]) {
+            xlim--;
+            ylim--;
+        }
+
+        if (xoff == xlim) {
+            while (yoff < ylim) {
+                changedB[1 + yoff++] = true;
+            }
+        } else if (yoff == ylim) {
+            while (xoff < xlim) {
+                changedA[1 + xoff++] = true;
+            }
+        } else {
+            findMiddleSnake(xoff, xlim, yoff, ylim);
+
+            final int x = xmid;
+            final int y = ymid;
+
+            compareSequences(xoff, x, yoff, y);
+            compareSequences(x, xlim, y, ylim);
+        }
+    }
+
+    /**
+     * Find the midpoint of the shortest edit script for a range.
+     *
+     * The result is stored in xmid and ymid.
+     *
+     * @param xoff The start of the range in the old file.
+     * @param xlim The end of the range in the old file.
+     * @param yoff The start of the range in the new file.
+     * @param ylim The end of the range in the new file.
+     */
+    private void findMiddleSnake(final int xoff, final int xlim,
+                                 final int yoff, final int ylim) {
+        final int dmin = xoff - ylim;
+        final int dmax = xlim - yoff;
+        final int fmid = xoff - yoff;
+        final int bmid = xlim - ylim;
+        final boolean odd = ((fmid - bmid) & 1) != 0;
+        final int o = diagOffset;
+        int fmin = fmid;
+        int fmax = fmid;
+        int bmin = bmid;
+        int bmax = bmid;
+
+        fd[o + fmid] = xoff;
+        bd[o + bmid] = xlim;
+
+        for (int c = 1; ; c++) {
+            /* Extend the forward search by one edit. */
+            if (fmin > dmin) {
+                fd[o + --fmin - 1] = -1;
+            } else {
+                ++fmin;
+            }
+
+            if (fmax < dmax) {
+                fd[o + ++fmax + 1] = -1;
+            } else {
+                --fmax;
+            }
+
+            for (int d = fmax; d >= fmin; d -= 2) {
+                final int tlo = fd[o + d - 1];
+                final int thi = fd[o + d + 1];
+                int x = (tlo >= thi) ? tlo + 1 : thi;
+                int y = x - d;
+
+                while (x < xlim && y < ylim && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+
+                fd[o + d] = x;
+
+                if (odd && bmin <= d && d <= bmax && bd[o + d] <= x) {
+                    xmid = x;
+                    ymid = y;
+                    return;
+                }
+            }
+
+            /* Extend the backward search by one edit. */
+            if (bmin > dmin) {
+                bd[o + --bmin - 1] = Integer.MAX_VALUE;
+            } else {
+                ++bmin;
+            }
+
+            if (bmax < dmax) {
+                bd[o + ++bmax + 1] = Integer.MAX_VALUE;
+            } else {
+                --bmax;
+            }
+
+            for (int d = bmax; d >= bmin; d -= 2) {
+                final int tlo = bd[o + d - 1];
+                final int thi = bd[o + d + 1];
+                int x = (tlo < thi) ? tlo : thi - 1;
+                int y = x - d;
+
+                while (x > xoff && y > yoff && a[x - 1] == b[y - 1]) {
+                    x--;
+                    y--;
+                }
+
+                bd[o + d] = x;
+
+                if (!odd && fmin <= d && d <= fmax && x <= fd[o + d]) {
+                    xmid = x;
+                    ymid = y;
+                    return;
+                }
+            }
+
+            if (c >= tooExpensive) {
+                /*
+                 * This is taking too long. Give up on finding the optimal
+                 * midpoint and use whichever diagonal has made the most
+                 * progress instead.
+                 */
+                int fxybest = -1;
+                int fxbest = 0;
+
+                for (int d = fmax; d >= fmin; d -= 2) {
+                    int x = Math.min(fd[o + d], xlim);
+                    int y = x - d;
+
+                    if (ylim < y) {
+                        x = ylim + d;
+                        y = ylim;
+                    }
+
+                    if (fxybest < x + y) {
+                        fxybest = x + y;
+                        fxbest = x;
+                    }
+                }
+
+                int bxybest = Integer.MAX_VALUE;
+                int bxbest = 0;
+
+                for (int d = bmax; d >= bmin; d -= 2) {
+                    int x = Math.max(xoff, bd[o + d]);
+                    int y = x - d;
+
+                    if (y < yoff) {
+                        x = yoff + d;
+                        y = yoff;
+                    }
+
+                    if (x + y < bxybest) {
+                        bxybest = x + y;
+                        bxbest = x;
+                    }
+                }
+
+                if ((xlim + ylim) - bxybest < fxybest - (xoff + yoff)) {
+                    xmid = fxbest;
+                    ymid = fxybest - fxbest;
+                } else {
+                    xmid = bxbest;
+                    ymid = bxybest - bxbest;
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Slide runs of changed lines to produce more readable hunks.
+     *
+     * Runs of changes are merged with neighbouring runs where possible,
+     * moved as far forward as possible, and then aligned with a
+     * corresponding run of changes in the other file. This is the same
+     * normalization that GNU diff performs.
+     *
+     * @param ids          The line IDs of this file.
+     * @param changed      The (offset) changed flags of this file.
+     * @param otherChanged The (offset) changed flags of the other file.
+     * @param length       The number of lines in this file.
+     */
+    private void shiftBoundaries(final int[] ids, final boolean[] changed,
+                                 final boolean[] otherChanged,
+                                 final int length) {
+        /*
+         * Indexes here are 1-based, to line up with the sentinels in the
+         * changed arrays.
+         */
+        final int iEnd = length + 1;
+        int i = 1;
+        int j = 1;
+
+        while (true) {
+            while (i < iEnd && !changed[i]) {
+                while (otherChanged[j++]) {
+                }
+
+                i++;
+            }
+
+            if (i == iEnd) {
+                break;
+            }
+
+            int start = i;
+            int runLength;
+            int corresponding;
+
+            while (changed[++i]) {
+            }
+
+            while (otherChanged[j]) {
+                j++;
+            }
+
+            do {
+                runLength = i - start;
+
+                while (start > 1 && ids[start - 2] == ids[i - 2]) {
+                    changed[--start] = true;
+                    changed[--i] = false;
+
+                    while (changed[start - 1]) {
+                        start--;
+                    }
+
+                    while (otherChanged[--j]) {
+                    }
+                }
+
+                corresponding = otherChanged[j - 1] ? i : iEnd;
+
+                while (i != iEnd && ids[start - 1] == ids[i - 1]) {
+                    changed[start++] = false;
+                    changed[i++] = true;
+
+                    while (changed[i]) {
+                        i++;
+                    }
+
+                    while (otherChanged[++j]) {
+                        corresponding = i;
+                    }
+                }
+            } while (runLength != i - start);
+
+            while (corresponding < i) {
+                changed[--start] = true;
+                changed[--i] = false;
+
+                while (otherChanged[--j]) {
+                }
+            }
+        }
+    }
+}
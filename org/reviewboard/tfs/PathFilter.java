@@ -0,0 +1,251 @@
+package org.reviewboard.tfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.RecursionType;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.ItemSpec;
+
+
+/**
+ * A filter selecting which server paths are included in a diff.
+ *
+ * Each pattern is a server path, which may contain globs:
+ *
+ *     *   Any characters within a path component.
+ *     ?   Any single character within a path component.
+ *     **  Any number of path components (including none).
+ *
+ * A pattern matches an item if it matches the item's path, or the path of
+ * any folder containing it, so a folder selects everything inside it.
+ * Matching is case-insensitive, like TFS paths.
+ *
+ * The server can only narrow a query to a set of folders, so each include
+ * pattern contributes the folder before its first glob as an ItemSpec. The
+ * globs themselves, and all excludes, are matched on the client.
+ */
+public class PathFilter {
+    private final List<String> includeRoots = new ArrayList<String>();
+    private final List<Pattern> includes = new ArrayList<Pattern>();
+    private final List<Pattern> excludes = new ArrayList<Pattern>();
+
+    /**
+     * Create the filter.
+     *
+     * @param includePatterns The server path patterns to include. If this is
+     *                        empty, everything is included.
+     * @param excludePatterns The server path patterns to exclude.
+     */
+    public PathFilter(final List<String> includePatterns,
+                      final List<String> excludePatterns) {
+        for (String pattern : includePatterns) {
+            includes.add(compile(pattern));
+            addIncludeRoot(getLiteralPrefix(pattern));
+        }
+
+        for (String pattern : excludePatterns) {
+            excludes.add(compile(pattern));
+        }
+
+        Collections.sort(includeRoots, String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Return whether an item passes the filter.
+     *
+     * @param  serverItem The server path of the item.
+     * @return            Whether the item is included.
+     */
+    public boolean matches(final String serverItem) {
+        if (!includes.isEmpty() && !matchesAny(includes, serverItem)) {
+            return false;
+        }
+
+        return !matchesAny(excludes, serverItem);
+    }
+
+    /**
+     * Return whether the filter narrows the paths to query.
+     *
+     * @return Whether there are any include patterns.
+     */
+    public boolean hasIncludes() {
+        return !includes.isEmpty();
+    }
+
+    /**
+     * Return the folders (or files) which contain everything that could be
+     * included. None of them is inside another.
+     *
+     * @return The server paths.
+     */
+    public List<String> getIncludeRoots() {
+        return Collections.unmodifiableList(includeRoots);
+    }
+
+    /**
+     * Return the include roots, clipped to a folder.
+     *
+     * Roots inside the folder are kept, a root containing the folder is
+     * replaced by the folder itself, and roots outside it are dropped, so
+     * that nothing outside the folder is queried.
+     *
+     * @param  scope The server path of the folder.
+     * @return       The server paths. This may be empty.
+     */
+    public List<String> getIncludeRoots(final String scope) {
+        final List<String> result = new ArrayList<String>();
+
+        for (String root : includeRoots) {
+            if (isSameOrChild(scope, root)) {
+                result.add(root);
+            } else if (isSameOrChild(root, scope)) {
+                result.add(scope);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return ItemSpecs covering everything that could be included.
+     *
+     * @return The specs, with full recursion.
+     */
+    public ItemSpec[] getItemSpecs() {
+        return toItemSpecs(includeRoots);
+    }
+
+    /**
+     * Return ItemSpecs for a list of server paths.
+     *
+     * @param  roots The server paths.
+     * @return       The specs, with full recursion.
+     */
+    public static ItemSpec[] toItemSpecs(final List<String> roots) {
+        final ItemSpec[] specs = new ItemSpec[roots.size()];
+
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new ItemSpec(roots.get(i), RecursionType.FULL);
+        }
+
+        return specs;
+    }
+
+    /**
+     * Return whether a path contains glob characters.
+     *
+     * @param  path The path.
+     * @return      Whether it contains any globs.
+     */
+    public static boolean isGlob(final String path) {
+        return path.indexOf('*') != -1 || path.indexOf('?') != -1;
+    }
+
+    /**
+     * Add a root to query, unless it's covered by an existing root.
+     * Existing roots covered by the new one are removed.
+     *
+     * @param root The server path of the root.
+     */
+    private void addIncludeRoot(final String root) {
+        for (int i = includeRoots.size() - 1; i >= 0; i--) {
+            final String existing = includeRoots.get(i);
+
+            if (isSameOrChild(existing, root)) {
+                return;
+            } else if (isSameOrChild(root, existing)) {
+                includeRoots.remove(i);
+            }
+        }
+
+        includeRoots.add(root);
+    }
+
+    /**
+     * Return the part of a pattern before the component containing its
+     * first glob.
+     *
+     * @param  pattern The pattern.
+     * @return         The literal server path.
+     */
+    private static String getLiteralPrefix(final String pattern) {
+        final String[] components = pattern.split("/");
+        final StringBuilder prefix = new StringBuilder(components[0]);
+
+        for (int i = 1; i < components.length && !isGlob(components[i]); i++) {
+            prefix.append('/').append(components[i]);
+        }
+
+        return prefix.length() > 1 ? prefix.toString() : "$/";
+    }
+
+    /**
+     * Return whether a path is the same as, or inside, a folder.
+     *
+     * @param  folder The folder.
+     * @param  path   The path.
+     * @return        Whether the path is within the folder.
+     */
+    private static boolean isSameOrChild(final String folder, final String path) {
+        if (folder.equals("$/")) {
+            return true;
+        }
+
+        return path.equalsIgnoreCase(folder) ||
+               (path.length() > folder.length() &&
+                path.charAt(folder.length()) == '/' &&
+                path.regionMatches(true, 0, folder, 0, folder.length()));
+    }
+
+    private static boolean matchesAny(final List<Pattern> patterns, final String serverItem) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(serverItem).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Convert a pattern to a regular expression, which also matches
+     * anything inside the paths that the pattern matches.
+     *
+     * @param  pattern The pattern.
+     * @return         The compiled expression.
+     */
+    private static Pattern compile(final String pattern) {
+        final StringBuilder regex = new StringBuilder();
+        String remaining = pattern;
+
+        while (remaining.endsWith("/") && remaining.length() > 2) {
+            remaining = remaining.substring(0, remaining.length() - 1);
+        }
+
+        for (int i = 0; i < remaining.length(); i++) {
+            final char c = remaining.charAt(i);
+
+            if (c == '*' && remaining.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (c == '*' && remaining.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        regex.append(remaining.endsWith("/") ? ".*" : "(?:/.*)?");
+
+        return Pattern.compile(regex.toString(),
+                               Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+}
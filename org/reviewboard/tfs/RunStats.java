@@ -0,0 +1,406 @@
+package org.reviewboard.tfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/**
+ * Timings and counters for a single run of a command.
+ *
+ * Every command collects these, and they're printed as JSON when --stats
+ * is given. The summary covers:
+ *
+ *     phases       Wall-clock time for each stage of the command, such as
+ *                  the workspace lookup, credentials and the diff.
+ *     serverCalls  The number of each kind of call made to the server,
+ *                  with their total time (and bytes, for downloads).
+ *     downloads    The latency of file downloads (including any hedged
+ *                  or retried requests), and how often they were hedged,
+ *                  retried after a failure or timed out.
+ *     files        The number of files with each result (diffed, binary,
+ *                  skipped, and so on), and the time spent fetching and
+ *                  diffing them. Files are fetched and diffed on several
+ *                  threads at once, so these times are summed across
+ *                  threads and can exceed the wall-clock time.
+ *     slowestFiles The files which took the longest to fetch and diff.
+ *
+ * Server calls and files are also recorded as JFR events (see
+ * FlightEvents), so they can be lined up with the rest of a flight
+ * recording. This is safe to use from multiple threads at once.
+ */
+public class RunStats {
+    /*
+     * The number of files to list in the slowest files.
+     */
+    private static final int SLOWEST_FILES = 10;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /*
+     * The count, total time and total bytes for each kind of server call.
+     */
+    private final Map<String, long[]> serverCalls = new LinkedHashMap<String, long[]>();
+    private final Map<String, Integer> fileResults = new LinkedHashMap<String, Integer>();
+    private long fetchNanos = 0;
+    private long diffNanos = 0;
+
+    /*
+     * The latency of each file download, and the hedging and retry
+     * counters.
+     */
+    private long[] downloadNanos = new long[16];
+    private int numDownloads = 0;
+    private int hedgedDownloads = 0;
+    private int hedgeWins = 0;
+    private int retriedDownloads = 0;
+    private int timedOutDownloads = 0;
+
+    /*
+     * The slowest files so far, with the fastest of them at the head.
+     */
+    private final PriorityQueue<FileTiming> slowestFiles =
+        new PriorityQueue<FileTiming>(SLOWEST_FILES + 1, new Comparator<FileTiming>() {
+            public int compare(final FileTiming a, final FileTiming b) {
+                return Long.compare(a.getTotalNanos(), b.getTotalNanos());
+            }
+        });
+
+    /**
+     * The time taken to fetch and diff a file.
+     */
+    private static class FileTiming {
+        public String path;
+        public String result;
+        public long size;
+        public long fetchNanos;
+        public long diffNanos;
+
+        public long getTotalNanos() {
+            return fetchNanos + diffNanos;
+        }
+    }
+
+    /**
+     * A timer for a phase, server call or file which is in progress.
+     */
+    public static class Timer {
+        private final RunStats stats;
+        private final String name;
+        private final String detail;
+        private final long start = System.nanoTime();
+        private final Object event;
+
+        private Timer(final RunStats stats, final String name,
+                      final String detail, final Object event) {
+            this.stats = stats;
+            this.name = name;
+            this.detail = detail;
+            this.event = event;
+        }
+
+        /**
+         * Stop timing a phase or server call.
+         */
+        public void stop() {
+            stop(0);
+        }
+
+        /**
+         * Stop timing a server call which transferred file contents.
+         *
+         * @param bytes The number of bytes transferred.
+         */
+        public void stop(final long bytes) {
+            final long elapsed = System.nanoTime() - start;
+
+            if (detail == null) {
+                stats.addPhase(name, elapsed);
+            } else {
+                FlightEvents.SERVER_CALL.commit(event, name, detail, bytes);
+                stats.addServerCall(name, elapsed, bytes);
+            }
+        }
+
+        /**
+         * Stop timing the diff of a file.
+         *
+         * @param result     What was done with the file, such as "diffed"
+         *                   or "binary".
+         * @param size       The size of the larger side of the file.
+         * @param fetchNanos The time spent fetching the file beforehand.
+         */
+        public void stopFile(final String result, final long size, final long fetchNanos) {
+            final FileTiming timing = new FileTiming();
+            timing.path = name;
+            timing.result = result;
+            timing.size = size;
+            timing.fetchNanos = fetchNanos;
+            timing.diffNanos = System.nanoTime() - start;
+
+            FlightEvents.FILE.commit(event, name, result, size, fetchNanos);
+            stats.addFile(timing);
+        }
+    }
+
+    /**
+     * Start timing a phase of the command.
+     *
+     * Phases which are timed more than once have their times added up.
+     *
+     * @param  phase The name of the phase.
+     * @return       The timer.
+     */
+    public Timer startPhase(final String phase) {
+        return new Timer(this, phase, null, null);
+    }
+
+    /**
+     * Start timing a call to the server.
+     *
+     * @param  call   The name of the call, such as "queryHistory".
+     * @param  detail What the call is for, such as a path.
+     * @return        The timer.
+     */
+    public Timer startServerCall(final String call, final String detail) {
+        return new Timer(this, call, detail != null ? detail : "",
+                         FlightEvents.SERVER_CALL.begin());
+    }
+
+    /**
+     * Start timing the diff of a file.
+     *
+     * @param  path The server path of the file.
+     * @return      The timer.
+     */
+    public Timer startFile(final String path) {
+        return new Timer(this, path, null, FlightEvents.FILE.begin());
+    }
+
+    /**
+     * Record a file which was left out of the diff without being diffed.
+     *
+     * @param fetchNanos The time spent deciding to skip the file.
+     */
+    public synchronized void addSkippedFile(final long fetchNanos) {
+        countFile("skipped");
+        this.fetchNanos += fetchNanos;
+    }
+
+    /**
+     * Record a file download which finished.
+     *
+     * @param nanos    The time taken, including any hedged or retried
+     *                 request.
+     * @param hedged   Whether a hedged request was started.
+     * @param hedgeWon Whether the hedged request finished first.
+     * @param retried  Whether the download was retried after its first
+     *                 request failed.
+     */
+    public synchronized void addDownload(final long nanos, final boolean hedged,
+                                         final boolean hedgeWon, final boolean retried) {
+        if (numDownloads == downloadNanos.length) {
+            downloadNanos = Arrays.copyOf(downloadNanos, numDownloads * 2);
+        }
+
+        downloadNanos[numDownloads++] = nanos;
+
+        if (hedged) {
+            hedgedDownloads++;
+        }
+
+        if (hedgeWon) {
+            hedgeWins++;
+        }
+
+        if (retried) {
+            retriedDownloads++;
+        }
+    }
+
+    /**
+     * Record a file download which ran out of time.
+     */
+    public synchronized void addDownloadTimeout() {
+        timedOutDownloads++;
+    }
+
+    private synchronized void addPhase(final String phase, final long nanos) {
+        final Long total = phases.get(phase);
+        phases.put(phase, (total != null ? total : 0) + nanos);
+    }
+
+    private synchronized void addServerCall(final String call, final long nanos,
+                                            final long bytes) {
+        long[] totals = serverCalls.get(call);
+
+        if (totals == null) {
+            totals = new long[3];
+            serverCalls.put(call, totals);
+        }
+
+        totals[0]++;
+        totals[1] += nanos;
+        totals[2] += bytes;
+    }
+
+    private synchronized void addFile(final FileTiming timing) {
+        countFile(timing.result);
+        fetchNanos += timing.fetchNanos;
+        diffNanos += timing.diffNanos;
+
+        slowestFiles.add(timing);
+
+        if (slowestFiles.size() > SLOWEST_FILES) {
+            slowestFiles.remove();
+        }
+    }
+
+    private void countFile(final String result) {
+        final Integer count = fileResults.get(result);
+        fileResults.put(result, (count != null ? count : 0) + 1);
+    }
+
+    /**
+     * Return the summary as JSON.
+     *
+     * @return The JSON summary.
+     */
+    public synchronized String toJson() {
+        final StringBuilder json = new StringBuilder();
+        long bytesDownloaded = 0;
+        int totalFiles = 0;
+
+        json.append("{\n  \"totalMs\": ").append(formatMillis(System.nanoTime() - startNanos));
+
+        json.append(",\n  \"phases\": {");
+        String separator = "\n";
+
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.append(separator).append("    ").append(quote(phase.getKey()))
+                .append(": ").append(formatMillis(phase.getValue()));
+            separator = ",\n";
+        }
+
+        json.append(phases.isEmpty() ? "}" : "\n  }");
+
+        json.append(",\n  \"serverCalls\": {");
+        separator = "\n";
+
+        for (Map.Entry<String, long[]> call : serverCalls.entrySet()) {
+            final long[] totals = call.getValue();
+
+            json.append(separator).append("    ").append(quote(call.getKey()))
+                .append(": {\"count\": ").append(totals[0])
+                .append(", \"ms\": ").append(formatMillis(totals[1]));
+
+            if (totals[2] > 0) {
+                json.append(", \"bytes\": ").append(totals[2]);
+            }
+
+            json.append("}");
+            bytesDownloaded += totals[2];
+            separator = ",\n";
+        }
+
+        json.append(serverCalls.isEmpty() ? "}" : "\n  }");
+        json.append(",\n  \"bytesDownloaded\": ").append(bytesDownloaded);
+
+        final long[] latencies = Arrays.copyOf(downloadNanos, numDownloads);
+        Arrays.sort(latencies);
+
+        json.append(",\n  \"downloads\": {\"count\": ").append(numDownloads)
+            .append(", \"p50Ms\": ").append(formatMillis(getPercentile(latencies, 0.5)))
+            .append(", \"p99Ms\": ").append(formatMillis(getPercentile(latencies, 0.99)))
+            .append(", \"hedged\": ").append(hedgedDownloads)
+            .append(", \"hedgeWins\": ").append(hedgeWins)
+            .append(", \"retried\": ").append(retriedDownloads)
+            .append(", \"timedOut\": ").append(timedOutDownloads)
+            .append("}");
+
+        json.append(",\n  \"files\": {");
+
+        for (Map.Entry<String, Integer> result : fileResults.entrySet()) {
+            json.append("\n    ").append(quote(result.getKey()))
+                .append(": ").append(result.getValue()).append(",");
+            totalFiles += result.getValue();
+        }
+
+        json.append("\n    \"total\": ").append(totalFiles)
+            .append(",\n    \"fetchMs\": ").append(formatMillis(fetchNanos))
+            .append(",\n    \"diffMs\": ").append(formatMillis(diffNanos))
+            .append("\n  }");
+
+        final List<FileTiming> slowest = new ArrayList<FileTiming>(slowestFiles);
+        Collections.sort(slowest, Collections.reverseOrder(slowestFiles.comparator()));
+
+        json.append(",\n  \"slowestFiles\": [");
+        separator = "\n";
+
+        for (FileTiming timing : slowest) {
+            json.append(separator).append("    {\"path\": ").append(quote(timing.path))
+                .append(", \"result\": ").append(quote(timing.result))
+                .append(", \"size\": ").append(timing.size)
+                .append(", \"fetchMs\": ").append(formatMillis(timing.fetchNanos))
+                .append(", \"diffMs\": ").append(formatMillis(timing.diffNanos))
+                .append("}");
+            separator = ",\n";
+        }
+
+        json.append(slowest.isEmpty() ? "]" : "\n  ]");
+        json.append("\n}");
+
+        return json.toString();
+    }
+
+    /**
+     * Return a percentile of some sorted values.
+     *
+     * @param  sorted     The values, in ascending order.
+     * @param  percentile The percentile, from 0 to 1.
+     * @return            The value at the percentile, or 0 if there are no
+     *                    values.
+     */
+    private static long getPercentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[(int)Math.ceil(percentile * sorted.length) - 1];
+    }
+
+    private static String formatMillis(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Quote a string for JSON.
+     *
+     * @param  value The string.
+     * @return       The quoted string.
+     */
+    static String quote(final String value) {
+        final StringBuilder result = new StringBuilder("\"");
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int)c));
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.append('"').toString();
+    }
+}
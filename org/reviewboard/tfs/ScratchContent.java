@@ -0,0 +1,341 @@
+package org.reviewboard.tfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * The contents of one side of a file being diffed.
+ *
+ * Contents come from one of a few places:
+ *
+ *     EMPTY      The missing side of an add or delete. Nothing is stored.
+ *     In memory  Small downloads and baselines, up to MEMORY_LIMIT bytes.
+ *     Scratch    Larger downloads, which spill to a temporary file that is
+ *                mapped into memory when diffed.
+ *     File       An existing file that isn't owned by the diff, such as a
+ *                working copy file or a base cache entry.
+ *
+ * Contents should be closed as soon as they've been diffed, which releases
+ * any scratch file. Scratch files are unlinked as soon as they're created
+ * where the platform allows it (and are otherwise deleted by the OS when
+ * closed), so they aren't left behind if the process dies.
+ */
+public abstract class ScratchContent implements Closeable {
+    private static Log log = LogFactory.getLog(ScratchContent.class);
+
+    /*
+     * Contents up to this size are kept in memory rather than spilled to a
+     * scratch file.
+     */
+    public static final int MEMORY_LIMIT = 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /*
+     * Empty contents, which never touch the filesystem.
+     */
+    public static final ScratchContent EMPTY = new MemoryContent(new byte[0], 0);
+
+    /**
+     * Return the size of the contents.
+     *
+     * @return The size, in bytes.
+     */
+    public abstract long size();
+
+    /**
+     * Return the contents as a buffer.
+     *
+     * File contents are mapped into memory, rather than read. The buffer
+     * must not be modified.
+     *
+     * @return A buffer with the contents.
+     */
+    public abstract ByteBuffer getBuffer() throws IOException;
+
+    /**
+     * Open the contents for reading.
+     *
+     * @return A stream of the contents.
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * Release any storage used by the contents.
+     */
+    public void close() {}
+
+    /**
+     * Wrap an existing file.
+     *
+     * The file is not deleted when the contents are closed.
+     *
+     * @param  file The file.
+     * @return      The contents.
+     */
+    public static ScratchContent forFile(final File file) {
+        return new FileContent(file);
+    }
+
+    /**
+     * Return whether two contents are identical.
+     *
+     * @param  a The first contents.
+     * @param  b The second contents.
+     * @return   Whether the contents are identical.
+     */
+    public static boolean contentEquals(final ScratchContent a, final ScratchContent b)
+                                        throws IOException {
+        if (a.size() != b.size()) {
+            return false;
+        }
+
+        try(final InputStream streamA = a.openStream();
+            final InputStream streamB = b.openStream()) {
+            return IOUtils.contentEquals(streamA, streamB);
+        }
+    }
+
+    /**
+     * Collects contents as they're written, keeping them in memory until
+     * they outgrow MEMORY_LIMIT and spilling them to a scratch file after
+     * that.
+     *
+     * Once writing is finished, toContent() returns the contents. If
+     * writing fails, discard() must be called instead.
+     */
+    public static class Writer extends OutputStream {
+        private byte[] buffer = new byte[8192];
+        private int length = 0;
+        private FileChannel channel = null;
+        private long size = 0;
+
+        public void write(final int b) throws IOException {
+            if (channel == null && length < buffer.length && length < MEMORY_LIMIT) {
+                buffer[length++] = (byte)b;
+                size++;
+            } else {
+                write(new byte[]{ (byte)b }, 0, 1);
+            }
+        }
+
+        public void write(final byte[] data, final int offset, final int count)
+                          throws IOException {
+            if (channel == null && length + (long)count > MEMORY_LIMIT) {
+                spill();
+            }
+
+            if (channel == null) {
+                if (length + count > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(length + count, buffer.length * 2));
+                }
+
+                System.arraycopy(data, offset, buffer, length, count);
+                length += count;
+            } else {
+                final ByteBuffer source = ByteBuffer.wrap(data, offset, count);
+
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+
+            size += count;
+        }
+
+        /**
+         * Return the written contents.
+         *
+         * @return The contents.
+         */
+        public ScratchContent toContent() {
+            if (channel == null) {
+                return length == 0 ? EMPTY : new MemoryContent(buffer, length);
+            }
+
+            final ScratchContent content = new SpilledContent(channel, size);
+            channel = null;
+            return content;
+        }
+
+        /**
+         * Throw away the written contents.
+         */
+        public void discard() {
+            buffer = null;
+
+            if (channel != null) {
+                closeQuietly(channel);
+                channel = null;
+            }
+        }
+
+        /**
+         * Move the contents written so far into a new scratch file.
+         */
+        private void spill() throws IOException {
+            final Path path = Files.createTempFile("rb-tfs-scratch", ".tmp");
+
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE,
+                                           StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (final IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+
+            /*
+             * Where open files can be deleted, the file is unlinked right
+             * away, so that nothing is left behind even if the process is
+             * killed. Elsewhere, the OS deletes it once the channel closes.
+             */
+            try {
+                Files.deleteIfExists(path);
+            } catch (final IOException e) {
+            }
+
+            final ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+
+            buffer = null;
+            length = 0;
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            log.warn("Unable to release scratch file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Contents held in memory.
+     */
+    private static class MemoryContent extends ScratchContent {
+        private final byte[] data;
+        private final int length;
+
+        public MemoryContent(final byte[] data, final int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        public long size() {
+            return length;
+        }
+
+        public ByteBuffer getBuffer() {
+            return ByteBuffer.wrap(data, 0, length).slice();
+        }
+
+        public InputStream openStream() {
+            return new ByteArrayInputStream(data, 0, length);
+        }
+    }
+
+    /**
+     * Contents in an existing file.
+     */
+    private static class FileContent extends ScratchContent {
+        private final File file;
+
+        public FileContent(final File file) {
+            this.file = file;
+        }
+
+        public long size() {
+            return file.length();
+        }
+
+        public ByteBuffer getBuffer() throws IOException {
+            try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        public InputStream openStream() throws IOException {
+            return Files.newInputStream(file.toPath());
+        }
+    }
+
+    /**
+     * Contents in a scratch file, which is deleted when they're closed.
+     */
+    private static class SpilledContent extends ScratchContent {
+        private final FileChannel channel;
+        private final long size;
+
+        public SpilledContent(final FileChannel channel, final long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public ByteBuffer getBuffer() throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        public InputStream openStream() {
+            return new InputStream() {
+                private final ByteBuffer single = ByteBuffer.allocate(1);
+                private long position = 0;
+
+                public int read() throws IOException {
+                    single.clear();
+                    return read(single) > 0 ? single.get(0) & 0xff : -1;
+                }
+
+                public int read(final byte[] data, final int offset, final int count)
+                                throws IOException {
+                    return read(ByteBuffer.wrap(data, offset, Math.min(count, COPY_BUFFER_SIZE)));
+                }
+
+                /*
+                 * Positional reads leave the channel's own position alone,
+                 * so several streams can read the contents at once.
+                 */
+                private int read(final ByteBuffer target) throws IOException {
+                    if (position >= size) {
+                        return -1;
+                    }
+
+                    final int count = channel.read(target, position);
+
+                    if (count > 0) {
+                        position += count;
+                    }
+
+                    return count;
+                }
+            };
+        }
+
+        public void close() {
+            closeQuietly(channel);
+        }
+    }
+}
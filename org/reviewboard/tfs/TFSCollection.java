@@ -9,10 +9,14 @@ import com.microsoft.tfs.core.httpclient.Credentials;
  * This adaptor allows the TFSTeamProjectCollection to be used with java's
  * relatively new try-with-resources construct to automatically close the
  * connection, even when there are exceptions.
+ *
+ * Collections owned by a CollectionPool are kept open when closed, so that
+ * they can be reused by later commands.
  */
 public class TFSCollection extends TFSTeamProjectCollection implements AutoCloseable {
     public String workdir;
     public WorkspaceInfo workspace;
+    private boolean pooled = false;
 
     public TFSCollection(java.net.URI serverURI, Credentials credentials, String workdir, WorkspaceInfo workspace) {
         super(serverURI, credentials);
@@ -21,7 +25,23 @@ public class TFSCollection extends TFSTeamProjectCollection implements AutoClose
         this.workspace = workspace;
     }
 
+    /**
+     * Mark this collection as being owned by a pool.
+     */
+    void setPooled() {
+        pooled = true;
+    }
+
     public void close() {
+        if (!pooled) {
+            super.close();
+        }
+    }
+
+    /**
+     * Close the connection, even if this collection is pooled.
+     */
+    void closeConnection() {
         super.close();
     }
 };
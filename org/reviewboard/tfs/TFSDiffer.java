@@ -3,17 +3,40 @@ package org.reviewboard.tfs;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.microsoft.tfs.core.clients.versioncontrol.VersionControlClient;
 import com.microsoft.tfs.core.clients.versioncontrol.VersionControlConstants;
 import com.microsoft.tfs.core.clients.versioncontrol.exceptions.VersionControlException;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ChangeType;
+import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.Item;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.ItemType;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingChange;
 import com.microsoft.tfs.core.clients.versioncontrol.soapextensions.PendingSet;
-import com.microsoft.tfs.util.temp.TempStorageService;
-import org.apache.commons.io.FileUtils;
+import com.microsoft.tfs.core.clients.versioncontrol.specs.DownloadSpec;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,14 +49,209 @@ public class TFSDiffer {
     private static TFSDiffer instance = null;
     private static Log log = LogFactory.getLog(TFSDiffer.class);
     private final Charset utf8 = Charset.forName("UTF-8");
+    private static final int HASH_BUFFER_SIZE = 65536;
 
     public static class DiffResult {
-        public byte[] diff = null;
+        /*
+         * The diff, if it wasn't streamed. Large diffs are held in scratch
+         * storage rather than the heap, so this should be closed once it's
+         * been written out.
+         */
+        public ScratchContent diff = null;
         public String err = null;
         public boolean warnAboutDirty = false;
         public boolean success = true;
     }
 
+    public static class DiffOptions {
+        /*
+         * The number of threads used to download file contents. A value of 1
+         * downloads each change's contents right before diffing it.
+         */
+        public int downloadThreads = 1;
+
+        /*
+         * The number of threads used to compute diffs. A value of 1 computes
+         * each diff on the calling thread, as it's written out.
+         */
+        public int jobs = 1;
+
+        /*
+         * A persistent cache for base file contents, if enabled.
+         */
+        public BaseContentCache baseCache = null;
+
+        /*
+         * A cache of the diff sections for changes in a local workspace, if
+         * enabled.
+         */
+        public DiffSectionCache sectionCache = null;
+
+        /*
+         * The baselines of a local workspace, used as base contents for its
+         * pending changes instead of downloading them.
+         */
+        public LocalBaselineStore localBaselines = null;
+
+        /*
+         * The hashes of the local files of the pending changes, if they were
+         * scanned ahead of time.
+         */
+        public LocalFileScan localFiles = null;
+
+        /*
+         * Text files larger than this many bytes are diffed by streaming
+         * them through WindowedDiff, rather than mapping them into memory.
+         */
+        public long largeFileSize = 32L * 1024 * 1024;
+
+        /*
+         * The approximate amount of memory, in bytes, that each windowed
+         * diff of a large file may use.
+         */
+        public long largeFileMemory = 64L * 1024 * 1024;
+
+        /*
+         * Text files larger than this many bytes aren't diffed at all, and
+         * are reported in the same way as binary files.
+         */
+        public long maxDiffFileSize = 512L * 1024 * 1024;
+
+        /*
+         * Timings and counters for the diff.
+         */
+        public RunStats stats = new RunStats();
+
+        /*
+         * The paths to include in the diff, if they were restricted.
+         */
+        public PathFilter pathFilter = null;
+
+        /*
+         * Whether to write a line of change counts for each file, instead
+         * of its diff. See writeStatContents().
+         */
+        public boolean stat = false;
+
+        /*
+         * Runs downloads with a deadline, and hedges slow ones.
+         */
+        public HedgedDownloader downloader =
+            new HedgedDownloader(HedgedDownloader.DEFAULT_TIMEOUT_MS, true);
+
+        /**
+         * Return a copy of these options.
+         *
+         * The copy shares the caches, stats and downloader with these
+         * options, so that several diffs can be run with the same settings.
+         *
+         * @return The copy.
+         */
+        public DiffOptions copy() {
+            final DiffOptions options = new DiffOptions();
+            options.downloadThreads = downloadThreads;
+            options.jobs = jobs;
+            options.baseCache = baseCache;
+            options.sectionCache = sectionCache;
+            options.localBaselines = localBaselines;
+            options.localFiles = localFiles;
+            options.largeFileSize = largeFileSize;
+            options.largeFileMemory = largeFileMemory;
+            options.maxDiffFileSize = maxDiffFileSize;
+            options.stats = stats;
+            options.pathFilter = pathFilter;
+            options.stat = stat;
+            options.downloader = downloader;
+            return options;
+        }
+
+        /**
+         * Return the options which affect the diff section for a file.
+         *
+         * These decide whether a file is diffed in memory, diffed in
+         * windows or summarized, so cached sections are only reused when
+         * they match.
+         *
+         * @return A string identifying the options.
+         */
+        public String getSectionIdentity() {
+            return largeFileSize + "," + largeFileMemory + "," + maxDiffFileSize;
+        }
+    }
+
+    /**
+     * A change to a file between two committed versions.
+     *
+     * The old item is null if the file was added, and the new item is null
+     * if the file was deleted.
+     */
+    public static class CommittedChange {
+        public Item oldItem = null;
+        public Item newItem = null;
+
+        public CommittedChange(final Item oldItem, final Item newItem) {
+            this.oldItem = oldItem;
+            this.newItem = newItem;
+        }
+    }
+
+    /**
+     * The fetched contents and labels for a single PendingChange.
+     *
+     * This is produced by the download stage, and consumed (in the original
+     * order of the pending changes) by the diff stage.
+     */
+    protected static class ChangeContents {
+        public String serverItem;
+        public ChangeType changeType;
+        public boolean isBinary;
+        public boolean isBranch;
+
+        /*
+         * Whether the content hashes show that the old and new contents are
+         * identical. If set, the contents are not fetched.
+         */
+        public boolean isIdentical;
+        public ScratchContent oldContent;
+        public String oldFilename;
+        public String oldLabel;
+        public ScratchContent newContent;
+        public String newFilename;
+        public String newLabel;
+
+        /*
+         * The diff section from the section cache, if there was a valid
+         * entry, or else the key to store the section under.
+         */
+        public byte[] cachedSection;
+        public DiffSectionCache.Key sectionKey;
+
+        /*
+         * The diff section, if it was computed ahead of being written.
+         */
+        public byte[] renderedSection;
+
+        /*
+         * The time spent fetching the contents, in nanoseconds.
+         */
+        public long fetchNanos;
+
+        /**
+         * Release the storage used by the old and new contents.
+         */
+        public void release() {
+            if (oldContent != null) {
+                oldContent.close();
+                oldContent = null;
+            }
+
+            if (newContent != null) {
+                newContent.close();
+                newContent = null;
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     protected class DiffException extends Exception {
         public DiffException(String message) {
@@ -67,23 +285,229 @@ public class TFSDiffer {
      */
     public DiffResult diffPendingSets(final PendingSet[] sets,
                                       final VersionControlClient versionControl) {
+        return diffPendingSets(sets, versionControl, new DiffOptions());
+    }
+
+    /**
+     * Perform a diff across a range of PendingSets.
+     *
+     * If more than one download thread is requested, the contents for
+     * upcoming changes are fetched concurrently while earlier changes are
+     * being diffed. The diff for each change is still written in the order
+     * of the pending changes, so the result is identical to a serial run.
+     *
+     * @param  sets           An array of PendingSets, which each contain
+     *                        an array of PendingChanges.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                A unified diff suitable for uploading to Review
+     *                        Board.
+     */
+    public DiffResult diffPendingSets(final PendingSet[] sets,
+                                      final VersionControlClient versionControl,
+                                      final DiffOptions options) {
+        final ScratchContent.Writer diffStream = new ScratchContent.Writer();
+        final DiffResult result = diffPendingSets(sets, versionControl,
+                                                  options, diffStream);
+
+        setDiff(result, diffStream);
+
+        return result;
+    }
+
+    /**
+     * Perform a diff across a range of PendingSets, streaming the output.
+     *
+     * The diff for each file is written to the stream and flushed as soon as
+     * it has been generated, so memory use is bounded by the largest file
+     * rather than the whole diff. The diff field of the result will not be
+     * set. If an error occurs, the stream may contain a partial diff.
+     *
+     * @param  sets           An array of PendingSets, which each contain
+     *                        an array of PendingChanges.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  out            The stream to write the diff to.
+     * @return                The result of the diff.
+     */
+    public DiffResult diffPendingSets(final PendingSet[] sets,
+                                      final VersionControlClient versionControl,
+                                      final DiffOptions options,
+                                      final OutputStream out) {
         final DiffResult result = new DiffResult();
+        final List<PendingChange> changes = new ArrayList<PendingChange>();
 
-        try(final ByteArrayOutputStream diffStream = new ByteArrayOutputStream()) {
-            boolean foundCandidateChanges = false;
+        for (PendingSet set : sets) {
+            for (PendingChange change : set.getPendingChanges()) {
+                changes.add(change);
+            }
 
-            for (PendingSet set : sets) {
-                for (PendingChange change : set.getPendingChanges()) {
-                    diffPendingChange(change, versionControl, diffStream);
-                }
+            PendingChange[] candidateChanges = set.getCandidatePendingChanges();
+            if (candidateChanges != null && candidateChanges.length > 0) {
+                result.warnAboutDirty = true;
+            }
+        }
+
+        diffChanges(changes, versionControl, options, out, result);
+
+        return result;
+    }
+
+    /**
+     * Perform a diff across a list of PendingChanges.
+     *
+     * This is used when the pending changes come from somewhere other than
+     * a PendingSet, such as the local metadata of a local workspace.
+     *
+     * @param  changes        The pending changes to diff.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                A unified diff suitable for uploading to Review
+     *                        Board.
+     */
+    public DiffResult diffPendingChanges(final PendingChange[] changes,
+                                         final VersionControlClient versionControl,
+                                         final DiffOptions options) {
+        final ScratchContent.Writer diffStream = new ScratchContent.Writer();
+        final DiffResult result = diffPendingChanges(changes, versionControl,
+                                                     options, diffStream);
+
+        setDiff(result, diffStream);
+
+        return result;
+    }
+
+    /**
+     * Set the diff of a result to the contents of a writer.
+     *
+     * If the diff failed, the contents are thrown away instead.
+     *
+     * @param result The result.
+     * @param writer The writer the diff was written to.
+     */
+    public static void setDiff(final DiffResult result, final ScratchContent.Writer writer) {
+        if (result.success) {
+            result.diff = writer.toContent();
+        } else {
+            writer.discard();
+        }
+    }
 
-                PendingChange[] candidateChanges = set.getCandidatePendingChanges();
-                if (candidateChanges != null && candidateChanges.length > 0) {
-                    result.warnAboutDirty = true;
+    /**
+     * Write the diff of a result to a stream, and release its storage.
+     *
+     * @param result The result, whose diff must be set.
+     * @param out    The stream to write the diff to.
+     */
+    public static void writeDiff(final DiffResult result, final OutputStream out)
+                                 throws IOException {
+        try(final InputStream diffStream = result.diff.openStream()) {
+            IOUtils.copy(diffStream, out);
+        } finally {
+            result.diff.close();
+        }
+    }
+
+    /**
+     * Perform a diff across a list of PendingChanges, streaming the output.
+     *
+     * @param  changes        The pending changes to diff.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  out            The stream to write the diff to.
+     * @return                The result of the diff.
+     */
+    public DiffResult diffPendingChanges(final PendingChange[] changes,
+                                         final VersionControlClient versionControl,
+                                         final DiffOptions options,
+                                         final OutputStream out) {
+        final DiffResult result = new DiffResult();
+
+        diffChanges(Arrays.asList(changes), versionControl, options, out, result);
+
+        return result;
+    }
+
+    /**
+     * Diff a list of PendingChanges into a result.
+     *
+     * @param changes        The pending changes to diff.
+     * @param versionControl The version control client.
+     * @param options        Options controlling how the diff is performed.
+     * @param out            The stream to write the diff to.
+     * @param result         The result to record errors in.
+     */
+    private void diffChanges(final List<PendingChange> changes,
+                             final VersionControlClient versionControl,
+                             final DiffOptions options,
+                             final OutputStream out,
+                             final DiffResult result) {
+        final List<Callable<ChangeContents>> fetches = new ArrayList<Callable<ChangeContents>>();
+
+        for (final PendingChange change : changes) {
+            if (options.pathFilter != null && !options.pathFilter.matches(change.getServerItem())) {
+                continue;
+            }
+
+            fetches.add(new Callable<ChangeContents>() {
+                public ChangeContents call() throws DiffException, IOException {
+                    final long start = System.nanoTime();
+                    return recordFetch(fetchPendingChange(change, versionControl, options),
+                                       start, options);
                 }
+            });
+        }
+
+        try {
+            diffFetchedChanges(fetches, options, out);
+        } catch (final DiffException|IOException|VersionControlException e) {
+            result.err = e.getMessage();
+            result.success = false;
+        }
+    }
+
+    /**
+     * Perform a diff across a list of changes between committed versions,
+     * streaming the output.
+     *
+     * This works in the same way as diffPendingSets, including the use of
+     * download threads and the base cache. Both sides of each change are
+     * committed versions, so both are eligible for caching.
+     *
+     * Changes are filtered by the path of their new item, or of their old
+     * item if they have no new one, in the same way as pending changes.
+     *
+     * @param  changes        The changes to diff, in output order.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  out            The stream to write the diff to.
+     * @return                The result of the diff.
+     */
+    public DiffResult diffCommittedChanges(final List<CommittedChange> changes,
+                                           final VersionControlClient versionControl,
+                                           final DiffOptions options,
+                                           final OutputStream out) {
+        final DiffResult result = new DiffResult();
+        final List<Callable<ChangeContents>> fetches = new ArrayList<Callable<ChangeContents>>();
+
+        for (final CommittedChange change : changes) {
+            final Item item = change.newItem != null ? change.newItem : change.oldItem;
+
+            if (options.pathFilter != null && !options.pathFilter.matches(item.getServerItem())) {
+                continue;
             }
 
-            result.diff = diffStream.toByteArray();
+            fetches.add(new Callable<ChangeContents>() {
+                public ChangeContents call() throws DiffException, IOException {
+                    final long start = System.nanoTime();
+                    return recordFetch(fetchCommittedChange(change, versionControl, options),
+                                       start, options);
+                }
+            });
+        }
+
+        try {
+            diffFetchedChanges(fetches, options, out);
         } catch (final DiffException|IOException|VersionControlException e) {
             result.err = e.getMessage();
             result.success = false;
@@ -92,6 +516,231 @@ public class TFSDiffer {
         return result;
     }
 
+    /**
+     * Diff the contents produced by a list of fetch tasks.
+     *
+     * If more than one download thread is requested, the contents for
+     * upcoming changes are fetched concurrently while earlier changes are
+     * being diffed. Downloads are submitted to a bounded pool of threads. At
+     * most a couple of downloads per thread are allowed to be outstanding
+     * ahead of the diff stage, which keeps the number of temporary files in
+     * check. Results are consumed in submission order.
+     *
+     * If more than one job is requested, the diffs themselves are computed
+     * on a separate pool of threads as well. See diffFetchedChangesInParallel.
+     *
+     * @param  fetches The tasks which fetch each change, in output order.
+     * @param  options Options controlling how the diff is performed.
+     * @param  diff    The stream to write the diff to.
+     */
+    private void diffFetchedChanges(final List<Callable<ChangeContents>> fetches,
+                                    final DiffOptions options,
+                                    final OutputStream diff)
+                                    throws DiffException, IOException {
+        final int numThreads = options.downloadThreads;
+
+        if (options.jobs > 1 && fetches.size() > 1) {
+            diffFetchedChangesInParallel(fetches, options, diff);
+            return;
+        }
+
+        if (numThreads <= 1 || fetches.size() <= 1) {
+            for (Callable<ChangeContents> fetch : fetches) {
+                writeChangeContents(fetchContents(fetch), options, diff);
+            }
+
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            numThreads, new DownloadThreadFactory());
+        final Deque<Future<ChangeContents>> pending = new ArrayDeque<Future<ChangeContents>>();
+        final int maxPending = numThreads * 2;
+
+        log.info("Downloading file contents using " + numThreads + " threads");
+
+        try {
+            for (Callable<ChangeContents> fetch : fetches) {
+                pending.add(executor.submit(fetch));
+
+                if (pending.size() >= maxPending) {
+                    writeChangeContents(waitForResult(pending.remove()), options, diff);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writeChangeContents(waitForResult(pending.remove()), options, diff);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Diff the contents produced by a list of fetch tasks, computing the
+     * diffs on multiple threads.
+     *
+     * Each change is fetched on the download pool (which has a single
+     * thread if only one download thread was requested), and then its diff
+     * section is computed on the diff pool, sized by the number of jobs.
+     * Each section depends only on its own change, and the sections are
+     * written out in submission order, so the output is identical to a
+     * serial run no matter how the work is scheduled. The number of
+     * sections in flight is bounded, to keep memory use in check.
+     *
+     * @param  fetches The tasks which fetch each change, in output order.
+     * @param  options Options controlling how the diff is performed.
+     * @param  diff    The stream to write the diff to.
+     */
+    private void diffFetchedChangesInParallel(final List<Callable<ChangeContents>> fetches,
+                                              final DiffOptions options,
+                                              final OutputStream diff)
+                                              throws DiffException, IOException {
+        final int numThreads = Math.max(1, options.downloadThreads);
+        final ExecutorService downloadExecutor = Executors.newFixedThreadPool(
+            numThreads, new DownloadThreadFactory());
+        final ExecutorService diffExecutor = Executors.newFixedThreadPool(
+            options.jobs, new DiffThreadFactory());
+        final Deque<Future<ChangeContents>> pending = new ArrayDeque<Future<ChangeContents>>();
+        final int maxPending = (numThreads + options.jobs) * 2;
+
+        log.info("Computing diffs using " + options.jobs + " threads");
+
+        try {
+            for (final Callable<ChangeContents> fetch : fetches) {
+                pending.add(CompletableFuture.supplyAsync(new Supplier<ChangeContents>() {
+                    public ChangeContents get() {
+                        try {
+                            return fetch.call();
+                        } catch (final Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                }, downloadExecutor).thenApplyAsync(new Function<ChangeContents, ChangeContents>() {
+                    public ChangeContents apply(final ChangeContents contents) {
+                        try {
+                            if (contents != null && !isLargeChange(contents, options)) {
+                                contents.renderedSection = renderChangeContents(contents, options);
+                            }
+
+                            return contents;
+                        } catch (final Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                }, diffExecutor));
+
+                if (pending.size() >= maxPending) {
+                    writeRenderedContents(waitForResult(pending.remove()), options, diff);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writeRenderedContents(waitForResult(pending.remove()), options, diff);
+            }
+        } finally {
+            downloadExecutor.shutdownNow();
+            diffExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Write the diff for a change whose section may have been computed on
+     * the diff pool.
+     *
+     * Sections for large files are never computed ahead of time, so that
+     * they don't have to be held in memory. They're streamed out here
+     * instead.
+     *
+     * @param  contents The fetched contents, or null if the change is
+     *                  skipped.
+     * @param  options  Options controlling how the diff is performed.
+     * @param  diff     The stream to write the diff to.
+     */
+    private final void writeRenderedContents(final ChangeContents contents,
+                                             final DiffOptions options,
+                                             final OutputStream diff)
+                                             throws DiffException, IOException {
+        if (contents != null && contents.renderedSection != null) {
+            diff.write(contents.renderedSection);
+            diff.flush();
+        } else {
+            writeChangeContents(contents, options, diff);
+        }
+    }
+
+    /**
+     * Run a fetch task on the current thread.
+     *
+     * @param  fetch The task which fetches a change.
+     * @return       The fetched contents, or null if the change is skipped.
+     */
+    private ChangeContents fetchContents(final Callable<ChangeContents> fetch)
+                                         throws DiffException, IOException {
+        try {
+            return fetch.call();
+        } catch (final DiffException|IOException|RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new DiffException("Download failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record the time taken by a fetch task.
+     *
+     * @param  contents The fetched contents, or null if the change is
+     *                  skipped.
+     * @param  start    When the fetch started, from System.nanoTime().
+     * @param  options  Options controlling how the diff is performed.
+     * @return          The fetched contents.
+     */
+    private static ChangeContents recordFetch(final ChangeContents contents,
+                                              final long start,
+                                              final DiffOptions options) {
+        final long elapsed = System.nanoTime() - start;
+
+        if (contents == null) {
+            options.stats.addSkippedFile(elapsed);
+        } else {
+            contents.fetchNanos = elapsed;
+        }
+
+        return contents;
+    }
+
+    /**
+     * Wait for the download (and possibly the diff) of a change to finish.
+     *
+     * Any exception raised by the task is unwrapped and rethrown, so that
+     * errors are reported in the same way as in a serial run.
+     *
+     * @param  future The pending task.
+     * @return        The result of the task, or null if the change is
+     *                skipped.
+     */
+    private <T> T waitForResult(final Future<T> future)
+                                throws DiffException, IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiffException("Interrupted while downloading files");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof DiffException) {
+                throw (DiffException)cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new DiffException("Download failed: " + cause.getMessage());
+            }
+        }
+    }
+
     /**
      * Perform a diff of a PendingChange.
      *
@@ -99,12 +748,37 @@ public class TFSDiffer {
      *
      * @param  change         The pending change to diff.
      * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
      * @param  diff           The stream to write the diff to.
      */
-    private final void diffPendingChange(final PendingChange change,
-                                         final VersionControlClient versionControl,
-                                         final ByteArrayOutputStream diff)
-                                         throws DiffException, IOException {
+    final void diffPendingChange(final PendingChange change,
+                                 final VersionControlClient versionControl,
+                                 final DiffOptions options,
+                                 final OutputStream diff)
+                                 throws DiffException, IOException {
+        final long start = System.nanoTime();
+
+        writeChangeContents(recordFetch(fetchPendingChange(change, versionControl, options),
+                                        start, options),
+                            options, diff);
+    }
+
+    /**
+     * Fetch the old and new contents of a PendingChange.
+     *
+     * This is safe to call from multiple threads at once.
+     *
+     * @param  change         The pending change to fetch.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                The contents and labels for the change, or null
+     *                        if the change should not be included in the
+     *                        diff.
+     */
+    private final ChangeContents fetchPendingChange(final PendingChange change,
+                                                    final VersionControlClient versionControl,
+                                                    final DiffOptions options)
+                                                    throws DiffException, IOException {
         final String serverItem = change.getServerItem();
         final ChangeType changeType = change.getChangeType();
         final ItemType itemType = change.getItemType();
@@ -119,15 +793,12 @@ public class TFSDiffer {
 
         if (itemType != ItemType.FILE || !changeType.containsAny(availableTypes)) {
             log.info("Skipping " + changeType.toUIString(false) + " of " + serverItem + " (" + itemType.toUIString() + ")");
-            return;
+            return null;
         }
 
-        final TempStorageService tempStorage = TempStorageService.getInstance();
         final boolean isBinary = change.getEncoding() == VersionControlConstants.ENCODING_BINARY;
-        File oldFile;
         String oldVersion = new Integer(change.getVersion()).toString();
         String oldFilename = change.getServerItem();
-        File newFile;
         String newVersion = "(pending)";
         String newFilename = oldFilename;
 
@@ -137,72 +808,898 @@ public class TFSDiffer {
         }
 
         if (change.isAdd() || change.isUndelete()) {
-            log.info("Creating empty file to represent old version of " + serverItem);
-            oldFile = tempStorage.createTempFile();
             oldFilename = "/dev/null";
-        } else if (isBinary) {
-            log.info("Creating empty file to represent old version of " + serverItem);
-            oldFile = tempStorage.createTempFile();
-        } else {
-            log.info("Downloading old version of " + serverItem);
-            oldFile = change.downloadBaseFileToTempLocation(versionControl, serverItem + ".old");
-            log.info("Downloaded old version of " + serverItem + " to " + oldFile);
         }
 
         if (change.isDelete()) {
-            log.info("Creating empty file to represent new version of " + serverItem);
-            newFile = tempStorage.createTempFile();
             newVersion = "(deleted)";
-        } else if (change.isInShelveset()) {
-            log.info("Downloading new version of " + serverItem);
-            newFile = change.downloadShelvedFileToTempLocation(versionControl, serverItem + ".new");
-            log.info("Finished downloading new version of " + serverItem + " to "  + newFile);
+        }
+
+        final ChangeContents contents = new ChangeContents();
+        contents.serverItem = serverItem;
+        contents.changeType = changeType;
+        contents.isBinary = isBinary;
+        contents.isBranch = change.isBranch();
+        contents.oldFilename = oldFilename;
+        contents.oldLabel = oldFilename + "\t" + oldVersion;
+        contents.newFilename = newFilename;
+        contents.newLabel = newFilename + "\t" + newVersion;
+
+        if (options.sectionCache != null && !change.isInShelveset()) {
+            contents.sectionKey = options.sectionCache.getKey(change, options);
+
+            if (options.localFiles != null) {
+                contents.sectionKey.hash = options.localFiles.getHash(
+                    contents.sectionKey.localItem, contents.sectionKey.size,
+                    contents.sectionKey.modified);
+            }
+
+            contents.cachedSection = options.sectionCache.get(contents.sectionKey);
+
+            if (contents.cachedSection != null) {
+                return contents;
+            }
+        }
+
+        /*
+         * TFS knows the hash of the base version, and of any shelved
+         * contents. If the new contents hash to the same value, there's
+         * nothing to download: an unchanged file is left out of the diff,
+         * and a renamed or branched file only needs its headers.
+         */
+        final byte[] oldHash =
+            change.isAdd() || change.isUndelete() ? null : change.getHashValue();
+        final byte[] newHash =
+            change.isDelete() ? null :
+            contents.sectionKey != null && contents.sectionKey.hash != null ? contents.sectionKey.hash :
+            getPendingContentHash(change, oldHash, options);
+
+        if (contents.sectionKey != null && contents.sectionKey.hash == null) {
+            contents.sectionKey.hash = newHash;
+        }
+
+        if (hashesMatch(oldHash, newHash)) {
+            if (oldFilename.equals(newFilename)) {
+                log.info("Skipping " + serverItem + ", which has no content changes");
+                return null;
+            }
+
+            log.info("Contents of " + serverItem + " are unchanged from " + oldFilename);
+            contents.isIdentical = true;
+            return contents;
+        }
+
+        if (isBinary) {
+            /* Binary files are only reported by name, so no contents are needed. */
+            return contents;
+        }
+
+        if (change.isAdd() || change.isUndelete()) {
+            contents.oldContent = ScratchContent.EMPTY;
         } else {
-            final String localItem = change.getLocalItem();
-            log.info("Using local item " + localItem + " as new version of " + serverItem);
-            newFile = new File(localItem);
+            contents.oldContent = fetchBaseContent(change, versionControl, options,
+                                                   oldFilename, Integer.parseInt(oldVersion));
         }
 
-        final String oldLabel = oldFilename + "\t" + oldVersion;
-        final String newLabel = newFilename + "\t" + newVersion;
+        try {
+            if (change.isDelete()) {
+                contents.newContent = ScratchContent.EMPTY;
+            } else if (change.isInShelveset()) {
+                log.info("Downloading new version of " + serverItem);
+                contents.newContent = download(versionControl, change.getShelvedDownloadURL(),
+                                               serverItem, options);
+                log.info("Finished downloading new version of " + serverItem + " (" +
+                         contents.newContent.size() + " bytes)");
+            } else {
+                final String localItem = change.getLocalItem();
+                log.info("Using local item " + localItem + " as new version of " + serverItem);
+                contents.newContent = ScratchContent.forFile(new File(localItem));
+            }
+        } catch (final IOException|RuntimeException e) {
+            contents.release();
+            throw e;
+        }
 
-        log.info("Processing pending change " + changeType.toUIString(false) + " of " + serverItem);
+        return contents;
+    }
 
-        if (change.isBranch()) {
-            IOUtils.write("Copied from: " + oldFilename + "\n", diff, utf8);
+    /**
+     * Return the MD5 hash of the new contents of a PendingChange.
+     *
+     * Shelved changes carry the hash of their uploaded contents. For a
+     * change in a local workspace, the local file is hashed, but only if
+     * there's a base hash to compare it against, and the hash from the scan
+     * of local files is used if it's still current.
+     *
+     * @param  change   The pending change.
+     * @param  baseHash The hash of the base contents, or null if unknown.
+     * @param  options  Options controlling how the diff is performed.
+     * @return          The hash, or null if it isn't known.
+     */
+    private static byte[] getPendingContentHash(final PendingChange change,
+                                                final byte[] baseHash,
+                                                final DiffOptions options) {
+        if (change.isInShelveset()) {
+            return change.getUploadContentHashValue();
+        }
+
+        final String localItem = change.getLocalItem();
+
+        if (baseHash == null || baseHash.length == 0 || localItem == null) {
+            return null;
+        }
+
+        if (options.localFiles != null) {
+            final byte[] hash = options.localFiles.getHash(localItem);
+
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        try {
+            return computeHash(new File(localItem));
+        } catch (final IOException e) {
+            log.warn("Unable to hash " + localItem + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Compute the MD5 hash of a file, as TFS does.
+     *
+     * @param  file The file to hash.
+     * @return      The hash.
+     */
+    static byte[] computeHash(final File file) throws IOException {
+        try(final InputStream input = Files.newInputStream(file.toPath())) {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int length;
+
+            while ((length = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return whether two content hashes are known and equal.
+     *
+     * An empty hash means the hash is unknown, so it never matches.
+     *
+     * @param  oldHash The hash of the old contents, or null.
+     * @param  newHash The hash of the new contents, or null.
+     * @return         Whether the contents are known to be identical.
+     */
+    static boolean hashesMatch(final byte[] oldHash, final byte[] newHash) {
+        return oldHash != null && oldHash.length > 0 && Arrays.equals(oldHash, newHash);
+    }
+
+    /**
+     * Fetch the old and new contents of a change between committed versions.
+     *
+     * This is safe to call from multiple threads at once.
+     *
+     * @param  change         The change to fetch.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                The contents and labels for the change, or null
+     *                        if the contents are unchanged.
+     */
+    private final ChangeContents fetchCommittedChange(final CommittedChange change,
+                                                      final VersionControlClient versionControl,
+                                                      final DiffOptions options)
+                                                      throws IOException {
+        final Item oldItem = change.oldItem;
+        final Item newItem = change.newItem;
+        final String serverItem = (newItem != null ? newItem : oldItem).getServerItem();
+        final boolean isBinary =
+            (oldItem != null && oldItem.getEncoding() == VersionControlConstants.ENCODING_BINARY) ||
+            (newItem != null && newItem.getEncoding() == VersionControlConstants.ENCODING_BINARY);
+        final ChangeType changeType;
+
+        if (oldItem == null) {
+            changeType = ChangeType.ADD;
+        } else if (newItem == null) {
+            changeType = ChangeType.DELETE;
+        } else if (!oldItem.getServerItem().equals(newItem.getServerItem())) {
+            changeType = ChangeType.RENAME;
+        } else {
+            changeType = ChangeType.EDIT;
+        }
+
+        final ChangeContents contents = new ChangeContents();
+        contents.serverItem = serverItem;
+        contents.changeType = changeType;
+        contents.isBinary = isBinary;
+        contents.isBranch = false;
+
+        if (oldItem == null) {
+            contents.oldFilename = "/dev/null";
+            contents.oldLabel = "/dev/null\t0";
+        } else {
+            contents.oldFilename = oldItem.getServerItem();
+            contents.oldLabel = contents.oldFilename + "\t" + oldItem.getChangeSetID();
+        }
+
+        contents.newFilename = serverItem;
+        contents.newLabel = serverItem + "\t" +
+            (newItem != null ? Integer.toString(newItem.getChangeSetID()) : "(deleted)");
+
+        if (oldItem != null && newItem != null &&
+            hashesMatch(oldItem.getContentHashValue(), newItem.getContentHashValue())) {
+            if (oldItem.getServerItem().equals(newItem.getServerItem())) {
+                log.info("Skipping " + serverItem + ", which has no content changes");
+                return null;
+            }
+
+            log.info("Contents of " + serverItem + " are unchanged from " + contents.oldFilename);
+            contents.isIdentical = true;
+            return contents;
         }
 
         if (isBinary) {
+            /* Binary files are only reported by name, so no contents are needed. */
+            return contents;
+        }
+
+        contents.oldContent =
+            oldItem != null ? fetchItemContent(oldItem, versionControl, options)
+                            : ScratchContent.EMPTY;
+
+        try {
+            contents.newContent =
+                newItem != null ? fetchItemContent(newItem, versionControl, options)
+                                : ScratchContent.EMPTY;
+        } catch (final IOException|RuntimeException e) {
+            contents.release();
+            throw e;
+        }
+
+        return contents;
+    }
+
+    /**
+     * Fetch the contents of an Item.
+     *
+     * @param  item           The item to fetch.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                The contents.
+     */
+    private final ScratchContent fetchItemContent(final Item item,
+                                                  final VersionControlClient versionControl,
+                                                  final DiffOptions options)
+                                                  throws IOException {
+        final String serverItem = item.getServerItem();
+
+        return fetchCommittedContent(serverItem + ";C" + item.getChangeSetID(),
+                                     serverItem, item.getChangeSetID(),
+                                     item.getContentHashValue(), options,
+                                     versionControl, item.getDownloadURL());
+    }
+
+    /**
+     * Fetch the base contents of a PendingChange.
+     *
+     * For a local workspace, the contents are read from its baselines.
+     * Otherwise, if a persistent base cache is in use, it's checked first,
+     * and the contents are only downloaded on a cache miss.
+     *
+     * @param  change         The pending change to fetch.
+     * @param  versionControl The version control client.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  baseItem       The server path of the base version.
+     * @param  baseVersion    The changeset version of the base version.
+     * @return                The base contents.
+     */
+    private final ScratchContent fetchBaseContent(final PendingChange change,
+                                                  final VersionControlClient versionControl,
+                                                  final DiffOptions options,
+                                                  final String baseItem,
+                                                  final int baseVersion)
+                                                  throws IOException {
+        if (options.localBaselines != null) {
+            final ScratchContent baseline =
+                options.localBaselines.getBaseContent(baseItem, change.getHashValue());
+
+            if (baseline != null) {
+                return baseline;
+            }
+        }
+
+        return fetchCommittedContent(change.getServerItem() + " (old)", baseItem, baseVersion,
+                                     change.getHashValue(), options,
+                                     versionControl, change.getDownloadURL());
+    }
+
+    /**
+     * Fetch the contents of a file at a committed version.
+     *
+     * The contents of committed versions never change, so if a persistent
+     * base cache is in use, it's checked first (by server item and version,
+     * and then by content hash), and the contents are only downloaded on a
+     * cache miss. If another diff sharing the cache is already downloading
+     * the same version, this waits for it and uses the cached copy.
+     *
+     * @param  description A description of the file, for logging.
+     * @param  serverItem  The server path of the file.
+     * @param  version     The changeset version of the file.
+     * @param  hash        The MD5 hash of the contents reported by TFS, or
+     *                     null if unknown.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  versionControl The version control client.
+     * @param  downloadURL    The URL to download the contents from on a
+     *                        cache miss.
+     * @return                The contents.
+     */
+    private final ScratchContent fetchCommittedContent(final String description,
+                                                       final String serverItem,
+                                                       final int version,
+                                                       final byte[] hash,
+                                                       final DiffOptions options,
+                                                       final VersionControlClient versionControl,
+                                                       final String downloadURL)
+                                                       throws IOException {
+        final BaseContentCache cache = version > 0 ? options.baseCache : null;
+
+        if (cache == null) {
+            return downloadCommittedContent(description, serverItem, version, hash, options,
+                                            versionControl, downloadURL);
+        }
+
+        boolean claimed = false;
+
+        try {
+            while (!claimed) {
+                final File cachedFile = getCachedContent(cache, serverItem, version, hash);
+
+                if (cachedFile != null) {
+                    log.info("Using cached contents of " + description + " from " + cachedFile);
+                    return ScratchContent.forFile(cachedFile);
+                }
+
+                claimed = cache.startFetch(serverItem, version);
+
+                if (!claimed && getCachedContent(cache, serverItem, version, hash) == null) {
+                    /* The other fetch failed, or its contents weren't cached. */
+                    break;
+                }
+            }
+
+            return downloadCommittedContent(description, serverItem, version, hash, options,
+                                            versionControl, downloadURL);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + description);
+        } finally {
+            if (claimed) {
+                cache.finishFetch(serverItem, version);
+            }
+        }
+    }
+
+    /**
+     * Look up the contents of a committed version in the base cache.
+     *
+     * @param  cache      The base cache.
+     * @param  serverItem The server path of the file.
+     * @param  version    The changeset version of the file.
+     * @param  hash       The MD5 hash of the contents reported by TFS, or
+     *                    null if unknown.
+     * @return            The cached file, or null on a cache miss.
+     */
+    private static File getCachedContent(final BaseContentCache cache,
+                                         final String serverItem,
+                                         final int version,
+                                         final byte[] hash) {
+        File cachedFile = cache.get(serverItem, version);
+
+        if (cachedFile == null && hash != null && hash.length > 0) {
+            cachedFile = cache.getByHash(BaseContentCache.toHex(hash));
+        }
+
+        return cachedFile;
+    }
+
+    /**
+     * Download the contents of a committed version, storing them in the
+     * base cache if one is in use.
+     *
+     * @param  description    A description of the file, for logging.
+     * @param  serverItem     The server path of the file.
+     * @param  version        The changeset version of the file.
+     * @param  hash           The MD5 hash of the contents reported by TFS,
+     *                        or null if unknown.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  versionControl The version control client.
+     * @param  downloadURL    The URL to download the contents from.
+     * @return                The contents.
+     */
+    private final ScratchContent downloadCommittedContent(final String description,
+                                                          final String serverItem,
+                                                          final int version,
+                                                          final byte[] hash,
+                                                          final DiffOptions options,
+                                                          final VersionControlClient versionControl,
+                                                          final String downloadURL)
+                                                          throws IOException {
+        log.info("Downloading " + description);
+        final ScratchContent content = download(versionControl, downloadURL, description, options);
+        log.info("Downloaded " + description + " (" + content.size() + " bytes)");
+
+        if (options.baseCache != null && version > 0) {
+            options.baseCache.put(serverItem, version, content, hash);
+        }
+
+        return content;
+    }
+
+    /**
+     * Download the contents of a file into scratch storage.
+     *
+     * The download is run through the options' downloader, which bounds
+     * how long it can take and may hedge it with a second request.
+     *
+     * @param  versionControl The version control client.
+     * @param  downloadURL    The URL to download the contents from.
+     * @param  description    A description of the file, for stats.
+     * @param  options        Options controlling how the diff is performed.
+     * @return                The contents.
+     */
+    private final ScratchContent download(final VersionControlClient versionControl,
+                                          final String downloadURL,
+                                          final String description,
+                                          final DiffOptions options)
+                                          throws IOException {
+        if (options.downloader == null) {
+            return downloadOnce(versionControl, downloadURL, description, options, null);
+        }
+
+        return options.downloader.download(new HedgedDownloader.Download() {
+            public ScratchContent run(final AtomicLong received) throws IOException {
+                return downloadOnce(versionControl, downloadURL, description, options, received);
+            }
+        }, description, options.stats);
+    }
+
+    /**
+     * Make a single request for the contents of a file.
+     *
+     * @param  versionControl The version control client.
+     * @param  downloadURL    The URL to download the contents from.
+     * @param  description    A description of the file, for stats.
+     * @param  options        Options controlling how the diff is performed.
+     * @param  received       A counter for the bytes received, or null.
+     * @return                The contents.
+     */
+    private final ScratchContent downloadOnce(final VersionControlClient versionControl,
+                                              final String downloadURL,
+                                              final String description,
+                                              final DiffOptions options,
+                                              final AtomicLong received)
+                                              throws IOException {
+        final ScratchContent.Writer writer = new ScratchContent.Writer();
+        final RunStats.Timer timer = options.stats.startServerCall("download", description);
+
+        try {
+            downloadFile(versionControl, downloadURL,
+                         received != null ? new HedgedDownloader.ProgressOutputStream(writer, received)
+                                          : writer);
+        } catch (final IOException|RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+
+        final ScratchContent content = writer.toContent();
+        timer.stop(content.size());
+
+        return content;
+    }
+
+    /**
+     * Download the contents of a file to a stream.
+     *
+     * @param  versionControl The version control client.
+     * @param  downloadURL    The URL to download the contents from.
+     * @param  out            The stream to write the contents to.
+     */
+    protected void downloadFile(final VersionControlClient versionControl,
+                                final String downloadURL,
+                                final OutputStream out)
+                                throws IOException {
+        versionControl.downloadFileToStream(new DownloadSpec(downloadURL), out, true);
+    }
+
+    /**
+     * Write the diff for the fetched contents of a PendingChange.
+     *
+     * The stream is flushed once the diff for the file has been written.
+     *
+     * @param  contents The fetched contents, or null if the change is
+     *                  skipped.
+     * @param  options  Options controlling how the diff is performed.
+     * @param  diff     The stream to write the diff to.
+     */
+    private final void writeChangeContents(final ChangeContents contents,
+                                           final DiffOptions options,
+                                           final OutputStream diff)
+                                           throws DiffException, IOException {
+        if (contents == null) {
+            return;
+        }
+
+        if (isLargeChange(contents, options)) {
+            /* Large sections are streamed out, and never cached. */
+            writeChangeSection(contents, options, diff);
+        } else if (contents.cachedSection != null ||
+                   (contents.sectionKey != null && options.sectionCache != null)) {
+            diff.write(renderChangeContents(contents, options));
+        } else {
+            writeChangeSection(contents, options, diff);
+        }
+
+        diff.flush();
+    }
+
+    /**
+     * Compute the diff section for the fetched contents of a PendingChange.
+     *
+     * The section is taken from the section cache if possible, and stored
+     * in it otherwise. This is safe to call from multiple threads at once.
+     *
+     * @param  contents The fetched contents, or null if the change is
+     *                  skipped.
+     * @param  options  Options controlling how the diff is performed.
+     * @return          The diff section, or null if the change is skipped.
+     */
+    private final byte[] renderChangeContents(final ChangeContents contents,
+                                              final DiffOptions options)
+                                              throws DiffException, IOException {
+        if (contents == null) {
+            return null;
+        }
+
+        if (contents.cachedSection != null) {
+            log.info("Using cached diff of " + contents.serverItem);
+            options.stats.startFile(contents.serverItem).stopFile("cached", 0, contents.fetchNanos);
+            return contents.cachedSection;
+        }
+
+        final ByteArrayOutputStream section = new ByteArrayOutputStream();
+        writeChangeSection(contents, options, section);
+
+        final byte[] result = section.toByteArray();
+
+        if (contents.sectionKey != null && options.sectionCache != null) {
+            options.sectionCache.put(contents.sectionKey, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return whether a change's files are too large to diff in memory.
+     *
+     * @param  contents The fetched contents.
+     * @param  options  Options controlling how the diff is performed.
+     * @return          Whether the change will be diffed with WindowedDiff,
+     *                  or summarized.
+     */
+    private static boolean isLargeChange(final ChangeContents contents,
+                                         final DiffOptions options) {
+        return contents.cachedSection == null && !contents.isIdentical &&
+               !contents.isBinary && contents.oldContent != null &&
+               contents.newContent != null &&
+               Math.max(contents.oldContent.size(), contents.newContent.size()) > options.largeFileSize;
+    }
+
+    /**
+     * Write the diff section for the fetched contents of a PendingChange.
+     *
+     * The storage for the contents is released once the section has been
+     * written, and the time taken is recorded in the stats.
+     *
+     * @param  contents The fetched contents.
+     * @param  options  Options controlling how the diff is performed.
+     * @param  diff     The stream to write the diff to.
+     */
+    private final void writeChangeSection(final ChangeContents contents,
+                                          final DiffOptions options,
+                                          final OutputStream diff)
+                                          throws DiffException, IOException {
+        final RunStats.Timer timer = options.stats.startFile(contents.serverItem);
+        final long size = Math.max(
+            contents.oldContent != null ? contents.oldContent.size() : 0,
+            contents.newContent != null ? contents.newContent.size() : 0);
+        final String result;
+
+        try {
+            result = writeChangeSectionContents(contents, options, diff);
+        } finally {
+            contents.release();
+        }
+
+        timer.stopFile(result, size, contents.fetchNanos);
+    }
+
+    /**
+     * Write the diff section for the fetched contents of a PendingChange.
+     *
+     * @param  contents The fetched contents.
+     * @param  options  Options controlling how the diff is performed.
+     * @param  diff     The stream to write the diff to.
+     * @return          What was done with the file, for stats: "diffed",
+     *                  "windowed", "binary", "summarized" or "unchanged".
+     */
+    private final String writeChangeSectionContents(final ChangeContents contents,
+                                                  final DiffOptions options,
+                                                  final OutputStream diff)
+                                                  throws DiffException, IOException {
+        final ScratchContent oldContent = contents.oldContent;
+        final ScratchContent newContent = contents.newContent;
+        final String oldFilename = contents.oldFilename;
+        final String newFilename = contents.newFilename;
+        final String oldLabel = contents.oldLabel;
+        final String newLabel = contents.newLabel;
+
+        log.info("Processing pending change " + contents.changeType.toUIString(false) + " of " + contents.serverItem);
+
+        if (options.stat) {
+            return writeStatContents(contents, options, diff);
+        }
+
+        if (contents.isBranch) {
+            IOUtils.write("Copied from: " + oldFilename + "\n", diff, utf8);
+        }
+
+        if (contents.isIdentical) {
+            // Renamed or branched file whose hashes show no changes
+            IOUtils.write("--- " + oldLabel + "\n", diff, utf8);
+            IOUtils.write("+++ " + newLabel + "\n", diff, utf8);
+            return "unchanged";
+        } else if (contents.isBinary) {
             // Binary files
             IOUtils.write("--- " + oldLabel + "\n", diff, utf8);
             IOUtils.write("+++ " + newLabel + "\n", diff, utf8);
             IOUtils.write("Binary files " + oldFilename + " and " + newFilename + " differ\n", diff, utf8);
-        } else if (!oldFilename.equals(newFilename) && FileUtils.contentEquals(oldFile, newFile)) {
+            return "binary";
+        } else if (!oldFilename.equals(newFilename) && ScratchContent.contentEquals(oldContent, newContent)) {
             // Renamed file with no changes
             IOUtils.write("--- " + oldLabel + "\n", diff, utf8);
             IOUtils.write("+++ " + newLabel + "\n", diff, utf8);
+            return "unchanged";
         } else {
-            final Process p = Runtime.getRuntime().exec(new String[]{
-                "diff", "-u",
-                "--label", oldLabel,
-                "--label", newLabel,
-                oldFile.getAbsolutePath(), newFile.getAbsolutePath()
-            });
+            final long size = Math.max(oldContent.size(), newContent.size());
 
-            try(final ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-                IOUtils.copy(p.getInputStream(), output);
-                final String  error = IOUtils.toString(p.getErrorStream(), utf8);
-                final int retcode = p.waitFor();
+            try {
+                if (size > options.maxDiffFileSize) {
+                    log.warn("Not diffing " + contents.serverItem + ", which is " + size +
+                             " bytes; it will be shown as changed");
+                    writeSummarySection(contents, diff);
+                    return "summarized";
+                } else if (size > options.largeFileSize) {
+                    log.info("Diffing " + contents.serverItem + " (" + size + " bytes) in windows");
+                    WindowedDiff.write(oldContent, newContent, oldLabel, newLabel, diff,
+                                       options.largeFileMemory);
+                    return "windowed";
+                } else {
+                    UnifiedDiff.write(oldContent.getBuffer(), newContent.getBuffer(),
+                                      oldLabel, newLabel, diff);
+                    return "diffed";
+                }
+            } catch (final WindowedDiff.LineTooLongException e) {
+                log.warn("Not diffing " + contents.serverItem + ": " + e.getMessage());
+                writeSummarySection(contents, diff);
+                return "summarized";
+            } catch (final IOException e) {
+                throw new DiffException("diff failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the change counts for the fetched contents of a PendingChange.
+     *
+     * This writes a single tab-separated line instead of a diff section:
+     *
+     *     <added> <removed> <text|binary> <change type> <path> [<source>]
+     *
+     * The counts are "-" for binary files and files too large to diff. The
+     * source path is only given for renames and branches. Only the number
+     * of changed lines is computed, without building any hunks, except for
+     * large files, whose windowed diffs are counted as they're written.
+     *
+     * @param  contents The fetched contents.
+     * @param  options  Options controlling how the diff is performed.
+     * @param  diff     The stream to write the line to.
+     * @return          What was done with the file, for stats.
+     */
+    private final String writeStatContents(final ChangeContents contents,
+                                           final DiffOptions options,
+                                           final OutputStream diff)
+                                           throws DiffException, IOException {
+        final String result;
+        int[] counts = null;
 
-                if (retcode == 0 || retcode == 1) {
-                    IOUtils.write(output.toByteArray(), diff);
+        if (contents.isIdentical) {
+            counts = new int[]{ 0, 0 };
+            result = "unchanged";
+        } else if (contents.isBinary) {
+            result = "binary";
+        } else {
+            final long size = Math.max(contents.oldContent.size(), contents.newContent.size());
+
+            try {
+                if (size > options.maxDiffFileSize) {
+                    result = ScratchContent.contentEquals(contents.oldContent, contents.newContent)
+                             ? "unchanged" : "summarized";
+                    counts = result.equals("unchanged") ? new int[]{ 0, 0 } : null;
+                } else if (size > options.largeFileSize) {
+                    final DiffLineCounter counter = new DiffLineCounter();
+                    WindowedDiff.write(contents.oldContent, contents.newContent,
+                                       contents.oldLabel, contents.newLabel, counter,
+                                       options.largeFileMemory);
+                    counts = counter.getCounts();
+                    /* WindowedDiff may still decide that the file is binary. */
+                    result = counts != null ? "windowed" : "binary";
                 } else {
-                    final String diffError = IOUtils.toString(p.getErrorStream(), utf8);
-                    throw new DiffException("diff command failed with output:\n" + error);
+                    counts = UnifiedDiff.countChanges(contents.oldContent.getBuffer(),
+                                                      contents.newContent.getBuffer());
+                    result = counts != null ? "diffed" : "binary";
+                }
+            } catch (final WindowedDiff.LineTooLongException e) {
+                log.warn("Not counting the changes to " + contents.serverItem + ": " + e.getMessage());
+                return writeStatLine(contents, null, false, "summarized", diff);
+            } catch (final IOException e) {
+                throw new DiffException("diff failed: " + e.getMessage());
+            }
+
+            if (counts != null && counts[0] == 0 && counts[1] == 0 &&
+                contents.oldFilename.equals(contents.newFilename)) {
+                /* Like the diff, leave out files with no changes. */
+                return "unchanged";
+            }
+        }
+
+        return writeStatLine(contents, counts, result.equals("binary"), result, diff);
+    }
+
+    /**
+     * Write the line of change counts for a file.
+     *
+     * @param  contents The fetched contents.
+     * @param  counts   The lines added and removed, or null if unknown.
+     * @param  isBinary Whether the file is binary.
+     * @param  result   What was done with the file, for stats.
+     * @param  diff     The stream to write the line to.
+     * @return          The result, for stats.
+     */
+    private final String writeStatLine(final ChangeContents contents,
+                                       final int[] counts,
+                                       final boolean isBinary,
+                                       final String result,
+                                       final OutputStream diff)
+                                       throws IOException {
+        final StringBuilder line = new StringBuilder();
+
+        line.append(counts != null ? Integer.toString(counts[0]) : "-").append('\t')
+            .append(counts != null ? Integer.toString(counts[1]) : "-").append('\t')
+            .append(isBinary ? "binary" : "text").append('\t')
+            .append(contents.changeType.toUIString(false)).append('\t')
+            .append(contents.serverItem);
+
+        if ((contents.isBranch || contents.changeType.contains(ChangeType.RENAME)) &&
+            !contents.oldFilename.equals(contents.newFilename)) {
+            line.append('\t').append(contents.oldFilename);
+        }
+
+        IOUtils.write(line.append('\n').toString(), diff, utf8);
+
+        return result;
+    }
+
+    /**
+     * A stream which counts the added and removed lines in a unified diff
+     * section written to it, without keeping the section.
+     */
+    private static class DiffLineCounter extends OutputStream {
+        private boolean atLineStart = true;
+        private int lineNum = 0;
+        private int added = 0;
+        private int removed = 0;
+        private boolean binary = false;
+
+        public void write(final int b) {
+            if (atLineStart) {
+                lineNum++;
+
+                if (lineNum == 1 && b == 'B') {
+                    /* "Binary files ... differ", with no header. */
+                    binary = true;
+                } else if (lineNum > 2 && b == '+') {
+                    added++;
+                } else if (lineNum > 2 && b == '-') {
+                    removed++;
                 }
-            } catch (InterruptedException|IOException e) {
-                throw new DiffException("diff command failed: " + e.getMessage());
             }
+
+            atLineStart = (b == '\n');
+        }
+
+        public void write(final byte[] data, final int offset, final int count) {
+            for (int i = offset; i < offset + count; i++) {
+                write(data[i]);
+            }
+        }
+
+        /**
+         * Return the counts.
+         *
+         * @return The lines added and removed, or null if the files were
+         *         binary.
+         */
+        public int[] getCounts() {
+            return binary ? null : new int[]{ added, removed };
+        }
+    }
+
+    /**
+     * Write a section reporting that a text file changed, without its diff.
+     *
+     * This is used for files too large to diff. Like git does for files
+     * above its big file threshold, the file is reported in the same way as
+     * a changed binary file, which Review Board shows without contents.
+     *
+     * @param  contents The fetched contents.
+     * @param  diff     The stream to write the diff to.
+     */
+    private final void writeSummarySection(final ChangeContents contents,
+                                           final OutputStream diff)
+                                           throws IOException {
+        if (ScratchContent.contentEquals(contents.oldContent, contents.newContent)) {
+            return;
+        }
+
+        IOUtils.write("--- " + contents.oldLabel + "\n", diff, utf8);
+        IOUtils.write("+++ " + contents.newLabel + "\n", diff, utf8);
+        IOUtils.write("Binary files " + contents.oldFilename + " and " +
+                      contents.newFilename + " differ\n", diff, utf8);
+    }
+
+    /**
+     * A thread factory for the download threads.
+     *
+     * Download threads are marked as daemon threads, so that a failed or
+     * abandoned download never keeps the process alive.
+     */
+    private static class DownloadThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-download-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A thread factory for the diff threads.
+     *
+     * Like download threads, these are daemon threads.
+     */
+    private static class DiffThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "rb-tfs-diff-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 }
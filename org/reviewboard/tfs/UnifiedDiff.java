@@ -0,0 +1,505 @@
+package org.reviewboard.tfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+/**
+ * An in-process generator for unified diffs.
+ *
+ * This produces the same output as "diff -u --label old --label new", without
+ * needing to spawn a process for every file. Each line of the two files is
+ * interned into an integer ID, and the resulting ID arrays are compared using
+ * MyersDiff. Lines are referred to by their offsets within the original
+ * buffers, so no per-line objects are created.
+ */
+public final class UnifiedDiff {
+    /*
+     * The number of lines of context to show around each change.
+     */
+    public static final int CONTEXT_LINES = 3;
+
+    /*
+     * The number of bytes at the start of a file which are checked for NUL
+     * characters to determine whether the file is binary.
+     */
+    static final int BINARY_CHECK_SIZE = 8192;
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    static final byte[] NO_NEWLINE =
+        "\n\\ No newline at end of file\n".getBytes(utf8);
+
+    private final ByteBuffer oldData;
+    private final ByteBuffer newData;
+    private final int[] oldStarts;
+    private final int[] newStarts;
+    private final int oldCount;
+    private final int newCount;
+
+    private UnifiedDiff(final ByteBuffer oldData, final ByteBuffer newData) {
+        this.oldData = oldData;
+        this.newData = newData;
+        oldStarts = splitLines(oldData);
+        newStarts = splitLines(newData);
+        oldCount = oldStarts.length - 1;
+        newCount = newStarts.length - 1;
+    }
+
+    /**
+     * Write a unified diff between two files.
+     *
+     * Nothing is written if the files are identical.
+     *
+     * @param  oldData  The contents of the old file.
+     * @param  newData  The contents of the new file.
+     * @param  oldLabel The label for the old file.
+     * @param  newLabel The label for the new file.
+     * @param  out      The stream to write the diff to.
+     * @return          Whether the files differ.
+     */
+    public static boolean write(final ByteBuffer oldData,
+                                final ByteBuffer newData,
+                                final String oldLabel,
+                                final String newLabel,
+                                final OutputStream out)
+                                throws IOException {
+        if (oldData.equals(newData)) {
+            return false;
+        }
+
+        if (isBinary(oldData) || isBinary(newData)) {
+            writeString(out, "Binary files " + oldLabel + " and " + newLabel + " differ\n");
+            return true;
+        }
+
+        final UnifiedDiff diff = new UnifiedDiff(oldData, newData);
+        final boolean[] oldChanged = new boolean[diff.oldCount];
+        final boolean[] newChanged = new boolean[diff.newCount];
+
+        diff.computeChanges(oldChanged, newChanged);
+
+        writeString(out, "--- " + oldLabel + "\n");
+        writeString(out, "+++ " + newLabel + "\n");
+        diff.writeHunks(oldChanged, newChanged, out);
+
+        return true;
+    }
+
+    /**
+     * Count the lines added and removed between two files.
+     *
+     * This finds the same changes as write(), but doesn't build any hunks.
+     * If either file is empty, the lines of the other are just counted.
+     *
+     * @param  oldData The contents of the old file.
+     * @param  newData The contents of the new file.
+     * @return         The number of lines added and removed, or null if
+     *                 either file is binary.
+     */
+    public static int[] countChanges(final ByteBuffer oldData,
+                                     final ByteBuffer newData) {
+        if (oldData.equals(newData)) {
+            return new int[]{ 0, 0 };
+        }
+
+        if (isBinary(oldData) || isBinary(newData)) {
+            return null;
+        }
+
+        if (!oldData.hasRemaining() || !newData.hasRemaining()) {
+            return new int[]{ countLines(newData), countLines(oldData) };
+        }
+
+        final UnifiedDiff diff = new UnifiedDiff(oldData, newData);
+        final boolean[] oldChanged = new boolean[diff.oldCount];
+        final boolean[] newChanged = new boolean[diff.newCount];
+        final int[] counts = new int[2];
+
+        diff.computeChanges(oldChanged, newChanged);
+
+        for (boolean changed : newChanged) {
+            if (changed) {
+                counts[0]++;
+            }
+        }
+
+        for (boolean changed : oldChanged) {
+            if (changed) {
+                counts[1]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Compute which lines of each file were changed.
+     *
+     * @param oldChanged Receives the changed flags for the old file.
+     * @param newChanged Receives the changed flags for the new file.
+     */
+    private void computeChanges(final boolean[] oldChanged,
+                                final boolean[] newChanged) {
+        final int[] oldIds = new int[oldCount];
+        final int[] newIds = new int[newCount];
+
+        internLines(oldIds, newIds);
+        MyersDiff.compute(oldIds, oldCount, newIds, newCount,
+                          oldChanged, newChanged);
+    }
+
+    /**
+     * Return whether a file looks like binary data.
+     *
+     * Like GNU diff, this considers a file to be binary if there's a NUL
+     * character near the start of the file.
+     *
+     * @param  data The file contents.
+     * @return      Whether the file is binary.
+     */
+    private static boolean isBinary(final ByteBuffer data) {
+        final int end = data.position() + Math.min(data.remaining(), BINARY_CHECK_SIZE);
+
+        for (int i = data.position(); i < end; i++) {
+            if (data.get(i) == 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Count the lines in a buffer.
+     *
+     * A final line without a trailing newline is counted as a line.
+     *
+     * @param  data The file contents.
+     * @return      The number of lines.
+     */
+    private static int countLines(final ByteBuffer data) {
+        final int start = data.position();
+        final int end = data.limit();
+        int count = 0;
+
+        for (int i = start; i < end; i++) {
+            if (data.get(i) == '\n') {
+                count++;
+            }
+        }
+
+        if (end > start && data.get(end - 1) != '\n') {
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Find the start offset of each line in a buffer.
+     *
+     * The returned array has one more entry than there are lines, with the
+     * last entry holding the end of the buffer. Each line includes its
+     * trailing newline, if it has one.
+     *
+     * @param  data The file contents.
+     * @return      The offsets of each line.
+     */
+    private static int[] splitLines(final ByteBuffer data) {
+        final int start = data.position();
+        final int end = data.limit();
+        final int count = countLines(data);
+        final int[] starts = new int[count + 1];
+        int line = 1;
+
+        starts[0] = start;
+
+        for (int i = start; i < end; i++) {
+            if (data.get(i) == '\n' && line < count) {
+                starts[line++] = i + 1;
+            }
+        }
+
+        starts[count] = end;
+
+        return starts;
+    }
+
+    /**
+     * Assign an ID to each line, such that identical lines share an ID.
+     *
+     * This uses an open-addressed hash table holding only integers. Each
+     * ID refers back to the first line that had that content.
+     *
+     * @param oldIds Receives the IDs for the lines of the old file.
+     * @param newIds Receives the IDs for the lines of the new file.
+     */
+    private void internLines(final int[] oldIds, final int[] newIds) {
+        final int total = oldCount + newCount;
+        int tableSize = 16;
+
+        while (tableSize < total * 2) {
+            tableSize <<= 1;
+        }
+
+        /*
+         * Each slot holds the ID + 1 of a line (0 means an empty slot). For
+         * each ID, we record the hash, and the buffer and line number that
+         * it was first seen at. Lines from the new file are stored with
+         * their line numbers offset by oldCount.
+         */
+        final int[] table = new int[tableSize];
+        final int[] idHashes = new int[total];
+        final int[] idLines = new int[total];
+        final int mask = tableSize - 1;
+        int nextId = 0;
+
+        for (int line = 0; line < total; line++) {
+            final boolean isOld = line < oldCount;
+            final ByteBuffer data = isOld ? oldData : newData;
+            final int[] starts = isOld ? oldStarts : newStarts;
+            final int index = isOld ? line : line - oldCount;
+            final int start = starts[index];
+            final int end = starts[index + 1];
+            final int hash = hashLine(data, start, end);
+            int slot = hash & mask;
+            int id = -1;
+
+            while (table[slot] != 0) {
+                final int candidate = table[slot] - 1;
+
+                if (idHashes[candidate] == hash &&
+                    lineEquals(idLines[candidate], data, start, end)) {
+                    id = candidate;
+                    break;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            if (id == -1) {
+                id = nextId++;
+                idHashes[id] = hash;
+                idLines[id] = line;
+                table[slot] = id + 1;
+            }
+
+            if (isOld) {
+                oldIds[index] = id;
+            } else {
+                newIds[index] = id;
+            }
+        }
+    }
+
+    /**
+     * Compare the first line seen with an ID against another line.
+     *
+     * @param  line  The combined line number the ID was first seen at.
+     * @param  data  The buffer containing the other line.
+     * @param  start The start of the other line.
+     * @param  end   The end of the other line.
+     * @return       Whether the lines are identical.
+     */
+    private boolean lineEquals(final int line, final ByteBuffer data,
+                               final int start, final int end) {
+        final boolean isOld = line < oldCount;
+        final ByteBuffer idData = isOld ? oldData : newData;
+        final int[] starts = isOld ? oldStarts : newStarts;
+        final int index = isOld ? line : line - oldCount;
+        final int idStart = starts[index];
+        final int length = end - start;
+
+        if (starts[index + 1] - idStart != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (idData.get(idStart + i) != data.get(start + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compute a hash for a line.
+     *
+     * @param  data  The buffer containing the line.
+     * @param  start The start of the line.
+     * @param  end   The end of the line.
+     * @return       The hash.
+     */
+    private static int hashLine(final ByteBuffer data, final int start,
+                                final int end) {
+        int hash = 0x811c9dc5;
+
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ data.get(i)) * 0x01000193;
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Write the hunks for a computed set of changes.
+     *
+     * Runs of changes which are separated by no more than twice the number
+     * of context lines are merged into a single hunk.
+     *
+     * @param oldChanged The changed flags for the old file.
+     * @param newChanged The changed flags for the new file.
+     * @param out        The stream to write to.
+     */
+    private void writeHunks(final boolean[] oldChanged,
+                            final boolean[] newChanged,
+                            final OutputStream out)
+                            throws IOException {
+        int i = 0;
+        int j = 0;
+
+        while (true) {
+            /* Find the start of the next change. */
+            while (i < oldCount && j < newCount && !oldChanged[i] && !newChanged[j]) {
+                i++;
+                j++;
+            }
+
+            if (i == oldCount && j == newCount) {
+                return;
+            }
+
+            final int hunkOldStart = Math.max(0, i - CONTEXT_LINES);
+            final int hunkNewStart = Math.max(0, j - CONTEXT_LINES);
+            int oldEnd = i;
+            int newEnd = j;
+
+            /*
+             * Extend the hunk until we find a run of unchanged lines long
+             * enough to separate it from the next change.
+             */
+            while (true) {
+                while (oldEnd < oldCount && oldChanged[oldEnd]) {
+                    oldEnd++;
+                }
+
+                while (newEnd < newCount && newChanged[newEnd]) {
+                    newEnd++;
+                }
+
+                int gap = 0;
+
+                while (oldEnd + gap < oldCount && newEnd + gap < newCount &&
+                       !oldChanged[oldEnd + gap] && !newChanged[newEnd + gap] &&
+                       gap <= 2 * CONTEXT_LINES) {
+                    gap++;
+                }
+
+                if (gap <= 2 * CONTEXT_LINES &&
+                    (oldEnd + gap < oldCount || newEnd + gap < newCount)) {
+                    oldEnd += gap;
+                    newEnd += gap;
+                } else {
+                    break;
+                }
+            }
+
+            final int trailing = Math.min(CONTEXT_LINES,
+                                          Math.min(oldCount - oldEnd, newCount - newEnd));
+            final int hunkOldEnd = oldEnd + trailing;
+            final int hunkNewEnd = newEnd + trailing;
+
+            writeString(out, "@@ -" + formatRange(hunkOldStart, hunkOldEnd) +
+                             " +" + formatRange(hunkNewStart, hunkNewEnd) + " @@\n");
+
+            i = hunkOldStart;
+            j = hunkNewStart;
+
+            while (i < hunkOldEnd || j < hunkNewEnd) {
+                if ((i < hunkOldEnd && oldChanged[i]) || (j < hunkNewEnd && newChanged[j])) {
+                    while (i < hunkOldEnd && oldChanged[i]) {
+                        writeLine(out, '-', oldData, oldStarts, i++);
+                    }
+
+                    while (j < hunkNewEnd && newChanged[j]) {
+                        writeLine(out, '+', newData, newStarts, j++);
+                    }
+                } else {
+                    writeLine(out, ' ', oldData, oldStarts, i++);
+                    j++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Format a hunk range in the way that GNU diff does.
+     *
+     * @param  start The (0-based) first line of the range.
+     * @param  end   The (0-based) line after the end of the range.
+     * @return       The formatted range.
+     */
+    static String formatRange(final long start, final long end) {
+        final long count = end - start;
+
+        if (count == 0) {
+            /*
+             * Empty ranges refer to the line before the range. This is what
+             * patch expects when diffing against empty files.
+             */
+            return start + ",0";
+        } else if (count == 1) {
+            return Long.toString(start + 1);
+        } else {
+            return (start + 1) + "," + count;
+        }
+    }
+
+    /**
+     * Write a single line of a hunk.
+     *
+     * @param out    The stream to write to.
+     * @param prefix The prefix character for the line.
+     * @param data   The buffer containing the line.
+     * @param starts The line offsets for the buffer.
+     * @param line   The line number.
+     */
+    private static void writeLine(final OutputStream out, final char prefix,
+                                  final ByteBuffer data, final int[] starts,
+                                  final int line)
+                                  throws IOException {
+        final int start = starts[line];
+        final int end = starts[line + 1];
+
+        out.write(prefix);
+
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + start, end - start);
+        } else {
+            final ByteBuffer slice = data.duplicate();
+            final byte[] buffer = new byte[end - start];
+
+            slice.position(start);
+            slice.get(buffer);
+            out.write(buffer);
+        }
+
+        if (data.get(end - 1) != '\n') {
+            out.write(NO_NEWLINE);
+        }
+    }
+
+    /**
+     * Write a string to the output as UTF-8.
+     *
+     * @param out The stream to write to.
+     * @param str The string to write.
+     */
+    private static void writeString(final OutputStream out, final String str)
+                                    throws IOException {
+        out.write(str.getBytes(utf8));
+    }
+}
@@ -0,0 +1,670 @@
+package org.reviewboard.tfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * A bounded-memory generator for unified diffs of very large files.
+ *
+ * UnifiedDiff maps both files into memory and keeps several arrays with an
+ * entry per line, which is too much for files of hundreds of megabytes.
+ * This instead streams the files a line at a time. Lines common to both
+ * files are written straight through the hunk logic. Where the files
+ * differ, a window of upcoming lines from each file is read and compared
+ * with MyersDiff, and the result is only trusted up to the last long run
+ * of common lines (an anchor), since the lines after it may match lines
+ * that haven't been read yet. The rest of the window is kept for the next
+ * comparison.
+ *
+ * As long as every change fits within a window, the output is identical
+ * to UnifiedDiff's. A change larger than a window is still a valid diff,
+ * but may not be minimal.
+ *
+ * Hunk bodies and the finished section are written to scratch storage,
+ * which spills to a temporary file once it outgrows a small amount of
+ * memory. A line longer than a
+ * whole window can't be compared, and causes the diff to fail with a
+ * LineTooLongException before anything has been written.
+ */
+public final class WindowedDiff {
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    /*
+     * The shortest run of common lines that's trusted to separate the part
+     * of a window that has been resolved from the part that hasn't. This is
+     * long enough that the run would also end a hunk.
+     */
+    private static final int ANCHOR_LINES = 2 * UnifiedDiff.CONTEXT_LINES + 1;
+
+    /*
+     * A rough estimate of the memory used by each line in a window, on top
+     * of its contents, once it has been interned and compared.
+     */
+    private static final int LINE_OVERHEAD = 128;
+
+    /**
+     * Thrown when a file contains a line too long to fit in a window.
+     */
+    @SuppressWarnings("serial")
+    public static class LineTooLongException extends IOException {
+        public LineTooLongException(final String message) {
+            super(message);
+        }
+    }
+
+    private final LineReader oldReader;
+    private final LineReader newReader;
+    private final HunkWriter hunks;
+    private final long windowBytes;
+    private final int windowLines;
+
+    private final List<byte[]> oldWindow = new ArrayList<byte[]>();
+    private final List<byte[]> newWindow = new ArrayList<byte[]>();
+    private long oldWindowSize = 0;
+    private long newWindowSize = 0;
+
+    private WindowedDiff(final LineReader oldReader,
+                         final LineReader newReader,
+                         final HunkWriter hunks,
+                         final long memoryLimit) {
+        this.oldReader = oldReader;
+        this.newReader = newReader;
+        this.hunks = hunks;
+
+        /*
+         * Half of the memory is split between the two windows, and the rest
+         * is left for comparing them and for buffering output.
+         */
+        windowBytes = Math.max(READ_BUFFER_SIZE, memoryLimit / 4);
+        windowLines = (int)Math.min(Integer.MAX_VALUE / 2,
+                                    Math.max(ANCHOR_LINES * 4, memoryLimit / 4 / LINE_OVERHEAD));
+    }
+
+    /**
+     * Write a unified diff between two files.
+     *
+     * Nothing is written if the files are identical.
+     *
+     * @param  oldContent  The contents of the old file.
+     * @param  newContent  The contents of the new file.
+     * @param  oldLabel    The label for the old file.
+     * @param  newLabel    The label for the new file.
+     * @param  out         The stream to write the diff to.
+     * @param  memoryLimit The approximate number of bytes of memory to use.
+     * @return             Whether the files differ.
+     * @throws LineTooLongException A line didn't fit in the memory limit.
+     *                              Nothing has been written to the stream.
+     */
+    public static boolean write(final ScratchContent oldContent,
+                                final ScratchContent newContent,
+                                final String oldLabel,
+                                final String newLabel,
+                                final OutputStream out,
+                                final long memoryLimit)
+                                throws IOException {
+        if (isBinary(oldContent) || isBinary(newContent)) {
+            out.write(("Binary files " + oldLabel + " and " + newLabel + " differ\n").getBytes(utf8));
+            return true;
+        }
+
+        final ScratchContent.Writer section = new ScratchContent.Writer();
+        final boolean differs;
+
+        try(final LineReader oldReader = new LineReader(oldContent.openStream(), oldLabel);
+            final LineReader newReader = new LineReader(newContent.openStream(), newLabel)) {
+            final HunkWriter hunks = new HunkWriter(section, oldLabel, newLabel);
+            final WindowedDiff diff = new WindowedDiff(oldReader, newReader, hunks, memoryLimit);
+
+            try {
+                diff.run();
+            } finally {
+                hunks.close();
+            }
+
+            differs = hunks.hasOutput();
+        } catch (final IOException|RuntimeException e) {
+            section.discard();
+            throw e;
+        }
+
+        copyContent(section.toContent(), out);
+        return differs;
+    }
+
+    /**
+     * Copy scratch contents to a stream, and release them.
+     *
+     * @param content The contents.
+     * @param out     The stream to write to.
+     */
+    private static void copyContent(final ScratchContent content, final OutputStream out)
+                                    throws IOException {
+        try(final InputStream input = content.openStream()) {
+            IOUtils.copyLarge(input, out);
+        } finally {
+            content.close();
+        }
+    }
+
+    /**
+     * Return whether a file looks like binary data.
+     *
+     * This uses the same check as UnifiedDiff.
+     *
+     * @param  content The file contents.
+     * @return         Whether the file is binary.
+     */
+    private static boolean isBinary(final ScratchContent content) throws IOException {
+        final byte[] buffer = new byte[UnifiedDiff.BINARY_CHECK_SIZE];
+        final int length;
+
+        try(final InputStream input = content.openStream()) {
+            length = IOUtils.read(input, buffer);
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compare the files, passing every line to the hunk writer.
+     */
+    private void run() throws IOException {
+        while (true) {
+            fillWindow(oldReader, oldWindow, true);
+            fillWindow(newReader, newWindow, false);
+
+            /* Lines common to the start of both windows need no comparing. */
+            int common = 0;
+
+            while (common < oldWindow.size() && common < newWindow.size() &&
+                   Arrays.equals(oldWindow.get(common), newWindow.get(common))) {
+                hunks.common(oldWindow.get(common));
+                common++;
+            }
+
+            if (common > 0) {
+                consume(common, common);
+                continue;
+            }
+
+            if (oldWindow.isEmpty() && newWindow.isEmpty()) {
+                return;
+            }
+
+            if (oldWindow.isEmpty() || newWindow.isEmpty()) {
+                /*
+                 * One file has ended (the window would otherwise have been
+                 * filled), so the rest of the other is all changed.
+                 */
+                for (byte[] line : oldWindow) {
+                    hunks.delete(line);
+                }
+
+                for (byte[] line : newWindow) {
+                    hunks.insert(line);
+                }
+
+                consume(oldWindow.size(), newWindow.size());
+                continue;
+            }
+
+            compareWindows();
+        }
+    }
+
+    /**
+     * Compare the current windows, and resolve as much of them as can be
+     * trusted.
+     */
+    private void compareWindows() throws IOException {
+        final int oldCount = oldWindow.size();
+        final int newCount = newWindow.size();
+        final int[] oldIds = new int[oldCount];
+        final int[] newIds = new int[newCount];
+        final boolean[] oldChanged = new boolean[oldCount];
+        final boolean[] newChanged = new boolean[newCount];
+        final Map<ByteBuffer, Integer> ids = new HashMap<ByteBuffer, Integer>();
+
+        internLines(oldWindow, oldIds, ids);
+        internLines(newWindow, newIds, ids);
+        MyersDiff.compute(oldIds, oldCount, newIds, newCount, oldChanged, newChanged);
+
+        /*
+         * Walk the edit script the same way UnifiedDiff does, and choose
+         * where to stop. If both files have been read completely, the whole
+         * window is resolved. Otherwise, stop at the start of the last
+         * anchor. If there's no anchor, the windows are too small to find
+         * one, so stop halfway through and accept a less minimal diff.
+         */
+        final boolean complete = oldReader.isAtEnd() && newReader.isAtEnd();
+        int cutOld = oldCount;
+        int cutNew = newCount;
+
+        if (!complete) {
+            final int half = (oldCount + newCount) / 2;
+            int halfOld = -1;
+            int halfNew = -1;
+            int anchorOld = -1;
+            int anchorNew = -1;
+            int runLength = 0;
+            int i = 0;
+            int j = 0;
+
+            while (i < oldCount || j < newCount) {
+                if ((i < oldCount && oldChanged[i]) || (j < newCount && newChanged[j])) {
+                    while (i < oldCount && oldChanged[i]) {
+                        i++;
+                    }
+
+                    while (j < newCount && newChanged[j]) {
+                        j++;
+                    }
+
+                    runLength = 0;
+                } else {
+                    i++;
+                    j++;
+                    runLength++;
+
+                    if (runLength == ANCHOR_LINES) {
+                        anchorOld = i - runLength;
+                        anchorNew = j - runLength;
+                    }
+                }
+
+                if (halfOld == -1 && i + j >= half) {
+                    halfOld = i;
+                    halfNew = j;
+                }
+            }
+
+            if (anchorOld > 0 || anchorNew > 0) {
+                cutOld = anchorOld;
+                cutNew = anchorNew;
+            } else {
+                cutOld = halfOld;
+                cutNew = halfNew;
+            }
+        }
+
+        int i = 0;
+        int j = 0;
+
+        while (i < cutOld || j < cutNew) {
+            if ((i < cutOld && oldChanged[i]) || (j < cutNew && newChanged[j])) {
+                while (i < cutOld && oldChanged[i]) {
+                    hunks.delete(oldWindow.get(i++));
+                }
+
+                while (j < cutNew && newChanged[j]) {
+                    hunks.insert(newWindow.get(j++));
+                }
+            } else {
+                hunks.common(oldWindow.get(i++));
+                j++;
+            }
+        }
+
+        consume(cutOld, cutNew);
+    }
+
+    /**
+     * Assign an ID to each line in a window, such that identical lines
+     * share an ID.
+     *
+     * @param window The lines.
+     * @param result Receives the IDs.
+     * @param ids    The IDs assigned so far, by line contents.
+     */
+    private static void internLines(final List<byte[]> window, final int[] result,
+                                    final Map<ByteBuffer, Integer> ids) {
+        for (int i = 0; i < result.length; i++) {
+            final ByteBuffer line = ByteBuffer.wrap(window.get(i));
+            Integer id = ids.get(line);
+
+            if (id == null) {
+                id = ids.size();
+                ids.put(line, id);
+            }
+
+            result[i] = id;
+        }
+    }
+
+    /**
+     * Read lines into a window until it's full or the file ends.
+     *
+     * @param reader The file to read from.
+     * @param window The window.
+     * @param isOld  Whether this is the old file's window.
+     */
+    private void fillWindow(final LineReader reader, final List<byte[]> window,
+                            final boolean isOld)
+                            throws IOException {
+        long size = isOld ? oldWindowSize : newWindowSize;
+
+        while (size < windowBytes && window.size() < windowLines) {
+            final byte[] line = reader.readLine(windowBytes);
+
+            if (line == null) {
+                break;
+            }
+
+            window.add(line);
+            size += line.length;
+        }
+
+        if (isOld) {
+            oldWindowSize = size;
+        } else {
+            newWindowSize = size;
+        }
+    }
+
+    /**
+     * Remove resolved lines from the start of the windows.
+     *
+     * @param oldLines The number of lines to remove from the old window.
+     * @param newLines The number of lines to remove from the new window.
+     */
+    private void consume(final int oldLines, final int newLines) {
+        final List<byte[]> oldDone = oldWindow.subList(0, oldLines);
+        final List<byte[]> newDone = newWindow.subList(0, newLines);
+
+        for (byte[] line : oldDone) {
+            oldWindowSize -= line.length;
+        }
+
+        for (byte[] line : newDone) {
+            newWindowSize -= line.length;
+        }
+
+        oldDone.clear();
+        newDone.clear();
+    }
+
+    /**
+     * Reads a file a line at a time.
+     *
+     * Each line includes its trailing newline, if it has one.
+     */
+    private static final class LineReader implements Closeable {
+        private final InputStream input;
+        private final String label;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        private boolean atEnd = false;
+
+        public LineReader(final InputStream input, final String label) {
+            this.input = input;
+            this.label = label;
+        }
+
+        /**
+         * Read the next line.
+         *
+         * @param  maxLength The longest line allowed.
+         * @return           The line, or null at the end of the file.
+         */
+        public byte[] readLine(final long maxLength) throws IOException {
+            byte[] line = null;
+            int length = 0;
+
+            while (true) {
+                if (position == limit && !fill()) {
+                    return line != null ? Arrays.copyOf(line, length) : null;
+                }
+
+                int end = position;
+
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+
+                final boolean found = end < limit;
+
+                if (found) {
+                    end++;
+                }
+
+                final int count = end - position;
+
+                if (length + (long)count > maxLength) {
+                    throw new LineTooLongException(
+                        label + " has a line longer than " + maxLength + " bytes");
+                }
+
+                if (line == null) {
+                    line = new byte[count];
+                } else if (line.length < length + count) {
+                    line = Arrays.copyOf(line, Math.max(length + count, line.length * 2));
+                }
+
+                System.arraycopy(buffer, position, line, length, count);
+                length += count;
+                position = end;
+
+                if (found) {
+                    return line.length == length ? line : Arrays.copyOf(line, length);
+                }
+            }
+        }
+
+        /**
+         * Return whether the whole file has been read.
+         *
+         * @return Whether the file has ended.
+         */
+        public boolean isAtEnd() throws IOException {
+            return position == limit && !fill();
+        }
+
+        /**
+         * Read more of the file into the buffer, if it's been used up.
+         *
+         * @return Whether there's more data in the buffer.
+         */
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+
+            if (atEnd) {
+                return false;
+            }
+
+            final int count = input.read(buffer);
+
+            if (count <= 0) {
+                atEnd = true;
+                return false;
+            }
+
+            position = 0;
+            limit = count;
+            return true;
+        }
+
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Turns a stream of common, deleted and inserted lines into hunks.
+     *
+     * This follows the same rules as UnifiedDiff.writeHunks: each hunk has
+     * up to CONTEXT_LINES lines of context on either side, and changes
+     * separated by no more than twice that are merged into one hunk. A hunk's
+     * header can only be written once the hunk is complete, so its body is
+     * buffered until then.
+     */
+    private static final class HunkWriter implements Closeable {
+        private final OutputStream out;
+        private final String oldLabel;
+        private final String newLabel;
+        private boolean hasOutput = false;
+
+        /* The number of lines passed so far in each file. */
+        private long oldLine = 0;
+        private long newLine = 0;
+
+        /*
+         * The most recent common lines. Outside of a hunk, these are the
+         * context for the next one. Inside a hunk, they're the common lines
+         * since the last change, which may either continue the hunk or end
+         * it.
+         */
+        private final Deque<byte[]> recent = new ArrayDeque<byte[]>();
+
+        private ScratchContent.Writer body = null;
+        private long hunkOldStart;
+        private long hunkNewStart;
+        private long hunkOldCount;
+        private long hunkNewCount;
+
+        public HunkWriter(final OutputStream out, final String oldLabel,
+                          final String newLabel) {
+            this.out = out;
+            this.oldLabel = oldLabel;
+            this.newLabel = newLabel;
+        }
+
+        public boolean hasOutput() {
+            return hasOutput;
+        }
+
+        public void common(final byte[] line) throws IOException {
+            recent.addLast(line);
+            oldLine++;
+            newLine++;
+
+            if (body == null) {
+                if (recent.size() > UnifiedDiff.CONTEXT_LINES) {
+                    recent.removeFirst();
+                }
+            } else if (recent.size() > 2 * UnifiedDiff.CONTEXT_LINES) {
+                /*
+                 * The gap is too long to be merged with the next change, so
+                 * the hunk ends, and the last of these lines become the
+                 * leading context for the next one.
+                 */
+                for (int i = 0; i < UnifiedDiff.CONTEXT_LINES; i++) {
+                    writeBodyLine(' ', recent.removeFirst());
+                    hunkOldCount++;
+                    hunkNewCount++;
+                }
+
+                finishHunk();
+
+                while (recent.size() > UnifiedDiff.CONTEXT_LINES) {
+                    recent.removeFirst();
+                }
+            }
+        }
+
+        public void delete(final byte[] line) throws IOException {
+            startChange();
+            writeBodyLine('-', line);
+            hunkOldCount++;
+            oldLine++;
+        }
+
+        public void insert(final byte[] line) throws IOException {
+            startChange();
+            writeBodyLine('+', line);
+            hunkNewCount++;
+            newLine++;
+        }
+
+        /**
+         * Finish any open hunk.
+         */
+        public void close() throws IOException {
+            if (body != null) {
+                for (int i = 0; i < UnifiedDiff.CONTEXT_LINES && !recent.isEmpty(); i++) {
+                    writeBodyLine(' ', recent.removeFirst());
+                    hunkOldCount++;
+                    hunkNewCount++;
+                }
+
+                finishHunk();
+            }
+        }
+
+        /**
+         * Prepare to write a changed line, starting a hunk if needed.
+         */
+        private void startChange() throws IOException {
+            if (body == null) {
+                body = new ScratchContent.Writer();
+                hunkOldStart = oldLine - recent.size();
+                hunkNewStart = newLine - recent.size();
+                hunkOldCount = 0;
+                hunkNewCount = 0;
+            }
+
+            while (!recent.isEmpty()) {
+                writeBodyLine(' ', recent.removeFirst());
+                hunkOldCount++;
+                hunkNewCount++;
+            }
+        }
+
+        /**
+         * Write out the current hunk.
+         */
+        private void finishHunk() throws IOException {
+            final ScratchContent content = body.toContent();
+            body = null;
+
+            try {
+                if (!hasOutput) {
+                    out.write(("--- " + oldLabel + "\n").getBytes(utf8));
+                    out.write(("+++ " + newLabel + "\n").getBytes(utf8));
+                    hasOutput = true;
+                }
+
+                out.write(("@@ -" + UnifiedDiff.formatRange(hunkOldStart, hunkOldStart + hunkOldCount) +
+                           " +" + UnifiedDiff.formatRange(hunkNewStart, hunkNewStart + hunkNewCount) +
+                           " @@\n").getBytes(utf8));
+            } catch (final IOException|RuntimeException e) {
+                content.close();
+                throw e;
+            }
+
+            copyContent(content, out);
+        }
+
+        private void writeBodyLine(final char prefix, final byte[] line) throws IOException {
+            body.write(prefix);
+            body.write(line);
+
+            if (line.length == 0 || line[line.length - 1] != '\n') {
+                body.write(UnifiedDiff.NO_NEWLINE);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/sh
+#
+# Compare rb-tfs startup times with and without the class-data sharing
+# archive.
+#
+# Usage: measure-startup.sh <build dir> <runs> [rb-tfs arguments...]
+#
+# The daemon is bypassed, so that every run starts a new JVM.
+
+build="$1"
+runs="$2"
+shift 2
+
+export RB_TFS_NO_DAEMON=1
+
+measure() {
+    label="$1"
+    shift
+    total=0
+    i=0
+
+    while [ $i -lt $runs ]; do
+        start=$(date +%s%N)
+        "$@" >/dev/null 2>&1
+        end=$(date +%s%N)
+        total=$((total + (end - start) / 1000000))
+        i=$((i + 1))
+    done
+
+    echo "$label: $((total / runs)) ms average over $runs runs"
+}
+
+measure "Without archive" java -Xshare:auto -jar "$build/rb-tfs.jar" "$@"
+
+if [ -f "$build/rb-tfs.jsa" ]; then
+    measure "With archive" java -Xshare:auto \
+        -XX:SharedArchiveFile="$build/rb-tfs.jsa" -jar "$build/rb-tfs.jar" "$@"
+else
+    echo "No archive found in $build; run \"ant cds\" first"
+fi